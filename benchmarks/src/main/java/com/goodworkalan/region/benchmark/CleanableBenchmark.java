@@ -0,0 +1,87 @@
+package com.goodworkalan.region.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.goodworkalan.region.Cleanable;
+import com.goodworkalan.region.DirtyByteMap;
+import com.goodworkalan.region.NullCleanable;
+import com.goodworkalan.region.SubCleanable;
+
+/**
+ * Measures the overhead of recording a small dirty span with a null cleanable,
+ * a dirty byte map, and a sub cleanable over a dirty byte map, the cleanable
+ * used by header fields.
+ * 
+ * @author Alan Gutierrez
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CleanableBenchmark {
+    /** The length of the tracked page. */
+    private final static int LENGTH = 4096;
+
+    /** The cleanable. */
+    @Param({ "NullCleanable", "DirtyByteMap", "SubCleanable" })
+    public String type;
+
+    /** The cleanable under test. */
+    private Cleanable cleanable;
+
+    /** The offset of the next span. */
+    private int offset;
+
+    /** Create the cleanable. */
+    @Setup
+    public void setup() {
+        if (type.equals("NullCleanable")) {
+            cleanable = new NullCleanable(LENGTH);
+        } else if (type.equals("DirtyByteMap")) {
+            cleanable = new DirtyByteMap(LENGTH);
+        } else {
+            cleanable = new SubCleanable(new DirtyByteMap(LENGTH * 2), LENGTH, LENGTH);
+        }
+    }
+
+    /**
+     * Dirty and then clean an eight byte span, moving to the next cache line
+     * of the page each time.
+     * 
+     * @return The cleanable.
+     */
+    @Benchmark
+    public Cleanable dirtyAndClean() {
+        cleanable.dirty(offset, 8);
+        cleanable.clean(offset, 8);
+        offset = (offset + 64) & (LENGTH - 1);
+        return cleanable;
+    }
+
+    /**
+     * Dirty an eight byte span that is usually already dirty, moving to the
+     * next cache line of the page each time.
+     * 
+     * @return The cleanable.
+     */
+    @Benchmark
+    public Cleanable redirty() {
+        cleanable.dirty(offset, 8);
+        offset = (offset + 64) & (LENGTH - 1);
+        return cleanable;
+    }
+}
@@ -0,0 +1,125 @@
+package com.goodworkalan.region.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.goodworkalan.region.DirtyBlockMap;
+import com.goodworkalan.region.DirtyByteMap;
+import com.goodworkalan.region.DirtyIntervalSet;
+import com.goodworkalan.region.SpanCleanable;
+
+/**
+ * Measures dirtying and cleaning a page with each dirty tracker under
+ * sequential, random, overlapping and adversarial span patterns.
+ * <p>
+ * The adversarial pattern dirties every other byte in descending order, which
+ * leaves the largest possible count of separate dirty spans and inserts each
+ * span at the front of the tracker.
+ * 
+ * @author Alan Gutierrez
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirtyTrackingBenchmark {
+    /** The length of the tracked page. */
+    private final static int LENGTH = 4096;
+
+    /** The count of spans dirtied or cleaned by an operation. */
+    private final static int SPANS = 256;
+
+    /** The span pattern. */
+    @Param({ "sequential", "random", "overlapping", "adversarial" })
+    public String pattern;
+
+    /** The dirty tracker. */
+    @Param({ "DirtyByteMap", "DirtyIntervalSet", "DirtyBlockMap" })
+    public String tracker;
+
+    /** The dirty tracker under test. */
+    private SpanCleanable cleanable;
+
+    /** The span offsets. */
+    private int[] offsets;
+
+    /** The span lengths. */
+    private int[] lengths;
+
+    /**
+     * Create the dirty tracker and the spans of the pattern. The random
+     * pattern uses a fixed seed so that runs are comparable.
+     */
+    @Setup
+    public void setup() {
+        if (tracker.equals("DirtyByteMap")) {
+            cleanable = new DirtyByteMap(LENGTH);
+        } else if (tracker.equals("DirtyIntervalSet")) {
+            cleanable = new DirtyIntervalSet(LENGTH);
+        } else {
+            cleanable = new DirtyBlockMap(LENGTH, 8);
+        }
+        offsets = new int[SPANS];
+        lengths = new int[SPANS];
+        Random random = new Random(42);
+        for (int i = 0; i < SPANS; i++) {
+            if (pattern.equals("sequential")) {
+                offsets[i] = i * 16;
+                lengths[i] = 8;
+            } else if (pattern.equals("random")) {
+                offsets[i] = random.nextInt(LENGTH - 16);
+                lengths[i] = 1 + random.nextInt(16);
+            } else if (pattern.equals("overlapping")) {
+                offsets[i] = i * 8;
+                lengths[i] = 16;
+            } else {
+                offsets[i] = (SPANS - 1 - i) * 2;
+                lengths[i] = 1;
+            }
+        }
+    }
+
+    /**
+     * Dirty every span of the pattern in a clean tracker.
+     * 
+     * @return The dirty tracker.
+     */
+    @Benchmark
+    public SpanCleanable dirty() {
+        cleanable.clean();
+        for (int i = 0; i < SPANS; i++) {
+            cleanable.dirty(offsets[i], lengths[i]);
+        }
+        return cleanable;
+    }
+
+    /**
+     * Dirty every span of the pattern, then clean every span of the pattern.
+     * 
+     * @return The dirty tracker.
+     */
+    @Benchmark
+    public SpanCleanable clean() {
+        for (int i = 0; i < SPANS; i++) {
+            cleanable.dirty(offsets[i], lengths[i]);
+        }
+        for (int i = 0; i < SPANS; i++) {
+            cleanable.clean(offsets[i], lengths[i]);
+        }
+        return cleanable;
+    }
+}
@@ -0,0 +1,133 @@
+package com.goodworkalan.region.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.goodworkalan.region.Header;
+import com.goodworkalan.region.HeaderBuilder;
+import com.goodworkalan.region.Region;
+
+/**
+ * Measures getting a header field region and updating a header field through
+ * a field region and through the typed accessors of the header.
+ * 
+ * @author Alan Gutierrez
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+    /** The header fields. */
+    public enum Field {
+        /** A field. */
+        A,
+        /** A field. */
+        B,
+        /** A field. */
+        C,
+        /** A field. */
+        D
+    }
+
+    /** The header under test. */
+    private Header<Field> header;
+
+    /** The header with string keys under test. */
+    private Header<String> stringHeader;
+
+    /** The value written to fields. */
+    private long value;
+
+    /** Create the headers. */
+    @Setup
+    public void setup() {
+        HeaderBuilder<Field> builder = new HeaderBuilder<Field>();
+        for (Field field : Field.values()) {
+            builder.addField(field, 8);
+        }
+        header = builder.newHeader(0);
+        HeaderBuilder<String> stringBuilder = new HeaderBuilder<String>();
+        for (Field field : Field.values()) {
+            stringBuilder.addField(field.name(), 8);
+        }
+        stringHeader = stringBuilder.newHeader(0);
+    }
+
+    /**
+     * Get a field region by enum key.
+     * 
+     * @return The field region.
+     */
+    @Benchmark
+    public Region get() {
+        return header.get(Field.C);
+    }
+
+    /**
+     * Get a field region by string key.
+     * 
+     * @return The field region.
+     */
+    @Benchmark
+    public Region getByString() {
+        return stringHeader.get("C");
+    }
+
+    /**
+     * Update a field through its field region, locking the region and marking
+     * the field dirty.
+     * 
+     * @return The header.
+     */
+    @Benchmark
+    public Header<Field> regionPutLong() {
+        Region region = header.get(Field.C);
+        region.getLock().lock();
+        try {
+            region.getByteBuffer().putLong(0, value++);
+            region.dirty(0, 8);
+        } finally {
+            region.getLock().unlock();
+        }
+        return header;
+    }
+
+    /**
+     * Update a field with the typed accessor, locking the header.
+     * 
+     * @return The header.
+     */
+    @Benchmark
+    public Header<Field> putLong() {
+        header.getLock().lock();
+        try {
+            header.putLong(Field.C, value++);
+        } finally {
+            header.getLock().unlock();
+        }
+        return header;
+    }
+
+    /**
+     * Increment a field with the atomic typed accessor.
+     * 
+     * @return The previous value.
+     */
+    @Benchmark
+    public long getAndAddLong() {
+        return header.getAndAddLong(Field.C, 1);
+    }
+}
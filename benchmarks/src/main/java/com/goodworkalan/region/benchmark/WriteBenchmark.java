@@ -0,0 +1,135 @@
+package com.goodworkalan.region.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.goodworkalan.region.BasicWritable;
+import com.goodworkalan.region.DirtyByteMap;
+
+/**
+ * Measures writing the dirty spans of a page with a basic writable and with
+ * the write method of a dirty byte map.
+ * <p>
+ * The file is created in the directory named by the
+ * <code>region.benchmark.directory</code> system property, or the temporary
+ * directory if it is not set. To measure the write path rather than the disk,
+ * the directory should be on a tmpfs file system such as
+ * <code>/dev/shm</code>. The system property must be passed to the forked
+ * benchmark JVM with <code>-jvmArgs</code>.
+ * 
+ * @author Alan Gutierrez
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmark {
+    /** The length of the page. */
+    private final static int LENGTH = 4096;
+
+    /** The count of dirty spans written. */
+    @Param({ "1", "16", "256" })
+    public int spans;
+
+    /** The file written to. */
+    private File file;
+
+    /** The file channel written to. */
+    private FileChannel fileChannel;
+
+    /** The page content. */
+    private ByteBuffer byteBuffer;
+
+    /** The dirty byte map of the basic writable. */
+    private DirtyByteMap regionMap;
+
+    /** The basic writable under test. */
+    private BasicWritable region;
+
+    /** The dirty byte map under test. */
+    private DirtyByteMap map;
+
+    /**
+     * Create the file and the page.
+     * 
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    @Setup
+    public void setup() throws IOException {
+        File directory = new File(System.getProperty("region.benchmark.directory", System.getProperty("java.io.tmpdir")));
+        file = File.createTempFile("region", ".dat", directory);
+        fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        byteBuffer = ByteBuffer.allocateDirect(LENGTH);
+        regionMap = new DirtyByteMap(LENGTH);
+        region = new BasicWritable(0, byteBuffer, new ReentrantLock(), regionMap);
+        map = new DirtyByteMap(LENGTH);
+    }
+
+    /**
+     * Close and delete the file.
+     * 
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        fileChannel.close();
+        file.delete();
+    }
+
+    /**
+     * Dirty the spans and write them with the basic writable.
+     * 
+     * @return The basic writable.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    @Benchmark
+    public BasicWritable basicWritable() throws IOException {
+        int stride = LENGTH / spans;
+        for (int i = 0; i < spans; i++) {
+            regionMap.dirty(i * stride, 8);
+        }
+        region.write(fileChannel, 0);
+        return region;
+    }
+
+    /**
+     * Dirty the spans and write them with the dirty byte map.
+     * 
+     * @return The dirty byte map.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    @Benchmark
+    public DirtyByteMap dirtyByteMap() throws IOException {
+        int stride = LENGTH / spans;
+        for (int i = 0; i < spans; i++) {
+            map.dirty(i * stride, 8);
+        }
+        map.write(byteBuffer.duplicate(), fileChannel, 0);
+        map.clean();
+        return map;
+    }
+}
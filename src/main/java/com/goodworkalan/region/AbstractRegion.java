@@ -91,6 +91,10 @@ public abstract class AbstractRegion implements Region {
      */
     public void dirty(int offset, int length) {
         getDirtyable().dirty(offset, length);
+        RegionListener listener = Instrumentation.getListener();
+        if (listener != null) {
+            listener.dirtied(this, length);
+        }
     }
 
     /**
@@ -98,5 +102,9 @@ public abstract class AbstractRegion implements Region {
      */
     public void dirty() {
         getDirtyable().dirty();
+        RegionListener listener = Instrumentation.getListener();
+        if (listener != null) {
+            listener.dirtied(this, getLength());
+        }
     }
 }
@@ -0,0 +1,257 @@
+package com.goodworkalan.region;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An asynchronous write of the spans of a byte buffer to an asynchronous file
+ * channel, one write for each span.
+ * <p>
+ * When the write starts, while the caller holds the region lock, the spans are
+ * copied into a snapshot buffer and marked as clean, so the region can be
+ * modified and dirtied again while the spans are written, and those new dirty
+ * bytes are written by the next flush. The completion handler never takes the
+ * region lock when a span is written. If any span fails to write, the failed
+ * spans are marked dirty again before the future fails, taking the region lock
+ * on the completing thread if it is free, otherwise on a thread of the common
+ * fork join pool, so the channel thread is never parked. A write in which
+ * every span is written is reported to the region listener when it completes.
+ * 
+ * @author Alan Gutierrez
+ */
+class AsynchronousSpanWrite implements CompletionHandler<Integer, AsynchronousSpanWrite.Span> {
+    /** The asynchronous file channel to write to. */
+    private final AsynchronousFileChannel fileChannel;
+
+    /** The region whose lock guards the cleanable. */
+    private final Region region;
+
+    /** The cleanable used to track the dirty bytes of the byte buffer. */
+    private final Cleanable cleanable;
+
+    /** The spans to write. */
+    private final List<Span> spans;
+
+    /** The spans that failed to write. */
+    private final Queue<Span> failed;
+
+    /** The count of spans that have not completed, plus one until started. */
+    private final AtomicInteger outstanding;
+
+    /** The count of bytes written. */
+    private final AtomicInteger byteCount;
+
+    /** The count of calls to write the file channel. */
+    private final AtomicInteger writeCount;
+
+    /** The future of the write. */
+    private final CompletableFuture<Integer> future;
+
+    /** The flush event begun when the write started. */
+    private FlushEvent event;
+
+    /** The count of merge iterations of the cleanable when it was copied. */
+    private int mergeCount;
+
+    /** The first failure to write a span. */
+    private volatile Throwable failure;
+
+    /**
+     * A span of the byte buffer being written.
+     */
+    final static class Span {
+        /** The offset of the span in the byte buffer. */
+        public final int offset;
+
+        /** The length of the span. */
+        public final int length;
+
+        /** The file position of the span. */
+        public final long position;
+
+        /** A slice of the snapshot buffer positioned and limited to the span. */
+        public ByteBuffer slice;
+
+        /**
+         * Create a span.
+         * 
+         * @param offset
+         *            The offset of the span in the byte buffer.
+         * @param length
+         *            The length of the span.
+         * @param position
+         *            The file position of the span.
+         */
+        public Span(int offset, int length, long position) {
+            this.offset = offset;
+            this.length = length;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Create an asynchronous write to the given file channel that marks
+     * written spans as clean in the given cleanable, which is guarded by the
+     * lock of the given region.
+     * 
+     * @param fileChannel
+     *            The asynchronous file channel to write to.
+     * @param region
+     *            The region whose lock guards the cleanable.
+     * @param cleanable
+     *            The cleanable used to track the dirty bytes.
+     */
+    public AsynchronousSpanWrite(AsynchronousFileChannel fileChannel, Region region, Cleanable cleanable) {
+        this.fileChannel = fileChannel;
+        this.region = region;
+        this.cleanable = cleanable;
+        this.spans = new ArrayList<Span>();
+        this.failed = new ConcurrentLinkedQueue<Span>();
+        this.outstanding = new AtomicInteger(1);
+        this.byteCount = new AtomicInteger();
+        this.writeCount = new AtomicInteger();
+        this.future = new CompletableFuture<Integer>();
+    }
+
+    /**
+     * Add a span of the given length at the given offset of the byte buffer,
+     * to be written to the file position of the byte buffer plus the offset.
+     * 
+     * @param position
+     *            The file position of the byte buffer.
+     * @param offset
+     *            The offset of the span.
+     * @param length
+     *            The length of the span.
+     */
+    public void add(long position, int offset, int length) {
+        spans.add(new Span(offset, length, position + offset));
+    }
+
+    /**
+     * Mark the added spans of the given byte buffer as clean, copy them into a
+     * snapshot buffer and begin writing them. Each span is cleaned before it
+     * is copied, so that a concurrent dirtying of a thread-safe cleanable is
+     * either copied or left dirty. The caller must hold the region lock.
+     * 
+     * @param byteBuffer
+     *            The byte buffer.
+     * @return The future of the write.
+     */
+    public CompletableFuture<Integer> start(ByteBuffer byteBuffer) {
+        event = Instrumentation.beginFlush();
+        mergeCount = Instrumentation.getMergeCount(cleanable);
+        int length = 0;
+        for (Span span : spans) {
+            length += span.length;
+        }
+        ByteBuffer snapshot = ByteBuffer.allocate(length);
+        ByteBuffer content = byteBuffer.duplicate();
+        for (Span span : spans) {
+            content.limit(span.offset + span.length);
+            content.position(span.offset);
+            cleanable.clean(span.offset, span.length);
+            span.slice = snapshot.slice();
+            span.slice.limit(span.length);
+            snapshot.put(content);
+        }
+        outstanding.addAndGet(spans.size());
+        for (Span span : spans) {
+            try {
+                writeCount.incrementAndGet();
+                fileChannel.write(span.slice, span.position, span, this);
+            } catch (RuntimeException e) {
+                failed(e, span);
+            }
+        }
+        done();
+        return future;
+    }
+
+    /**
+     * Continue writing the given span if it has not been entirely written.
+     * 
+     * @param result
+     *            The count of bytes written.
+     * @param span
+     *            The span.
+     */
+    public void completed(Integer result, Span span) {
+        byteCount.addAndGet(result);
+        if (span.slice.hasRemaining()) {
+            try {
+                writeCount.incrementAndGet();
+                fileChannel.write(span.slice, span.position + span.slice.position(), span, this);
+            } catch (RuntimeException e) {
+                failed(e, span);
+            }
+            return;
+        }
+        done();
+    }
+
+    /**
+     * Record the failure to write the given span, so that it is marked dirty
+     * again.
+     * 
+     * @param cause
+     *            The cause of the failure.
+     * @param span
+     *            The span.
+     */
+    public void failed(Throwable cause, Span span) {
+        if (failure == null) {
+            failure = cause;
+        }
+        failed.add(span);
+        done();
+    }
+
+    /**
+     * Complete the future if every span has completed.
+     */
+    private void done() {
+        if (outstanding.decrementAndGet() == 0) {
+            if (failure == null) {
+                Instrumentation.flushed(region, event, spans.size(), byteCount.get(), writeCount.get(), mergeCount);
+                future.complete(byteCount.get());
+            } else if (region.getLock().tryLock()) {
+                try {
+                    redirty();
+                } finally {
+                    region.getLock().unlock();
+                }
+            } else {
+                ForkJoinPool.commonPool().execute(new Runnable() {
+                    public void run() {
+                        Instrumentation.lock(region);
+                        try {
+                            redirty();
+                        } finally {
+                            region.getLock().unlock();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Mark the spans that failed to write as dirty and fail the future. The
+     * caller must hold the region lock.
+     */
+    private void redirty() {
+        for (Span span : failed) {
+            cleanable.dirty(span.offset, span.length);
+        }
+        future.completeExceptionally(failure);
+    }
+}
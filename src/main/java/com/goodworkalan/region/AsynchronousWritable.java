@@ -0,0 +1,28 @@
+package com.goodworkalan.region;
+
+import java.nio.channels.AsynchronousFileChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A region that writes itself to an underlying asynchronous file channel
+ * without blocking the calling thread, possibly taking into consideration which
+ * bytes in the byte buffer are dirty and which are clean.
+ * 
+ * @author Alan Gutierrez
+ */
+public interface AsynchronousWritable extends Region {
+    /**
+     * Begin writing the dirty regions to the given asynchronous file channel
+     * at the position of this region offset by the given offset. The returned
+     * future completes with the count of bytes written when every dirty region
+     * has been written, or with the first failure. Bytes dirtied while the
+     * write is in progress are written by the next write.
+     * 
+     * @param fileChannel
+     *            The asynchronous file channel to write to.
+     * @param offset
+     *            An offset to add to the dirty region map file position.
+     * @return A future that completes when the write completes.
+     */
+    public CompletableFuture<Integer> write(AsynchronousFileChannel fileChannel, int offset);
+}
@@ -2,19 +2,32 @@ package com.goodworkalan.region;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.locks.Lock;
+import java.util.zip.Checksum;
 
 /**
  * A basic writeable implementation that writes its content to disk and marks
  * the entire region as clean in the cleanable used to track dirty bytes.
+ * <p>
+ * If the cleanable is a {@link SpanCleanable} only the dirty spans of the
+ * content are written and a clean region is not written at all. Otherwise the
+ * entire content is written.
  * 
  * @author Alan Gutierrez
  */
-public class BasicWritable extends AbstractRegion implements Writable {
+public class BasicWritable extends AbstractRegion implements Writable, AsynchronousWritable, Loadable {
     /** The cleanable interface used to track which bytes are dirty. */
     protected final Cleanable cleanable;
 
+    /**
+     * The dirty block map reused to receive the drained blocks of a
+     * {@link ConcurrentDirtyBlockMap} cleanable, or null.
+     */
+    private final DirtyBlockMap drained;
+
     /**
      * Create a region at the given file position, with the given byte buffer of
      * region content, guarded by the given lock.
@@ -32,6 +45,7 @@ public class BasicWritable extends AbstractRegion implements Writable {
     public BasicWritable(long position, ByteBuffer byteBuffer, Lock lock, Cleanable cleanable) {
         super(position, byteBuffer, lock);
         this.cleanable = cleanable;
+        this.drained = newDrainMap(cleanable);
     }
 
     /**
@@ -46,9 +60,15 @@ public class BasicWritable extends AbstractRegion implements Writable {
     }
 
     /**
-     * Write the entire to the given file channel using the given disk at the
-     * position of this region offset by the given offset. Marks the entire
-     * cleanable used to track dirty bytes as clean.
+     * Write the dirty spans of the content to the given file channel at the
+     * position of this region offset by the given offset. If the cleanable
+     * used to track dirty bytes cannot enumerate its dirty spans, the entire
+     * content is written. Marks the entire cleanable used to track dirty bytes
+     * as clean.
+     * <p>
+     * A {@link ConcurrentDirtyBlockMap} is drained before the spans are
+     * written, so that blocks dirtied concurrently remain dirty, and the
+     * drained blocks are restored if the write fails.
      * 
      * @param fileChannel
      *            The file channel to write to.
@@ -58,9 +78,240 @@ public class BasicWritable extends AbstractRegion implements Writable {
      *             If an I/O error occurs.
      */
     public void write(FileChannel fileChannel, int offset) throws IOException {
+        FlushEvent event = Instrumentation.beginFlush();
+        int spanCount = 0;
+        int byteCount = 0;
+        int writeCount = 0;
+        ByteBuffer bytes = getByteBuffer();
+        SpanCleanable spans = getSpans();
+        if (spans != null) {
+            boolean written = false;
+            try {
+                for (int start = spans.nextDirty(0), end; start != -1; start = spans.nextDirty(end)) {
+                    end = spans.nextClean(start);
+                    bytes.limit(end);
+                    bytes.position(start);
+                    writeCount += write(fileChannel, bytes, offset + getPosition() + start);
+                    spanCount++;
+                    byteCount += end - start;
+                }
+                written = true;
+            } finally {
+                bytes.clear();
+                if (!written && spans != cleanable) {
+                    ((ConcurrentDirtyBlockMap) cleanable).restore((DirtyBlockMap) spans);
+                    spans.clean();
+                }
+            }
+        } else {
+            bytes.clear();
+            writeCount += write(fileChannel, bytes, offset + getPosition());
+            spanCount++;
+            byteCount += bytes.capacity();
+        }
+        Instrumentation.flushed(this, event, spanCount, byteCount, writeCount, Instrumentation.getMergeCount(cleanable));
+        if (spans == cleanable || spans == null) {
+            cleanable.clean();
+        } else {
+            spans.clean();
+        }
+    }
+
+    /**
+     * Begin writing the dirty spans of the content to the given asynchronous
+     * file channel at the position of this region offset by the given offset,
+     * one write for each span. If the cleanable used to track dirty bytes
+     * cannot enumerate its dirty spans, the entire content is written.
+     * <p>
+     * The dirty spans are copied and marked clean before this method returns,
+     * so the region may be modified while the spans are written, and bytes
+     * dirtied in the meantime are written by the next flush. Spans that fail
+     * to write are marked dirty again before the returned future fails.
+     * <p>
+     * The caller must hold the region lock while calling this method, but must
+     * not hold it while waiting for the returned future.
+     * 
+     * @param fileChannel
+     *            The asynchronous file channel to write to.
+     * @param offset
+     *            An offset to add to the dirty region map file position.
+     * @return A future that completes with the count of bytes written.
+     */
+    public CompletableFuture<Integer> write(AsynchronousFileChannel fileChannel, int offset) {
+        long position = offset + getPosition();
+        AsynchronousSpanWrite write = new AsynchronousSpanWrite(fileChannel, this, cleanable);
+        SpanCleanable spans = getSpans();
+        if (spans != null) {
+            for (int start = spans.nextDirty(0), end; start != -1; start = spans.nextDirty(end)) {
+                end = spans.nextClean(start);
+                write.add(position, start, end - start);
+            }
+            if (spans != cleanable) {
+                spans.clean();
+            }
+        } else {
+            write.add(position, 0, getLength());
+        }
+        return write.start(getByteBuffer());
+    }
+
+    /**
+     * Read the entire content of the region from the given file channel at the
+     * position of this region offset by the given offset and mark the entire
+     * region as clean. Bytes beyond the end of the file are zero.
+     * 
+     * @param fileChannel
+     *            The file channel to read from.
+     * @param offset
+     *            An offset to add to the region file position.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public void load(FileChannel fileChannel, int offset) throws IOException {
         ByteBuffer bytes = getByteBuffer();
         bytes.clear();
-        fileChannel.write(bytes, offset + getPosition());
+        read(fileChannel, bytes, offset + getPosition());
+        bytes.clear();
+        loaded();
+    }
+
+    /**
+     * Mark the entire region as clean after its content has been read.
+     */
+    public void loaded() {
         cleanable.clean();
     }
+
+    /**
+     * Create the dirty block map reused to receive the drained blocks of the
+     * given cleanable if it is a {@link ConcurrentDirtyBlockMap}.
+     * 
+     * @param cleanable
+     *            The cleanable used to track dirty bytes.
+     * @return A dirty block map of the same length and block size or null if
+     *         the cleanable is not a concurrent dirty block map.
+     */
+    static DirtyBlockMap newDrainMap(Cleanable cleanable) {
+        if (cleanable instanceof ConcurrentDirtyBlockMap) {
+            ConcurrentDirtyBlockMap blocks = (ConcurrentDirtyBlockMap) cleanable;
+            return new DirtyBlockMap(blocks.getLength(), blocks.getBlockSize());
+        }
+        return null;
+    }
+
+    /**
+     * Get the dirty spans of the cleanable of this region for a write, as
+     * {@link #getSpans(Cleanable, DirtyBlockMap)} does, draining a concurrent
+     * dirty block map into the dirty block map this region reuses for every
+     * write. The caller must hold the region lock.
+     * 
+     * @return The dirty spans or null if the cleanable cannot enumerate them.
+     */
+    SpanCleanable getSpans() {
+        return getSpans(cleanable, drained);
+    }
+
+    /**
+     * Get the dirty spans of the given cleanable for a write. A
+     * {@link ConcurrentDirtyBlockMap} is drained into the given dirty block
+     * map, which is returned, so that the caller reads the dirty bytes only
+     * after their blocks are clean and a block dirtied concurrently stays
+     * dirty. The caller must not clean the concurrent map afterward, but must
+     * clean the returned map once it has used the spans, so that it can be
+     * reused. Any other span cleanable is returned as is.
+     * 
+     * @param cleanable
+     *            The cleanable used to track dirty bytes.
+     * @param drained
+     *            The dirty block map created by
+     *            {@link #newDrainMap(Cleanable)} for the cleanable.
+     * @return The dirty spans or null if the cleanable cannot enumerate them.
+     */
+    static SpanCleanable getSpans(Cleanable cleanable, DirtyBlockMap drained) {
+        if (cleanable instanceof ConcurrentDirtyBlockMap) {
+            ((ConcurrentDirtyBlockMap) cleanable).drainTo(drained);
+            return drained;
+        }
+        if (cleanable instanceof SpanCleanable) {
+            return (SpanCleanable) cleanable;
+        }
+        return null;
+    }
+
+    /**
+     * Read into the remaining bytes of the given byte buffer from the given
+     * file channel at the given file position, repeating the read until every
+     * byte is read. Bytes beyond the end of the file are set to zero.
+     * 
+     * @param fileChannel
+     *            The file channel to read from.
+     * @param bytes
+     *            The byte buffer.
+     * @param position
+     *            The file position.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    static void read(FileChannel fileChannel, ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            int read = fileChannel.read(bytes, position);
+            if (read == -1) {
+                while (bytes.hasRemaining()) {
+                    bytes.put((byte) 0);
+                }
+                break;
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Write the remaining bytes of the given byte buffer to the given file
+     * channel at the given file position, repeating the write until every
+     * byte is written.
+     * 
+     * @param fileChannel
+     *            The file channel to write to.
+     * @param bytes
+     *            The byte buffer.
+     * @param position
+     *            The file position.
+     * @return The count of calls to write the file channel.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    static int write(FileChannel fileChannel, ByteBuffer bytes, long position) throws IOException {
+        int count = 0;
+        while (bytes.hasRemaining()) {
+            position += fileChannel.write(bytes, position);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Update the given checksum with the given length of bytes at the given
+     * offset of the given byte buffer. The bytes of a direct byte buffer are
+     * read by the checksum through a duplicate of the byte buffer, without
+     * copying them.
+     * 
+     * @param checksum
+     *            The checksum.
+     * @param bytes
+     *            The byte buffer.
+     * @param offset
+     *            The offset of the bytes.
+     * @param length
+     *            The count of bytes.
+     */
+    static void update(Checksum checksum, ByteBuffer bytes, int offset, int length) {
+        if (bytes.hasArray()) {
+            checksum.update(bytes.array(), bytes.arrayOffset() + offset, length);
+        } else {
+            ByteBuffer source = bytes.duplicate();
+            source.limit(offset + length);
+            source.position(offset);
+            checksum.update(source);
+        }
+    }
 }
@@ -0,0 +1,32 @@
+package com.goodworkalan.region;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A strategy for allocating the byte buffers of region content. An allocator
+ * can allocate heap buffers, direct buffers, or pool direct buffers so that
+ * they can be reused.
+ * 
+ * @author Alan Gutierrez
+ */
+public interface BufferAllocator {
+    /**
+     * Allocate a byte buffer with the given capacity. The byte buffer will
+     * have a position of zero, a limit equal to its capacity and every byte
+     * will be zero.
+     * 
+     * @param capacity
+     *            The capacity of the byte buffer.
+     * @return A new byte buffer.
+     */
+    public ByteBuffer allocate(int capacity);
+
+    /**
+     * Return a byte buffer allocated by this allocator when it is no longer
+     * used. The byte buffer must not be used after it has been freed.
+     * 
+     * @param byteBuffer
+     *            The byte buffer to free.
+     */
+    public void free(ByteBuffer byteBuffer);
+}
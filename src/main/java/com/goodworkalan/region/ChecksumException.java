@@ -0,0 +1,36 @@
+package com.goodworkalan.region;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the content of a block of a region read from disk does not
+ * match the checksum recorded for the block.
+ * 
+ * @author Alan Gutierrez
+ */
+public class ChecksumException extends IOException {
+    /** The serial version id. */
+    private final static long serialVersionUID = 1L;
+
+    /** The index of the corrupt block. */
+    private final int block;
+
+    /**
+     * Create a checksum exception for the block at the given index.
+     * 
+     * @param block
+     *            The index of the corrupt block.
+     */
+    public ChecksumException(int block) {
+        this.block = block;
+    }
+
+    /**
+     * Get the index of the corrupt block.
+     * 
+     * @return The block index.
+     */
+    public int getBlock() {
+        return block;
+    }
+}
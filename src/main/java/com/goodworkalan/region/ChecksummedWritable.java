@@ -0,0 +1,294 @@
+package com.goodworkalan.region;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32C;
+
+/**
+ * A region that maintains a CRC32C checksum for each block of its content,
+ * updating the checksums of the blocks touched by dirty spans when it is
+ * written and verifying every block when it is loaded. The JDK computes
+ * CRC32C with hardware instructions where the processor provides them.
+ * <p>
+ * The checksums are kept in a table of four byte entries, one per block,
+ * written to a separate file position given at construction. When the
+ * cleanable of the wrapped region is a {@link SpanCleanable}, a write
+ * recomputes only the checksums of the blocks that contain dirty bytes and
+ * writes only the range of the table that changed, so a small update never
+ * rehashes the entire region. Otherwise every block is recomputed.
+ * <p>
+ * The checksum recorded for a block is combined with the checksum of a block
+ * of zeros, so that a region that has never been written, whose content and
+ * checksum table read as zeros, is valid.
+ * <p>
+ * The checksummed region wraps a region that holds the content and shares its
+ * byte buffer and lock. The caller must hold the lock of the region when
+ * writing or loading.
+ * 
+ * @author Alan Gutierrez
+ */
+public class ChecksummedWritable implements Writable, Loadable {
+    /** The region that holds the content. */
+    private final BasicWritable region;
+
+    /** The base two logarithm of the block size. */
+    private final int shift;
+
+    /** The count of blocks. */
+    private final int blockCount;
+
+    /** The file position of the checksum table. */
+    private final long checksumPosition;
+
+    /** The checksum table. */
+    private final ByteBuffer checksums;
+
+    /** The checksum calculator. */
+    private final CRC32C crc;
+
+    /** The checksum of a full block of zeros. */
+    private final int zeroBlock;
+
+    /** The checksum of a last partial block of zeros. */
+    private final int zeroLastBlock;
+
+    /** The first block whose checksum has not been written or -1. */
+    private int firstUnwritten;
+
+    /** The last block whose checksum has not been written or -1. */
+    private int lastUnwritten;
+
+    /**
+     * Create a checksummed region that maintains checksums for blocks of the
+     * given block size of the content of the given region, writing the table
+     * of checksums at the given file position.
+     * 
+     * @param region
+     *            The region that holds the content.
+     * @param blockSize
+     *            The block size, a power of two.
+     * @param checksumPosition
+     *            The file position of the checksum table.
+     */
+    public ChecksummedWritable(BasicWritable region, int blockSize, long checksumPosition) {
+        if (blockSize < 1 || (blockSize & (blockSize - 1)) != 0) {
+            throw new IllegalArgumentException();
+        }
+        this.region = region;
+        this.shift = Integer.numberOfTrailingZeros(blockSize);
+        this.blockCount = (region.getLength() + blockSize - 1) >>> shift;
+        this.checksumPosition = checksumPosition;
+        this.checksums = ByteBuffer.allocate(blockCount * 4);
+        this.crc = new CRC32C();
+        this.zeroBlock = getZeroChecksum(blockSize);
+        this.zeroLastBlock = getZeroChecksum(region.getLength() - ((blockCount - 1) << shift));
+        this.firstUnwritten = -1;
+        this.lastUnwritten = -1;
+    }
+
+    /**
+     * Get the checksum of the given length of zeros.
+     * 
+     * @param length
+     *            The length.
+     * @return The checksum of the zeros.
+     */
+    private static int getZeroChecksum(int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(new byte[Math.max(length, 0)]);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Get the lock of the region that holds the content.
+     * 
+     * @return The lock.
+     */
+    public Lock getLock() {
+        return region.getLock();
+    }
+
+    /**
+     * Get the file position of the content.
+     * 
+     * @return The file position.
+     */
+    public long getPosition() {
+        return region.getPosition();
+    }
+
+    /**
+     * Get the byte buffer of the region that holds the content.
+     * 
+     * @return The byte buffer.
+     */
+    public ByteBuffer getByteBuffer() {
+        return region.getByteBuffer();
+    }
+
+    /**
+     * Get the length of the content.
+     * 
+     * @return The length of the content.
+     */
+    public int getLength() {
+        return region.getLength();
+    }
+
+    /**
+     * Mark as dirty the bytes in the content starting at the given offset and
+     * extending for the given length.
+     * 
+     * @param offset
+     *            The offset of the dirty region.
+     * @param length
+     *            The length of the dirty region.
+     */
+    public void dirty(int offset, int length) {
+        region.dirty(offset, length);
+    }
+
+    /**
+     * Mark the entire content as dirty.
+     */
+    public void dirty() {
+        region.dirty();
+    }
+
+    /**
+     * Get the length of the checksum table on disk.
+     * 
+     * @return The length of the checksum table.
+     */
+    public int getChecksumLength() {
+        return blockCount * 4;
+    }
+
+    /**
+     * Calculate the checksum of the block at the given index combined with the
+     * checksum of a block of zeros of the same length.
+     * 
+     * @param block
+     *            The block index.
+     * @return The block checksum.
+     */
+    private int checksum(int block) {
+        int offset = block << shift;
+        int length = Math.min(1 << shift, region.getLength() - offset);
+        crc.reset();
+        BasicWritable.update(crc, region.getByteBuffer(), offset, length);
+        return (int) crc.getValue() ^ (block == blockCount - 1 ? zeroLastBlock : zeroBlock);
+    }
+
+    /**
+     * Update the checksums of the blocks that contain dirty bytes, write the
+     * dirty content with the wrapped region, then write the range of the
+     * checksum table that changed, each at its file position offset by the
+     * given offset.
+     * <p>
+     * The content is marked clean when it is written, before the checksum
+     * table is written, so the range of the table that changed is kept until
+     * it is written. If the table write fails, the range is written by the
+     * next write along with any new changes.
+     * 
+     * @param fileChannel
+     *            The file channel to write to.
+     * @param offset
+     *            An offset to add to the file positions.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public void write(FileChannel fileChannel, int offset) throws IOException {
+        int first = -1;
+        int last = -1;
+        Dirtyable dirtyable = region.getDirtyable();
+        if (dirtyable instanceof SpanCleanable) {
+            SpanCleanable spans = (SpanCleanable) dirtyable;
+            for (int start = spans.nextDirty(0), end; start != -1; start = spans.nextDirty(end)) {
+                end = spans.nextClean(start);
+                for (int block = Math.max(start >>> shift, last + 1), stop = (end - 1) >>> shift; block <= stop; block++) {
+                    checksums.putInt(block * 4, checksum(block));
+                    if (first == -1) {
+                        first = block;
+                    }
+                    last = block;
+                }
+            }
+        } else if (blockCount != 0) {
+            for (int block = 0; block < blockCount; block++) {
+                checksums.putInt(block * 4, checksum(block));
+            }
+            first = 0;
+            last = blockCount - 1;
+        }
+        if (first != -1) {
+            if (firstUnwritten == -1 || first < firstUnwritten) {
+                firstUnwritten = first;
+            }
+            if (last > lastUnwritten) {
+                lastUnwritten = last;
+            }
+        }
+        region.write(fileChannel, offset);
+        if (firstUnwritten != -1) {
+            ByteBuffer changed = checksums.duplicate();
+            changed.limit((lastUnwritten + 1) * 4);
+            changed.position(firstUnwritten * 4);
+            BasicWritable.write(fileChannel, changed, checksumPosition + offset + firstUnwritten * 4);
+            firstUnwritten = -1;
+            lastUnwritten = -1;
+        }
+    }
+
+    /**
+     * Read the content with the wrapped region and the checksum table from
+     * the given file channel, each at its file position offset by the given
+     * offset, and verify the checksum of every block.
+     * 
+     * @param fileChannel
+     *            The file channel to read from.
+     * @param offset
+     *            An offset to add to the file positions.
+     * @throws ChecksumException
+     *             If the content of a block does not match its checksum.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public void load(FileChannel fileChannel, int offset) throws IOException {
+        region.load(fileChannel, offset);
+        checksums.clear();
+        BasicWritable.read(fileChannel, checksums, checksumPosition + offset);
+        checksums.clear();
+        firstUnwritten = -1;
+        lastUnwritten = -1;
+        int block = verify();
+        if (block != -1) {
+            throw new ChecksumException(block);
+        }
+    }
+
+    /**
+     * Mark the entire content as clean after it has been read by a caller other
+     * than this region. The checksum table is not read or verified.
+     */
+    public void loaded() {
+        region.loaded();
+    }
+
+    /**
+     * Verify the content against the checksum table in memory.
+     * 
+     * @return The index of the first block whose content does not match its
+     *         checksum or -1 if every block matches.
+     */
+    public int verify() {
+        for (int block = 0; block < blockCount; block++) {
+            if (checksums.getInt(block * 4) != checksum(block)) {
+                return block;
+            }
+        }
+        return -1;
+    }
+}
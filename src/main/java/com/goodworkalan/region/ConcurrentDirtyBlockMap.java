@@ -0,0 +1,333 @@
+package com.goodworkalan.region;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe dirty block map that many threads can mark as dirty without
+ * locking. Dirty blocks are tracked in an atomic bit set, so that marking bytes
+ * as dirty is a compare and set of the affected words and does not need to be
+ * performed while holding the region lock. A block size of one tracks
+ * individual bytes.
+ * <p>
+ * A flusher atomically takes the dirty set with
+ * {@link #drainTo(DirtyBlockMap)}, which exchanges each word of the bit set
+ * with zero. A block dirtied concurrently with the drain is either taken by
+ * the drain or remains dirty for the next drain, so that no dirtying is ever
+ * lost. The {@link #write(ByteBuffer, FileChannel, long)} method drains the
+ * dirty set and then writes the drained blocks, restoring them if the write
+ * fails.
+ * <p>
+ * The map is deliberately not a {@link SpanCleanable}. Enumerating the dirty
+ * spans, writing them and then cleaning the map would clear a block dirtied
+ * while the spans were written, and that block would never be written.
+ * {@link BasicWritable}, {@link MappedRegion} and {@link SnapshotWriter}
+ * recognize this map and drain it before they read the dirty bytes. The
+ * {@link #clean()} method discards concurrent dirtying and is only safe when
+ * no other thread is marking the map dirty, as when the content is loaded.
+ * 
+ * @author Alan Gutierrez
+ */
+public class ConcurrentDirtyBlockMap implements Cleanable {
+    /** The length of the buffer. */
+    private final int length;
+
+    /** The base two logarithm of the block size. */
+    private final int shift;
+
+    /** The count of blocks. */
+    private final int blockCount;
+
+    /** The atomic bit set of dirty blocks. */
+    private final AtomicLongArray bits;
+
+    /** The snapshot of dirty blocks used by write. */
+    private final DirtyBlockMap snapshot;
+
+    /**
+     * Construct a concurrent dirty block map that will track the dirty blocks
+     * of a buffer of the given length using blocks of the given size.
+     * 
+     * @param length
+     *            The length of the region to track.
+     * @param blockSize
+     *            The block size, a power of two.
+     * @exception IllegalArgumentException
+     *                If the block size is not a positive power of two.
+     */
+    public ConcurrentDirtyBlockMap(int length, int blockSize) {
+        this.snapshot = new DirtyBlockMap(length, blockSize);
+        this.length = length;
+        this.shift = Integer.numberOfTrailingZeros(blockSize);
+        this.blockCount = (int) (((long) length + blockSize - 1) >>> shift);
+        this.bits = new AtomicLongArray((blockCount + 63) >>> 6);
+    }
+
+    /**
+     * Get the length of the buffer.
+     * 
+     * @return The length of the buffer.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Get the block size.
+     * 
+     * @return The block size.
+     */
+    public int getBlockSize() {
+        return 1 << shift;
+    }
+
+    /**
+     * Atomically set the bits of the given mask in the word at the given
+     * index.
+     * 
+     * @param i
+     *            The word index.
+     * @param mask
+     *            The bits to set.
+     */
+    private void or(int i, long mask) {
+        long word;
+        do {
+            word = bits.get(i);
+            if ((word & mask) == mask) {
+                return;
+            }
+        } while (!bits.compareAndSet(i, word, word | mask));
+    }
+
+    /**
+     * Atomically clear the bits of the given mask in the word at the given
+     * index.
+     * 
+     * @param i
+     *            The word index.
+     * @param mask
+     *            The bits to clear.
+     */
+    private void andNot(int i, long mask) {
+        long word;
+        do {
+            word = bits.get(i);
+            if ((word & mask) == 0L) {
+                return;
+            }
+        } while (!bits.compareAndSet(i, word, word & ~mask));
+    }
+
+    /**
+     * Set or clear the bits of the blocks from the given from block index up
+     * to but not including the given to block index.
+     * 
+     * @param from
+     *            The first block index.
+     * @param to
+     *            The block index after the last block index.
+     * @param dirty
+     *            True to set the bits, false to clear them.
+     */
+    private void mark(int from, int to, boolean dirty) {
+        int fromWord = from >>> 6;
+        int toWord = (to - 1) >>> 6;
+        long fromMask = -1L << from;
+        long toMask = -1L >>> -to;
+        for (int i = fromWord; i <= toWord; i++) {
+            long mask = -1L;
+            if (i == fromWord) {
+                mask &= fromMask;
+            }
+            if (i == toWord) {
+                mask &= toMask;
+            }
+            if (dirty) {
+                or(i, mask);
+            } else {
+                andNot(i, mask);
+            }
+        }
+    }
+
+    /**
+     * Mark the entire buffer as dirty.
+     */
+    public void dirty() {
+        dirty(0, getLength());
+    }
+
+    /**
+     * Mark as dirty every block that contains any of the given length of bytes
+     * at the given offset.
+     * 
+     * @param offset
+     *            The offset of the dirty region.
+     * @param length
+     *            The length of the dirty region.
+     */
+    public void dirty(int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        if (start < 0) {
+            throw new IllegalStateException();
+        }
+
+        if (end > getLength()) {
+            throw new IllegalStateException();
+        }
+
+        if (start != end) {
+            mark(start >>> shift, ((end - 1) >>> shift) + 1, true);
+        }
+    }
+
+    /**
+     * Mark as clean every block that is entirely covered by the given length
+     * of bytes at the given offset. Blocks that are only partially covered
+     * remain dirty.
+     * 
+     * @param offset
+     *            The offset of the clean region.
+     * @param length
+     *            The length of the clean region.
+     */
+    public void clean(int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        if (start < 0) {
+            throw new IllegalStateException();
+        }
+
+        if (end > getLength()) {
+            throw new IllegalStateException();
+        }
+
+        int from = (int) (((long) start + getBlockSize() - 1) >>> shift);
+        int to = end == getLength() ? blockCount : end >>> shift;
+        if (from < to) {
+            mark(from, to, false);
+        }
+    }
+
+    /**
+     * Determine whether any block that contains any of the given length of
+     * bytes at the given offset is dirty.
+     * 
+     * @param offset
+     *            The offset of the region.
+     * @param length
+     *            The length of the region.
+     * @return True if any block of the region is dirty.
+     */
+    public boolean isDirty(int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        if (start < 0) {
+            throw new IllegalStateException();
+        }
+
+        if (end > getLength()) {
+            throw new IllegalStateException();
+        }
+
+        for (int block = start >>> shift, stop = (end - 1) >>> shift; start != end && block <= stop; block++) {
+            if ((bits.get(block >>> 6) & (1L << block)) != 0L) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Mark the entire buffer as clean, discarding any concurrent dirtying.
+     */
+    public void clean() {
+        for (int i = 0, stop = bits.length(); i < stop; i++) {
+            bits.set(i, 0L);
+        }
+    }
+
+    /**
+     * Atomically take the dirty blocks of this map, adding them to the given
+     * dirty block map and leaving them clean in this map. The given map must
+     * have the same length and block size as this map.
+     * 
+     * @param dirtyBlockMap
+     *            The dirty block map that receives the dirty blocks.
+     */
+    public void drainTo(DirtyBlockMap dirtyBlockMap) {
+        if (dirtyBlockMap.getLength() != getLength() || dirtyBlockMap.getBlockSize() != getBlockSize()) {
+            throw new IllegalArgumentException();
+        }
+        for (int i = 0, stop = bits.length(); i < stop; i++) {
+            if (bits.get(i) != 0L) {
+                dirtyBlockMap.bits[i] |= bits.getAndSet(i, 0L);
+            }
+        }
+    }
+
+    /**
+     * Atomically take the dirty blocks of this map, returning them in a new
+     * dirty block map and leaving them clean in this map.
+     * 
+     * @return A dirty block map of the drained blocks.
+     */
+    public DirtyBlockMap drain() {
+        DirtyBlockMap drained = new DirtyBlockMap(getLength(), getBlockSize());
+        drainTo(drained);
+        return drained;
+    }
+
+    /**
+     * Mark as dirty the dirty blocks of the given dirty block map, restoring
+     * blocks that were drained but could not be written. The given map must
+     * have the same length and block size as this map.
+     * 
+     * @param dirtyBlockMap
+     *            The dirty block map whose dirty blocks are restored.
+     */
+    public void restore(DirtyBlockMap dirtyBlockMap) {
+        if (dirtyBlockMap.getLength() != getLength() || dirtyBlockMap.getBlockSize() != getBlockSize()) {
+            throw new IllegalArgumentException();
+        }
+        for (int i = 0, stop = bits.length(); i < stop; i++) {
+            if (dirtyBlockMap.bits[i] != 0L) {
+                or(i, dirtyBlockMap.bits[i]);
+            }
+        }
+    }
+
+    /**
+     * Atomically take the dirty blocks of this map and write them from the
+     * given byte buffer to the given file channel at the given file position.
+     * Adjacent dirty blocks are written with a single write. If the write
+     * fails, the drained blocks are marked dirty again. Concurrent writes are
+     * serialized, but concurrent dirtying is not blocked.
+     * 
+     * @param byteBuffer
+     *            The byte buffer.
+     * @param fileChannel
+     *            The file channel.
+     * @param position
+     *            The file position.
+     * @throws IOException
+     *             If an I/O error occurs while writing the byte buffer.
+     */
+    public synchronized void write(ByteBuffer byteBuffer, FileChannel fileChannel, long position) throws IOException {
+        drainTo(snapshot);
+        boolean written = false;
+        try {
+            snapshot.write(byteBuffer, fileChannel, position);
+            written = true;
+        } finally {
+            if (!written) {
+                restore(snapshot);
+                snapshot.clean();
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.goodworkalan.region;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An allocator that allocates direct byte buffers, so that the JDK does not
+ * copy the region content into a temporary direct byte buffer on each write.
+ * Freed byte buffers are left to the garbage collector.
+ * 
+ * @author Alan Gutierrez
+ */
+public class DirectBufferAllocator implements BufferAllocator {
+    /**
+     * Allocate a direct byte buffer with the given capacity.
+     * 
+     * @param capacity
+     *            The capacity of the byte buffer.
+     * @return A new direct byte buffer.
+     */
+    public ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Does nothing.
+     * 
+     * @param byteBuffer
+     *            The byte buffer to free.
+     */
+    public void free(ByteBuffer byteBuffer) {
+    }
+}
@@ -0,0 +1,322 @@
+package com.goodworkalan.region;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Dirty regions of a page tracked at the granularity of fixed size blocks
+ * using a bit set of dirty blocks. Marking any byte in a block as dirty marks
+ * the entire block as dirty, so writes are aligned to block boundaries and
+ * adjacent dirty blocks are written together.
+ * <p>
+ * This is an alternative to {@link DirtyByteMap} for large buffers where
+ * tracking exact byte intervals costs more than writing a few extra clean
+ * bytes, particularly when the underlying device writes whole blocks anyway.
+ * The block size must be a power of two.
+ * 
+ * @author Alan Gutierrez
+ */
+public class DirtyBlockMap implements SpanCleanable {
+    /** The length of the buffer. */
+    private final int length;
+
+    /** The base two logarithm of the block size. */
+    private final int shift;
+
+    /** The count of blocks. */
+    private final int blockCount;
+
+    /** The bit set of dirty blocks. */
+    final long[] bits;
+
+    /**
+     * Construct a dirty block map that will track the dirty blocks of a buffer
+     * of the given length using blocks of the given size.
+     * 
+     * @param length
+     *            The length of the region to track.
+     * @param blockSize
+     *            The block size, a power of two.
+     * @exception IllegalArgumentException
+     *                If the block size is not a positive power of two.
+     */
+    public DirtyBlockMap(int length, int blockSize) {
+        if (blockSize <= 0 || (blockSize & (blockSize - 1)) != 0) {
+            throw new IllegalArgumentException();
+        }
+        this.length = length;
+        this.shift = Integer.numberOfTrailingZeros(blockSize);
+        this.blockCount = (int) (((long) length + blockSize - 1) >>> shift);
+        this.bits = new long[(blockCount + 63) >>> 6];
+    }
+
+    /**
+     * Get the length of the buffer.
+     * 
+     * @return The length of the buffer.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Get the block size.
+     * 
+     * @return The block size.
+     */
+    public int getBlockSize() {
+        return 1 << shift;
+    }
+
+    /**
+     * Set the bits of the blocks from the given from block index up to but
+     * not including the given to block index.
+     * 
+     * @param from
+     *            The first block index.
+     * @param to
+     *            The block index after the last block index.
+     */
+    private void set(int from, int to) {
+        int fromWord = from >>> 6;
+        int toWord = (to - 1) >>> 6;
+        long fromMask = -1L << from;
+        long toMask = -1L >>> -to;
+        if (fromWord == toWord) {
+            bits[fromWord] |= fromMask & toMask;
+        } else {
+            bits[fromWord] |= fromMask;
+            for (int i = fromWord + 1; i < toWord; i++) {
+                bits[i] = -1L;
+            }
+            bits[toWord] |= toMask;
+        }
+    }
+
+    /**
+     * Clear the bits of the blocks from the given from block index up to but
+     * not including the given to block index.
+     * 
+     * @param from
+     *            The first block index.
+     * @param to
+     *            The block index after the last block index.
+     */
+    private void clear(int from, int to) {
+        int fromWord = from >>> 6;
+        int toWord = (to - 1) >>> 6;
+        long fromMask = -1L << from;
+        long toMask = -1L >>> -to;
+        if (fromWord == toWord) {
+            bits[fromWord] &= ~(fromMask & toMask);
+        } else {
+            bits[fromWord] &= ~fromMask;
+            for (int i = fromWord + 1; i < toWord; i++) {
+                bits[i] = 0L;
+            }
+            bits[toWord] &= ~toMask;
+        }
+    }
+
+    /**
+     * Return the index of the first dirty block at or after the given block
+     * index, or -1 if there are no dirty blocks at or after the block index.
+     * 
+     * @param from
+     *            The block index to search from.
+     * @return The index of the next dirty block or -1.
+     */
+    int nextSetBlock(int from) {
+        if (from >= blockCount) {
+            return -1;
+        }
+        int i = from >>> 6;
+        long word = bits[i] & (-1L << from);
+        for (;;) {
+            if (word != 0) {
+                return (i << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++i == bits.length) {
+                return -1;
+            }
+            word = bits[i];
+        }
+    }
+
+    /**
+     * Return the index of the first clean block at or after the given block
+     * index, or the count of blocks if every block from the given block index
+     * on is dirty.
+     * 
+     * @param from
+     *            The block index to search from.
+     * @return The index of the next clean block or the count of blocks.
+     */
+    int nextClearBlock(int from) {
+        if (from >= blockCount) {
+            return blockCount;
+        }
+        int i = from >>> 6;
+        long word = ~bits[i] & (-1L << from);
+        for (;;) {
+            if (word != 0) {
+                int block = (i << 6) + Long.numberOfTrailingZeros(word);
+                return block < blockCount ? block : blockCount;
+            }
+            if (++i == bits.length) {
+                return blockCount;
+            }
+            word = ~bits[i];
+        }
+    }
+
+    /**
+     * Get the offset of the first dirty byte at or after the given offset, or
+     * -1 if there are no dirty bytes at or after the given offset. Every byte
+     * of a dirty block is reported as dirty.
+     * 
+     * @param offset
+     *            The offset to search from.
+     * @return The offset of the next dirty byte or -1.
+     */
+    public int nextDirty(int offset) {
+        if (offset >= getLength()) {
+            return -1;
+        }
+        int block = nextSetBlock(offset >>> shift);
+        if (block == -1) {
+            return -1;
+        }
+        int start = block << shift;
+        return start > offset ? start : offset;
+    }
+
+    /**
+     * Get the offset of the first clean byte at or after the given offset, or
+     * the length of the buffer if every byte from the given offset to the end
+     * of the buffer is dirty. Every byte of a dirty block is reported as
+     * dirty.
+     * 
+     * @param offset
+     *            The offset to search from.
+     * @return The offset of the next clean byte or the buffer length.
+     */
+    public int nextClean(int offset) {
+        if (offset >= getLength()) {
+            return getLength();
+        }
+        int block = offset >>> shift;
+        if (nextSetBlock(block) != block) {
+            return offset;
+        }
+        int clear = nextClearBlock(block);
+        return clear == blockCount ? getLength() : clear << shift;
+    }
+
+    /**
+     * Mark the entire buffer as dirty.
+     */
+    public void dirty() {
+        dirty(0, getLength());
+    }
+
+    /**
+     * Mark as dirty every block that contains any of the given length of bytes
+     * at the given offset.
+     * 
+     * @param offset
+     *            The offset of the dirty region.
+     * @param length
+     *            The length of the dirty region.
+     */
+    public void dirty(int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        if (start < 0) {
+            throw new IllegalStateException();
+        }
+
+        if (end > getLength()) {
+            throw new IllegalStateException();
+        }
+
+        if (start != end) {
+            set(start >>> shift, ((end - 1) >>> shift) + 1);
+        }
+    }
+
+    /**
+     * Mark as clean every block that is entirely covered by the given length
+     * of bytes at the given offset. Blocks that are only partially covered
+     * remain dirty, since they may contain other dirty bytes. The partial
+     * block at the end of the buffer is treated as entirely covered if the
+     * clean region extends to the end of the buffer.
+     * 
+     * @param offset
+     *            The offset of the clean region.
+     * @param length
+     *            The length of the clean region.
+     */
+    public void clean(int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        if (start < 0) {
+            throw new IllegalStateException();
+        }
+
+        if (end > getLength()) {
+            throw new IllegalStateException();
+        }
+
+        int from = (int) (((long) start + getBlockSize() - 1) >>> shift);
+        int to = end == getLength() ? blockCount : end >>> shift;
+        if (from < to) {
+            clear(from, to);
+        }
+    }
+
+    /**
+     * Mark the entire buffer as clean.
+     */
+    public void clean() {
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = 0L;
+        }
+    }
+
+    /**
+     * Write the blocks marked as dirty in this dirty block map to the given
+     * byte buffer to the given file channel at the given file position.
+     * Adjacent dirty blocks are written with a single write.
+     * 
+     * @param byteBuffer
+     *            The byte buffer.
+     * @param fileChannel
+     *            The file channel.
+     * @param position
+     *            The file position.
+     * @throws IOException
+     *             If an I/O error occurs while writing the byte buffer.
+     */
+    public void write(ByteBuffer byteBuffer, FileChannel fileChannel,
+            long position) throws IOException {
+        int block = nextSetBlock(0);
+        while (block != -1) {
+            int clear = nextClearBlock(block);
+            int start = block << shift;
+            int end = clear == blockCount ? getLength() : clear << shift;
+
+            byteBuffer.limit(end);
+            byteBuffer.position(start);
+
+            fileChannel.write(byteBuffer, position + start);
+
+            block = nextSetBlock(clear);
+        }
+
+        byteBuffer.limit(byteBuffer.capacity());
+
+        clean();
+    }
+}
@@ -15,13 +15,16 @@ import java.util.TreeMap;
  * 
  * @author Alan Gutierrez
  */
-public class DirtyByteMap implements Cleanable {
+public class DirtyByteMap implements SpanCleanable {
     /** The map of dirty regions offsets to count of dirty bytes. */
     final SortedMap<Integer, Integer> dirtied;
 
     /** The length of the buffer. */
     private final int length;
 
+    /** The count of merge iterations since the map was last entirely clean. */
+    private int mergeCount;
+
     /**
      * Construct a dirty region map that will track the dirty regions of the
      * byte content at the given file position.
@@ -72,20 +75,28 @@ public class DirtyByteMap implements Cleanable {
             throw new IllegalStateException();
         }
 
+        if (start == end) {
+            return;
+        }
+
         INVALIDATE: for (;;) {
             Iterator<Map.Entry<Integer, Integer>> entries = dirtied.entrySet().iterator();
             while (entries.hasNext()) {
                 Map.Entry<Integer, Integer> entry = entries.next();
-                if (start < entry.getKey() && end >= entry.getKey()) {
+                int key = entry.getKey();
+                int value = entry.getValue();
+                if (start < key && end >= key) {
                     entries.remove();
-                    end = end > entry.getValue() ? end : entry.getValue();
+                    end = end > value ? end : value;
+                    mergeCount++;
                     continue INVALIDATE;
-                } else if (entry.getKey() <= start && start <= entry.getValue()) {
+                } else if (key <= start && start <= value) {
                     entries.remove();
-                    start = entry.getKey();
-                    end = end > entry.getValue() ? end : entry.getValue();
+                    start = key;
+                    end = end > value ? end : value;
+                    mergeCount++;
                     continue INVALIDATE;
-                } else if (entry.getValue() < start) {
+                } else if (key > end) {
                     break;
                 }
             }
@@ -119,23 +130,31 @@ public class DirtyByteMap implements Cleanable {
                     .iterator();
             while (entries.hasNext()) {
                 Map.Entry<Integer, Integer> entry = entries.next();
-                if (start <= entry.getKey() && end > entry.getKey()) {
+                int key = entry.getKey();
+                int value = entry.getValue();
+                if (start <= key && end > key) {
                     entries.remove();
-                    if (end < entry.getValue()) {
-                        dirtied.put(end, entry.getValue());
+                    if (end < value) {
+                        dirtied.put(end, value);
                     }
+                    mergeCount++;
                     continue INVALIDATE;
-                } else if (entry.getKey() < start && start < entry.getValue()) {
+                } else if (key < start && start < value) {
                     entries.remove();
-                    dirtied.put(entry.getKey(), start);
-                    if (end < entry.getValue()) {
-                        dirtied.put(end, entry.getValue());
+                    dirtied.put(key, start);
+                    if (end < value) {
+                        dirtied.put(end, value);
                     }
+                    mergeCount++;
                     continue INVALIDATE;
-                } else if (entry.getValue() < start) {
+                } else if (key >= end) {
                     break;
                 }
             }
+            break;
+        }
+        if (dirtied.isEmpty()) {
+            mergeCount = 0;
         }
     }
 
@@ -144,6 +163,55 @@ public class DirtyByteMap implements Cleanable {
      */
     public void clean() {
         dirtied.clear();
+        mergeCount = 0;
+    }
+
+    /**
+     * Get the count of times the search for overlapping dirty regions has
+     * restarted after combining or splitting a region since the map was last
+     * marked entirely clean. A high count relative to the count of dirty
+     * regions indicates a fragmented map.
+     * 
+     * @return The count of merge iterations.
+     */
+    public int getMergeCount() {
+        return mergeCount;
+    }
+
+    /**
+     * Get the offset of the first dirty byte at or after the given offset, or
+     * -1 if there are no dirty bytes at or after the given offset.
+     * 
+     * @param offset
+     *            The offset to search from.
+     * @return The offset of the next dirty byte or -1.
+     */
+    public int nextDirty(int offset) {
+        if (nextClean(offset) != offset) {
+            return offset;
+        }
+        SortedMap<Integer, Integer> after = dirtied.tailMap(offset + 1);
+        return after.isEmpty() ? -1 : after.firstKey();
+    }
+
+    /**
+     * Get the offset of the first clean byte at or after the given offset, or
+     * the length of the buffer if every byte from the given offset to the end
+     * of the buffer is dirty.
+     * 
+     * @param offset
+     *            The offset to search from.
+     * @return The offset of the next clean byte or the buffer length.
+     */
+    public int nextClean(int offset) {
+        SortedMap<Integer, Integer> before = dirtied.headMap(offset + 1);
+        if (!before.isEmpty()) {
+            int end = dirtied.get(before.lastKey());
+            if (end > offset) {
+                return end;
+            }
+        }
+        return offset;
     }
 
     /**
@@ -0,0 +1,325 @@
+package com.goodworkalan.region;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Dirty regions of a page as a sorted set of intervals kept in parallel arrays
+ * of primitive start and end offsets. This is an alternative to
+ * {@link DirtyByteMap} that does not box offsets or allocate an entry for each
+ * dirty region.
+ * <p>
+ * The intervals are half open, sorted and never touch or overlap. Inserting,
+ * merging and splitting intervals locate the affected intervals with a binary
+ * search and shift the intervals that follow with an array copy. The arrays
+ * grow when full, so once the set has grown to the number of intervals a page
+ * is likely to contain, marking bytes as dirty or clean does not allocate.
+ * 
+ * @author Alan Gutierrez
+ */
+public class DirtyIntervalSet implements SpanCleanable {
+    /** The initial capacity of the interval arrays. */
+    private final static int INITIAL_CAPACITY = 8;
+
+    /** The length of the buffer. */
+    private final int length;
+
+    /** The inclusive start offsets of the dirty intervals. */
+    private int[] starts;
+
+    /** The exclusive end offsets of the dirty intervals. */
+    private int[] ends;
+
+    /** The count of dirty intervals. */
+    int size;
+
+    /** The count of intervals merged since the set was last entirely clean. */
+    private int mergeCount;
+
+    /**
+     * Construct a dirty interval set that will track the dirty regions of a
+     * buffer of the given length.
+     * 
+     * @param length
+     *            The length of the region to track.
+     */
+    public DirtyIntervalSet(int length) {
+        this.length = length;
+        this.starts = new int[INITIAL_CAPACITY];
+        this.ends = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Get the length of the buffer.
+     * 
+     * @return The length of the buffer.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Find the index of the first interval whose end offset is greater than or
+     * equal to the given offset, or the count of intervals if there is no such
+     * interval.
+     * 
+     * @param offset
+     *            The offset.
+     * @return The index of the first interval ending at or after the offset.
+     */
+    private int endingAtOrAfter(int offset) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ends[mid] < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Find the index of the first interval whose start offset is greater than
+     * the given offset, or the count of intervals if there is no such
+     * interval.
+     * 
+     * @param offset
+     *            The offset.
+     * @return The index of the first interval starting after the offset.
+     */
+    private int startingAfter(int offset) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Replace the intervals from the given low index up to but not including
+     * the given high index with the given count of new intervals, shifting the
+     * intervals that follow and growing the arrays if necessary. The caller
+     * assigns the start and end offsets of the new intervals.
+     * 
+     * @param low
+     *            The index of the first interval to replace.
+     * @param high
+     *            The index after the last interval to replace.
+     * @param count
+     *            The count of new intervals.
+     */
+    private void splice(int low, int high, int count) {
+        int newSize = size - (high - low) + count;
+        if (newSize > starts.length) {
+            int capacity = starts.length * 2;
+            while (capacity < newSize) {
+                capacity *= 2;
+            }
+            int[] newStarts = new int[capacity];
+            int[] newEnds = new int[capacity];
+            System.arraycopy(starts, 0, newStarts, 0, size);
+            System.arraycopy(ends, 0, newEnds, 0, size);
+            starts = newStarts;
+            ends = newEnds;
+        }
+        if (high != low + count) {
+            System.arraycopy(starts, high, starts, low + count, size - high);
+            System.arraycopy(ends, high, ends, low + count, size - high);
+        }
+        size = newSize;
+    }
+
+    /**
+     * Mark the entire buffer as dirty.
+     */
+    public void dirty() {
+        dirty(0, getLength());
+    }
+
+    /**
+     * Mark as dirty the given length of bytes at the given offset.
+     * <p>
+     * If the specified region is overlaps or abuts other dirty regions, the
+     * regions are combined to create a single dirty region.
+     * 
+     * @param offset
+     *            The offset of the dirty region.
+     * @param length
+     *            The length of the dirty region.
+     */
+    public void dirty(int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        if (start < 0) {
+            throw new IllegalStateException();
+        }
+
+        if (end > getLength()) {
+            throw new IllegalStateException();
+        }
+
+        if (start == end) {
+            return;
+        }
+
+        int low = endingAtOrAfter(start);
+        int high = startingAfter(end);
+        if (low == high) {
+            splice(low, low, 1);
+        } else {
+            if (starts[low] < start) {
+                start = starts[low];
+            }
+            if (ends[high - 1] > end) {
+                end = ends[high - 1];
+            }
+            mergeCount += high - low;
+            splice(low, high, 1);
+        }
+        starts[low] = start;
+        ends[low] = end;
+    }
+
+    /**
+     * Mark as clean the bytes in the byte buffer starting at the given offset
+     * and extending for the given length.
+     * <p>
+     * Dirty regions that are partially covered by the clean region are
+     * truncated, and a dirty region that contains the clean region is split
+     * in two.
+     * 
+     * @param offset
+     *            The offset of the clean region.
+     * @param length
+     *            The length of the clean region.
+     */
+    public void clean(int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        if (start < 0) {
+            throw new IllegalStateException();
+        }
+
+        if (end > getLength()) {
+            throw new IllegalStateException();
+        }
+
+        if (start == end) {
+            return;
+        }
+
+        int low = endingAtOrAfter(start + 1);
+        int high = startingAfter(end - 1);
+        if (low == high) {
+            return;
+        }
+
+        int before = starts[low];
+        int after = ends[high - 1];
+        int count = (before < start ? 1 : 0) + (after > end ? 1 : 0);
+        mergeCount += high - low;
+        splice(low, high, count);
+        if (size == 0) {
+            mergeCount = 0;
+        }
+        if (before < start) {
+            starts[low] = before;
+            ends[low] = start;
+            low++;
+        }
+        if (after > end) {
+            starts[low] = end;
+            ends[low] = after;
+        }
+    }
+
+    /**
+     * Mark the entire buffer as clean.
+     */
+    public void clean() {
+        size = 0;
+        mergeCount = 0;
+    }
+
+    /**
+     * Get the count of dirty intervals that have been merged into a new dirty
+     * interval, or truncated or split by a clean, since the set was last
+     * entirely clean. A high count relative to the count of dirty intervals
+     * indicates a fragmented set.
+     * 
+     * @return The count of merged intervals.
+     */
+    public int getMergeCount() {
+        return mergeCount;
+    }
+
+    /**
+     * Get the offset of the first dirty byte at or after the given offset, or
+     * -1 if there are no dirty bytes at or after the given offset.
+     * 
+     * @param offset
+     *            The offset to search from.
+     * @return The offset of the next dirty byte or -1.
+     */
+    public int nextDirty(int offset) {
+        int i = endingAtOrAfter(offset + 1);
+        if (i == size) {
+            return -1;
+        }
+        return starts[i] > offset ? starts[i] : offset;
+    }
+
+    /**
+     * Get the offset of the first clean byte at or after the given offset, or
+     * the length of the buffer if every byte from the given offset to the end
+     * of the buffer is dirty.
+     * 
+     * @param offset
+     *            The offset to search from.
+     * @return The offset of the next clean byte or the buffer length.
+     */
+    public int nextClean(int offset) {
+        int i = endingAtOrAfter(offset + 1);
+        if (i == size || starts[i] > offset) {
+            return offset;
+        }
+        return ends[i];
+    }
+
+    /**
+     * Write the bytes marked as dirty in this dirty interval set to the given
+     * byte buffer to the given file channel at the given file position.
+     * 
+     * @param byteBuffer
+     *            The byte buffer.
+     * @param fileChannel
+     *            The file channel.
+     * @param position
+     *            The file position.
+     * @throws IOException
+     *             If an I/O error occurs while writing the byte buffer.
+     */
+    public void write(ByteBuffer byteBuffer, FileChannel fileChannel,
+            long position) throws IOException {
+        for (int i = 0; i < size; i++) {
+            byteBuffer.limit(ends[i]);
+            byteBuffer.position(starts[i]);
+
+            fileChannel.write(byteBuffer, position + starts[i]);
+        }
+
+        byteBuffer.limit(byteBuffer.capacity());
+
+        clean();
+    }
+}
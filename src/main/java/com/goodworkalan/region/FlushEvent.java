@@ -0,0 +1,53 @@
+package com.goodworkalan.region;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Flight Recorder event that times the write of the dirty content of a
+ * region, begun before the first write and committed after the last, so that
+ * its duration is the time taken to write. Events are created by
+ * {@link Instrumentation#beginFlush()}.
+ * 
+ * @author Alan Gutierrez
+ */
+@Name("com.goodworkalan.region.Flush")
+@Label("Region Flush")
+@Category("Region")
+@Description("A region wrote its dirty content to disk")
+final class FlushEvent extends Event {
+    /** The class of the region. */
+    @Label("Region Class")
+    Class<?> regionClass;
+
+    /** The file position of the region. */
+    @Label("Position")
+    long position;
+
+    /** The count of dirty spans written. */
+    @Label("Spans")
+    int spanCount;
+
+    /** The count of bytes written. */
+    @Label("Bytes")
+    @DataAmount
+    long byteCount;
+
+    /** The count of calls to write the file channel. */
+    @Label("Writes")
+    int writeCount;
+
+    /** The count of merge iterations of the cleanable. */
+    @Label("Merges")
+    int mergeCount;
+
+    /** The region listener when the flush began or null, not recorded. */
+    transient RegionListener listener;
+
+    /** The time in nanoseconds the flush began if there is a listener. */
+    transient long started;
+}
@@ -0,0 +1,240 @@
+package com.goodworkalan.region;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes dirty regions submitted by many threads to a file channel in batches
+ * on a single flusher thread, forcing the file channel to disk once per batch.
+ * This is group commit: the cost of forcing the file channel is shared by every
+ * region in the batch.
+ * <p>
+ * A region is submitted with {@link #submit(Writable)}, which returns a future
+ * that completes when the region has been written and forced to disk. A batch
+ * is flushed when it reaches the batch size or when its first region has waited
+ * for the maximum latency. The regions of a batch are written in the order of
+ * their file positions, each while holding the region lock.
+ * <p>
+ * The count of submitted regions that have not yet been flushed is limited.
+ * When the limit is reached, submitting threads block until the flusher thread
+ * catches up.
+ * <p>
+ * The flusher is a runnable that performs the flushing. It can be run by a
+ * dedicated thread or an executor, and runs until it is shut down. If the
+ * thread running the flusher is interrupted, the flusher shuts down and fails
+ * every region that has not been flushed.
+ * 
+ * @author Alan Gutierrez
+ */
+public class Flusher implements Runnable {
+    /** Orders flush requests by the file position of their region. */
+    private final static Comparator<Request> POSITION = new Comparator<Request>() {
+        public int compare(Request left, Request right) {
+            long a = left.writable.getPosition();
+            long b = right.writable.getPosition();
+            return a < b ? -1 : a == b ? 0 : 1;
+        }
+    };
+
+    /** The file channel to write to. */
+    private final FileChannel fileChannel;
+
+    /** The maximum count of regions in a batch. */
+    private final int batchSize;
+
+    /** The maximum time in milliseconds a region waits for its batch. */
+    private final long maxLatency;
+
+    /** The permits for submitted regions that have not yet been flushed. */
+    private final Semaphore pending;
+
+    /** The queue of submitted flush requests. */
+    private final BlockingQueue<Request> queue;
+
+    /** Guards the shutdown flag so that no region is queued after shutdown. */
+    private final Object shutdownLock;
+
+    /** Whether the flusher has been shut down. */
+    private volatile boolean shutdown;
+
+    /**
+     * A region submitted for flushing and its flush future.
+     */
+    private final static class Request {
+        /** The region to write. */
+        public final Writable writable;
+
+        /** The flush future. */
+        public final CompletableFuture<Void> future;
+
+        /**
+         * Create a flush request.
+         * 
+         * @param writable
+         *            The region to write.
+         */
+        public Request(Writable writable) {
+            this.writable = writable;
+            this.future = new CompletableFuture<Void>();
+        }
+    }
+
+    /**
+     * Create a flusher that writes regions to the given file channel in
+     * batches of up to the given batch size, waiting at most the given maximum
+     * latency for a batch to fill, and allowing at most the given count of
+     * submitted regions to wait to be flushed.
+     * 
+     * @param fileChannel
+     *            The file channel to write to.
+     * @param batchSize
+     *            The maximum count of regions in a batch.
+     * @param maxLatency
+     *            The maximum time in milliseconds a region waits for its
+     *            batch to fill.
+     * @param capacity
+     *            The maximum count of submitted regions waiting to be flushed.
+     */
+    public Flusher(FileChannel fileChannel, int batchSize, long maxLatency, int capacity) {
+        if (batchSize < 1 || capacity < 1 || maxLatency < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.fileChannel = fileChannel;
+        this.batchSize = batchSize;
+        this.maxLatency = maxLatency;
+        this.pending = new Semaphore(capacity);
+        this.queue = new LinkedBlockingQueue<Request>();
+        this.shutdownLock = new Object();
+    }
+
+    /**
+     * Submit the given region to be written and forced to disk, blocking if
+     * the count of regions waiting to be flushed is at capacity.
+     * 
+     * @param writable
+     *            The region to write.
+     * @return A future that completes when the region is on disk.
+     * @throws InterruptedException
+     *             If the thread is interrupted while waiting for capacity.
+     * @exception IllegalStateException
+     *                If the flusher has been shut down.
+     */
+    public CompletableFuture<Void> submit(Writable writable) throws InterruptedException {
+        if (shutdown) {
+            throw new IllegalStateException();
+        }
+        pending.acquire();
+        Request request = new Request(writable);
+        synchronized (shutdownLock) {
+            if (shutdown) {
+                pending.release();
+                throw new IllegalStateException();
+            }
+            queue.add(request);
+        }
+        return request.future;
+    }
+
+    /**
+     * Shut down the flusher. Regions already submitted are flushed before the
+     * flusher stops running, but no further regions may be submitted.
+     */
+    public void shutdown() {
+        synchronized (shutdownLock) {
+            shutdown = true;
+        }
+    }
+
+    /**
+     * Flush batches of submitted regions until the flusher is shut down and
+     * every submitted region has been flushed.
+     */
+    public void run() {
+        List<Request> batch = new ArrayList<Request>();
+        try {
+            for (;;) {
+                Request first = queue.poll(maxLatency == 0 ? 1 : maxLatency, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (shutdown && queue.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxLatency);
+                queue.drainTo(batch, batchSize - batch.size());
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Request next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+                flush(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            shutdown();
+            queue.drainTo(batch);
+            for (Request request : batch) {
+                request.future.completeExceptionally(e);
+            }
+            pending.release(batch.size());
+        }
+    }
+
+    /**
+     * Write the regions of the given batch in file position order, force the
+     * file channel to disk and complete the flush futures.
+     * 
+     * @param batch
+     *            The batch of flush requests.
+     */
+    private void flush(List<Request> batch) {
+        Collections.sort(batch, POSITION);
+        List<Request> written = new ArrayList<Request>(batch.size());
+        for (Request request : batch) {
+            Writable writable = request.writable;
+            Instrumentation.lock(writable);
+            try {
+                writable.write(fileChannel, 0);
+                written.add(request);
+            } catch (IOException e) {
+                request.future.completeExceptionally(e);
+            } catch (RuntimeException e) {
+                request.future.completeExceptionally(e);
+            } finally {
+                writable.getLock().unlock();
+            }
+        }
+        try {
+            if (!written.isEmpty()) {
+                fileChannel.force(false);
+            }
+            for (Request request : written) {
+                request.future.complete(null);
+            }
+        } catch (IOException e) {
+            for (Request request : written) {
+                request.future.completeExceptionally(e);
+            }
+        } finally {
+            pending.release(batch.size());
+        }
+    }
+}
@@ -1,13 +1,44 @@
 package com.goodworkalan.region;
 
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * An array of regions in a file representing header fields. The header is
- * written by writing to
+ * An array of regions in a file representing header fields. The header tracks
+ * the dirty bytes of its fields with a {@link DirtyIntervalSet}, so that
+ * writing the header writes only the fields that have been dirtied.
+ * <p>
+ * A header is either guarded by a single lock shared by every field, or by an
+ * array of read/write lock stripes. When striped, each field is guarded by the
+ * stripe assigned to it, so that threads using fields in different stripes do
+ * not contend, and the header lock acquires the write lock of every stripe in
+ * stripe order.
+ * <p>
+ * Fields can be used through the field regions returned by
+ * {@link #get(Object)} or through the typed accessors of the header, which
+ * read and write the header byte buffer at the field offset and mark the
+ * written bytes dirty. The interval set keeps its intervals in primitive
+ * arrays that only grow when a header has more separate dirty spans than it
+ * has had before, so that once a header has been used the typed accessors do
+ * not create any objects. The typed accessors
+ * require the caller to hold the lock of the field, except for the atomic
+ * accessors, which acquire it.
+ * <p>
+ * A concurrent header tracks dirty bytes in eight byte blocks with a
+ * {@link ConcurrentDirtyBlockMap} instead, which can be marked dirty without
+ * a lock. The atomic accessors of a concurrent header update a long that is
+ * aligned to eight bytes in memory with a {@link VarHandle} view of the byte
+ * buffer and do not acquire the field lock at all. A block updated while the
+ * header is written remains dirty and is written again by the next write.
  * 
  * @author Alan Gutierrez
  * 
@@ -15,34 +46,798 @@ import java.util.concurrent.locks.Lock;
  *            The header key type.
  */
 public class Header<K> extends BasicWritable {
+    /** A big-endian view of the byte buffer as longs for atomic updates. */
+    private final static VarHandle BIG_ENDIAN_LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /** A little-endian view of the byte buffer as longs for atomic updates. */
+    private final static VarHandle LITTLE_ENDIAN_LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /** The layout of the header fields. */
+    private final HeaderLayout<K> layout;
+
+    /** Whether each field has been read from disk by field index. */
+    private final boolean[] loadedFields;
+
+    /** The read/write lock stripes or null if the header is not striped. */
+    private final ReadWriteLock[] stripes;
+
+    /** The field regions created so far by field index. */
+    private final AtomicReferenceArray<Region> regions;
+
     /**
-     * The map of keys to a offset/length pairs. The lists are two element lists
-     * containing the field offset and field length.
+     * The offset of the first byte of the byte buffer from an eight byte
+     * boundary in memory, or -1 if the atomic accessors must lock.
      */
-    private final Map<K, List<Integer>> offsets;
+    private final int alignmentOffset;
+
+    /** The allocator of the byte buffer or null if it is not released. */
+    private final BufferAllocator allocator;
+
+    /** Whether the byte buffer has been released. */
+    private boolean released;
 
     /**
-     * Create a header at the given file position that maps the given map of
-     * keys to offsets. The given byte buffer is used to buffer the header
-     * fields before they are written do disk. The given lock is used to lock
-     * the byte buffer for reading and writer.
+     * Create a header at the given file position with the given field layout.
+     * The given byte buffer is used to buffer the header fields before they
+     * are written do disk. The given lock is used to lock the byte buffer for
+     * reading and writer.
      * 
      * @param position
      *            The position of the region on disk.
-     * @param offset
-     *            The map of keys to a offset/length pairs. The lists are two
-     *            element lists containing the field offset and field length.
+     * @param layout
+     *            The layout of the header fields.
+     * @param byteBuffer
+     *            The byte buffer of header content.
+     * @param lock
+     *            A lock used to lock the header for reading and writing.
+     * @param allocator
+     *            The allocator of the byte buffer to free it to when the
+     *            header is released, or null.
+     * @exception IllegalArgumentException
+     *                If the byte buffer is smaller than the header.
+     */
+    Header(long position, HeaderLayout<K> layout, ByteBuffer byteBuffer, Lock lock, BufferAllocator allocator) {
+        this(position, layout, byteBuffer, lock, null, new DirtyIntervalSet(byteBuffer.capacity()), allocator);
+    }
+
+    /**
+     * Create a header at the given file position with the given field layout,
+     * guarding its fields with the given lock stripes. Fields are assigned to
+     * stripes in turn in the order of their offsets. The dirty bytes are
+     * tracked by a synchronized dirty interval set, since fields in different
+     * stripes can be dirtied concurrently.
+     * 
+     * @param position
+     *            The position of the region on disk.
+     * @param layout
+     *            The layout of the header fields.
+     * @param byteBuffer
+     *            The byte buffer of header content.
+     * @param stripes
+     *            The read/write lock stripes.
+     * @param allocator
+     *            The allocator of the byte buffer to free it to when the
+     *            header is released, or null.
+     * @exception IllegalArgumentException
+     *                If the byte buffer is smaller than the header.
+     */
+    Header(long position, HeaderLayout<K> layout, ByteBuffer byteBuffer, ReadWriteLock[] stripes, BufferAllocator allocator) {
+        this(position, layout, byteBuffer, new StripedLock(getWriteLocks(stripes)), stripes, new SynchronizedSpanCleanable(new DirtyIntervalSet(byteBuffer.capacity())), allocator);
+    }
+
+    /**
+     * Create a concurrent header at the given file position with the given
+     * field layout that tracks dirty bytes in eight byte blocks with the
+     * given concurrent dirty block map. The fields are guarded by the given
+     * lock stripes, or by a single new header lock if the stripes are null.
+     * 
+     * @param position
+     *            The position of the region on disk.
+     * @param layout
+     *            The layout of the header fields.
+     * @param byteBuffer
+     *            The byte buffer of header content.
+     * @param stripes
+     *            The read/write lock stripes or null.
+     * @param dirty
+     *            The concurrent dirty block map.
+     * @param allocator
+     *            The allocator of the byte buffer to free it to when the
+     *            header is released, or null.
+     * @exception IllegalArgumentException
+     *                If the byte buffer is smaller than the header.
+     */
+    Header(long position, HeaderLayout<K> layout, ByteBuffer byteBuffer, ReadWriteLock[] stripes, ConcurrentDirtyBlockMap dirty, BufferAllocator allocator) {
+        this(position, layout, byteBuffer, stripes == null ? new ReentrantLock() : new StripedLock(getWriteLocks(stripes)), stripes, dirty, allocator);
+    }
+
+    /**
+     * Create a header at the given file position with the given field layout,
+     * lock, lock stripes and dirty byte tracker.
+     * 
+     * @param position
+     *            The position of the region on disk.
+     * @param layout
+     *            The layout of the header fields.
      * @param byteBuffer
      *            The byte buffer of header content.
      * @param lock
      *            A lock used to lock the header for reading and writing.
+     * @param stripes
+     *            The read/write lock stripes or null if the header is not
+     *            striped.
      * @param cleanable
-     *            The cleanable interface used to record dirtyed bytes in the
-     *            byte buffer.
+     *            The tracker of dirty bytes.
+     * @param allocator
+     *            The allocator of the byte buffer to free it to when the
+     *            header is released, or null.
+     * @exception IllegalArgumentException
+     *                If the byte buffer is smaller than the header.
+     */
+    private Header(long position, HeaderLayout<K> layout, ByteBuffer byteBuffer, Lock lock, ReadWriteLock[] stripes, Cleanable cleanable, BufferAllocator allocator) {
+        super(position, checkCapacity(layout, byteBuffer), lock, cleanable);
+        this.layout = layout;
+        this.loadedFields = new boolean[layout.getFieldCount()];
+        this.stripes = stripes;
+        this.regions = new AtomicReferenceArray<Region>(layout.getFieldCount());
+        this.alignmentOffset = cleanable instanceof ConcurrentDirtyBlockMap ? getAlignmentOffset(byteBuffer) : -1;
+        this.allocator = allocator;
+    }
+
+    /**
+     * Check that the given byte buffer is large enough to hold a header with
+     * the given layout.
+     * 
+     * @param layout
+     *            The layout of the header fields.
+     * @param byteBuffer
+     *            The byte buffer of header content.
+     * @return The byte buffer.
+     * @exception IllegalArgumentException
+     *                If the byte buffer is smaller than the header.
+     */
+    private static ByteBuffer checkCapacity(HeaderLayout<?> layout, ByteBuffer byteBuffer) {
+        if (byteBuffer.capacity() < layout.getLength()) {
+            throw new IllegalArgumentException();
+        }
+        return byteBuffer;
+    }
+
+    /**
+     * Get the offset of the first byte of the given byte buffer from an eight
+     * byte boundary in memory, or -1 if the platform does not keep the
+     * alignment of buffers of its kind stable.
+     * 
+     * @param byteBuffer
+     *            The byte buffer.
+     * @return The alignment offset or -1.
+     */
+    private static int getAlignmentOffset(ByteBuffer byteBuffer) {
+        try {
+            return byteBuffer.alignmentOffset(0, 8);
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get the view of the byte buffer as longs in the byte order of the byte
+     * buffer if the long at the given offset can be updated atomically
+     * without a lock, or null if the atomic accessors must lock.
+     * 
+     * @param offset
+     *            The offset of the long.
+     * @return The long view or null.
+     */
+    private VarHandle getAtomicLongs(int offset) {
+        if (alignmentOffset == -1 || ((alignmentOffset + offset) & 7) != 0) {
+            return null;
+        }
+        return getByteBuffer().order() == ByteOrder.BIG_ENDIAN ? BIG_ENDIAN_LONGS : LITTLE_ENDIAN_LONGS;
+    }
+
+    /**
+     * Get the write locks of the given read/write locks.
+     * 
+     * @param stripes
+     *            The read/write locks.
+     * @return The write locks.
+     */
+    private static Lock[] getWriteLocks(ReadWriteLock[] stripes) {
+        Lock[] locks = new Lock[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            locks[i] = stripes[i].writeLock();
+        }
+        return locks;
+    }
+
+    /**
+     * Get the layout of the header fields.
+     * 
+     * @return The header layout.
+     */
+    public HeaderLayout<K> getLayout() {
+        return layout;
+    }
+
+    /**
+     * Get the index of the field associated with the given key.
+     * 
+     * @param key
+     *            The header field key.
+     * @return The field index.
+     * @exception IllegalArgumentException
+     *                If the key is not a field of the header.
+     */
+    private int index(K key) {
+        int index = layout.indexOf(key);
+        if (index == -1) {
+            throw new IllegalArgumentException();
+        }
+        return index;
+    }
+
+    /**
+     * Get the read/write lock stripe that guards the header field associated
+     * with the given key, or null if the header is not striped. The write lock
+     * of the stripe is the lock of the field region returned by
+     * {@link #get(Object)}. The read lock can be used by threads that only read
+     * the field.
+     * 
+     * @param key
+     *            The header field key.
+     * @return The read/write lock of the field or null.
+     */
+    public ReadWriteLock getReadWriteLock(K key) {
+        return stripes == null ? null : stripes[index(key) % stripes.length];
+    }
+
+    /**
+     * Get the lock that guards the header field at the given field index,
+     * either the header lock or the write lock of the stripe of the field.
+     * 
+     * @param index
+     *            The field index.
+     * @return The field lock.
+     */
+    private Lock getFieldLock(int index) {
+        return stripes == null ? getLock() : stripes[index % stripes.length].writeLock();
+    }
+
+    /**
+     * Get the offset in the header of the field at the given field index,
+     * checking that the field can hold a value of the given size.
+     * 
+     * @param index
+     *            The field index.
+     * @param size
+     *            The size of the value.
+     * @return The field offset.
+     * @exception IllegalArgumentException
+     *                If the field is shorter than the value.
+     */
+    private int getOffset(int index, int size) {
+        if (layout.getLength(index) < size) {
+            throw new IllegalArgumentException();
+        }
+        return layout.getOffset(index);
+    }
+
+    /**
+     * Get the long value at the start of the header field associated with the
+     * given key. The caller must hold the lock of the field.
+     * 
+     * @param key
+     *            The header field key.
+     * @return The long value.
+     * @exception IllegalArgumentException
+     *                If the key is not a field of the header or the field is
+     *                shorter than a long.
+     */
+    public long getLong(K key) {
+        return getByteBuffer().getLong(getOffset(index(key), 8));
+    }
+
+    /**
+     * Set the long value at the start of the header field associated with the
+     * given key and mark it dirty. The caller must hold the lock of the field.
+     * 
+     * @param key
+     *            The header field key.
+     * @param value
+     *            The long value.
+     * @exception IllegalArgumentException
+     *                If the key is not a field of the header or the field is
+     *                shorter than a long.
+     */
+    public void putLong(K key, long value) {
+        int offset = getOffset(index(key), 8);
+        getByteBuffer().putLong(offset, value);
+        dirty(offset, 8);
+    }
+
+    /**
+     * Get the integer value at the start of the header field associated with
+     * the given key. The caller must hold the lock of the field.
+     * 
+     * @param key
+     *            The header field key.
+     * @return The integer value.
+     * @exception IllegalArgumentException
+     *                If the key is not a field of the header or the field is
+     *                shorter than an integer.
+     */
+    public int getInt(K key) {
+        return getByteBuffer().getInt(getOffset(index(key), 4));
+    }
+
+    /**
+     * Set the integer value at the start of the header field associated with
+     * the given key and mark it dirty. The caller must hold the lock of the
+     * field.
+     * 
+     * @param key
+     *            The header field key.
+     * @param value
+     *            The integer value.
+     * @exception IllegalArgumentException
+     *                If the key is not a field of the header or the field is
+     *                shorter than an integer.
      */
-    Header(long position, Map<K, List<Integer>> offsets, ByteBuffer byteBuffer, Lock lock) {
-        super(position, byteBuffer, lock, new DirtyByteMap(byteBuffer.capacity()));
-        this.offsets = offsets;
+    public void putInt(K key, int value) {
+        int offset = getOffset(index(key), 4);
+        getByteBuffer().putInt(offset, value);
+        dirty(offset, 4);
+    }
+
+    /**
+     * Copy the bytes at the start of the header field associated with the
+     * given key into the given byte array, filling the array. The caller must
+     * hold the lock of the field.
+     * 
+     * @param key
+     *            The header field key.
+     * @param bytes
+     *            The byte array to fill.
+     * @exception IllegalArgumentException
+     *                If the key is not a field of the header or the field is
+     *                shorter than the byte array.
+     */
+    public void getBytes(K key, byte[] bytes) {
+        int offset = getOffset(index(key), bytes.length);
+        ByteBuffer byteBuffer = getByteBuffer();
+        if (byteBuffer.hasArray()) {
+            System.arraycopy(byteBuffer.array(), byteBuffer.arrayOffset() + offset, bytes, 0, bytes.length);
+        } else {
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = byteBuffer.get(offset + i);
+            }
+        }
+    }
+
+    /**
+     * Copy the given byte array to the start of the header field associated
+     * with the given key and mark the copied bytes dirty. The caller must hold
+     * the lock of the field.
+     * 
+     * @param key
+     *            The header field key.
+     * @param bytes
+     *            The bytes to copy.
+     * @exception IllegalArgumentException
+     *                If the key is not a field of the header or the field is
+     *                shorter than the byte array.
+     */
+    public void putBytes(K key, byte[] bytes) {
+        int offset = getOffset(index(key), bytes.length);
+        ByteBuffer byteBuffer = getByteBuffer();
+        if (byteBuffer.hasArray()) {
+            System.arraycopy(bytes, 0, byteBuffer.array(), byteBuffer.arrayOffset() + offset, bytes.length);
+        } else {
+            for (int i = 0; i < bytes.length; i++) {
+                byteBuffer.put(offset + i, bytes[i]);
+            }
+        }
+        dirty(offset, bytes.length);
+    }
+
+    /**
+     * Get the offset in the header of the element at the given element index
+     * of the field at the given field index, checking that the element can
+     * hold a value of the given size.
+     * 
+     * @param index
+     *            The field index.
+     * @param element
+     *            The element index.
+     * @param size
+     *            The size of the value.
+     * @return The element offset.
+     * @exception IllegalArgumentException
+     *                If the element index is out of range or the element is
+     *                shorter than the value.
+     */
+    private int getOffset(int index, int element, int size) {
+        int elementSize = layout.getElementSize(index);
+        if (element < 0 || element >= layout.getElementCount(index) || elementSize < size) {
+            throw new IllegalArgumentException();
+        }
+        return layout.getOffset(index) + element * elementSize;
+    }
+
+    /**
+     * Get the long value at the start of the element at the given element
+     * index of the array field associated with the given key. The caller must
+     * hold the lock of the field.
+     * 
+     * @param key
+     *            The header field key.
+     * @param element
+     *            The element index.
+     * @return The long value.
+     * @exception IllegalArgumentException
+     *                If the key is not a field of the header, the element
+     *                index is out of range or the element is shorter than a
+     *                long.
+     */
+    public long getLong(K key, int element) {
+        return getByteBuffer().getLong(getOffset(index(key), element, 8));
+    }
+
+    /**
+     * Set the long value at the start of the element at the given element
+     * index of the array field associated with the given key and mark it
+     * dirty. The caller must hold the lock of the field.
+     * 
+     * @param key
+     *            The header field key.
+     * @param element
+     *            The element index.
+     * @param value
+     *            The long value.
+     * @exception IllegalArgumentException
+     *                If the key is not a field of the header, the element
+     *                index is out of range or the element is shorter than a
+     *                long.
+     */
+    public void putLong(K key, int element, long value) {
+        int offset = getOffset(index(key), element, 8);
+        getByteBuffer().putLong(offset, value);
+        dirty(offset, 8);
+    }
+
+    /**
+     * Get the integer value at the start of the element at the given element
+     * index of the array field associated with the given key. The caller must
+     * hold the lock of the field.
+     * 
+     * @param key
+     *            The header field key.
+     * @param element
+     *            The element index.
+     * @return The integer value.
+     * @exception IllegalArgumentException
+     *                If the key is not a field of the header, the element
+     *                index is out of range or the element is shorter than an
+     *                integer.
+     */
+    public int getInt(K key, int element) {
+        return getByteBuffer().getInt(getOffset(index(key), element, 4));
+    }
+
+    /**
+     * Set the integer value at the start of the element at the given element
+     * index of the array field associated with the given key and mark it
+     * dirty. The caller must hold the lock of the field.
+     * 
+     * @param key
+     *            The header field key.
+     * @param element
+     *            The element index.
+     * @param value
+     *            The integer value.
+     * @exception IllegalArgumentException
+     *                If the key is not a field of the header, the element
+     *                index is out of range or the element is shorter than an
+     *                integer.
+     */
+    public void putInt(K key, int element, int value) {
+        int offset = getOffset(index(key), element, 4);
+        getByteBuffer().putInt(offset, value);
+        dirty(offset, 4);
+    }
+
+    /**
+     * Get the index of the blob field associated with the given key.
+     * 
+     * @param key
+     *            The header field key.
+     * @return The field index.
+     * @exception IllegalArgumentException
+     *                If the key is not a blob field of the header.
+     */
+    private int blobIndex(K key) {
+        int index = index(key);
+        if (!layout.isBlob(index)) {
+            throw new IllegalArgumentException();
+        }
+        return index;
+    }
+
+    /**
+     * Get the content of the length prefixed blob field associated with the
+     * given key. The caller must hold the lock of the field.
+     * 
+     * @param key
+     *            The header field key.
+     * @return A copy of the blob.
+     * @exception IllegalArgumentException
+     *                If the key is not a blob field of the header.
+     * @exception IllegalStateException
+     *                If the length prefix is negative or greater than the
+     *                maximum length of the blob.
+     */
+    public byte[] getBlob(K key) {
+        int index = blobIndex(key);
+        int offset = layout.getOffset(index);
+        int length = getByteBuffer().getInt(offset);
+        if (length < 0 || length > layout.getLength(index) - 4) {
+            throw new IllegalStateException();
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer byteBuffer = getByteBuffer();
+        if (byteBuffer.hasArray()) {
+            System.arraycopy(byteBuffer.array(), byteBuffer.arrayOffset() + offset + 4, bytes, 0, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                bytes[i] = byteBuffer.get(offset + 4 + i);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Set the content of the length prefixed blob field associated with the
+     * given key and mark the length prefix and the content dirty. Only the
+     * bytes of the new content are dirtied, not the entire maximum length of
+     * the field. The caller must hold the lock of the field.
+     * 
+     * @param key
+     *            The header field key.
+     * @param bytes
+     *            The new blob content.
+     * @exception IllegalArgumentException
+     *                If the key is not a blob field of the header or the
+     *                content is longer than the maximum length of the blob.
+     */
+    public void putBlob(K key, byte[] bytes) {
+        int index = blobIndex(key);
+        if (bytes.length > layout.getLength(index) - 4) {
+            throw new IllegalArgumentException();
+        }
+        int offset = layout.getOffset(index);
+        ByteBuffer byteBuffer = getByteBuffer();
+        byteBuffer.putInt(offset, bytes.length);
+        if (byteBuffer.hasArray()) {
+            System.arraycopy(bytes, 0, byteBuffer.array(), byteBuffer.arrayOffset() + offset + 4, bytes.length);
+        } else {
+            for (int i = 0; i < bytes.length; i++) {
+                byteBuffer.put(offset + 4 + i, bytes[i]);
+            }
+        }
+        dirty(offset, bytes.length + 4);
+    }
+
+    /**
+     * Atomically set the long value at the start of the header field
+     * associated with the given key to the given update value if it is equal
+     * to the given expected value, marking it dirty if it is set. The lock of
+     * the field is acquired by this method, unless the header is concurrent
+     * and the long is aligned in memory.
+     * 
+     * @param key
+     *            The header field key.
+     * @param expect
+     *            The expected value.
+     * @param update
+     *            The new value.
+     * @return True if the value was set.
+     * @exception IllegalArgumentException
+     *                If the key is not a field of the header or the field is
+     *                shorter than a long.
+     */
+    public boolean compareAndSetLong(K key, long expect, long update) {
+        int index = index(key);
+        int offset = getOffset(index, 8);
+        VarHandle longs = getAtomicLongs(offset);
+        if (longs != null) {
+            if (!longs.compareAndSet(getByteBuffer(), offset, expect, update)) {
+                return false;
+            }
+            dirty(offset, 8);
+            return true;
+        }
+        Lock lock = getFieldLock(index);
+        Instrumentation.lock(this, lock);
+        try {
+            if (getByteBuffer().getLong(offset) != expect) {
+                return false;
+            }
+            getByteBuffer().putLong(offset, update);
+            dirty(offset, 8);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Atomically add the given delta to the long value at the start of the
+     * header field associated with the given key and mark it dirty. The lock
+     * of the field is acquired by this method, unless the header is concurrent
+     * and the long is aligned in memory.
+     * 
+     * @param key
+     *            The header field key.
+     * @param delta
+     *            The value to add.
+     * @return The previous value.
+     * @exception IllegalArgumentException
+     *                If the key is not a field of the header or the field is
+     *                shorter than a long.
+     */
+    public long getAndAddLong(K key, long delta) {
+        int index = index(key);
+        int offset = getOffset(index, 8);
+        VarHandle longs = getAtomicLongs(offset);
+        if (longs != null) {
+            long value = (long) longs.getAndAdd(getByteBuffer(), offset, delta);
+            dirty(offset, 8);
+            return value;
+        }
+        Lock lock = getFieldLock(index);
+        Instrumentation.lock(this, lock);
+        try {
+            long value = getByteBuffer().getLong(offset);
+            getByteBuffer().putLong(offset, value + delta);
+            dirty(offset, 8);
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release the byte buffer of the header, returning it to the allocator of
+     * the header builder that created the header. Dirty fields are not
+     * written, so the header should be written first if it is dirty. The
+     * header must not be used after it is released. Releasing a header more
+     * than once, or a header created directly from a layout, has no effect.
+     */
+    public void release() {
+        Instrumentation.lock(this);
+        try {
+            if (!released) {
+                released = true;
+                if (allocator != null) {
+                    allocator.free(getByteBuffer());
+                }
+            }
+        } finally {
+            getLock().unlock();
+        }
+    }
+
+    /**
+     * Mark the entire header as clean after its content has been read, and
+     * record every field as read.
+     */
+    @Override
+    public void loaded() {
+        super.loaded();
+        Arrays.fill(loadedFields, true);
+    }
+
+    /**
+     * Get the header field region associated with the given key, reading the
+     * header field from the given file channel at the position of this header
+     * offset by the given offset if it has not already been read. This allows
+     * a header to be read lazily, one field at a time, as fields are used.
+     * <p>
+     * The field is read while holding the header lock. The field is not read
+     * again once it has been read by this method or by a load of the entire
+     * header. Bytes of the field that are dirty, because they were set before
+     * the field was read, keep their value and remain dirty, so that they are
+     * written by the next flush. A concurrent header tracks dirty bytes in
+     * blocks of eight bytes, so every byte of a dirty block keeps its value,
+     * and a field that shares a block with another field should be read
+     * before the other field is set. A field must not be updated by another
+     * thread while it is read.
+     * 
+     * @param key
+     *            The header field key
+     * @param fileChannel
+     *            The file channel to read from.
+     * @param offset
+     *            An offset to add to the header file position.
+     * @return A region for the header field.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public Region get(K key, FileChannel fileChannel, int offset) throws IOException {
+        int index = index(key);
+        int fieldOffset = layout.getOffset(index);
+        int fieldLength = layout.getLength(index);
+        Instrumentation.lock(this);
+        try {
+            if (!loadedFields[index]) {
+                ByteBuffer read = ByteBuffer.allocate(fieldLength);
+                read(fileChannel, read, offset + getPosition() + fieldOffset);
+                ByteBuffer bytes = getByteBuffer().duplicate();
+                int stop = fieldOffset + fieldLength;
+                for (int start = nextClean(fieldOffset, stop), end; start != stop; start = nextClean(end, stop)) {
+                    end = nextDirty(start, stop);
+                    read.limit(end - fieldOffset);
+                    read.position(start - fieldOffset);
+                    bytes.position(start);
+                    bytes.put(read);
+                }
+                loadedFields[index] = true;
+            }
+        } finally {
+            getLock().unlock();
+        }
+        return get(index);
+    }
+
+    /**
+     * Get the offset of the first clean byte at or after the given offset and
+     * before the given stop offset, or the stop offset if every byte in
+     * between is dirty.
+     * 
+     * @param offset
+     *            The offset to search from.
+     * @param stop
+     *            The offset to stop searching at.
+     * @return The offset of the next clean byte or the stop offset.
+     */
+    private int nextClean(int offset, int stop) {
+        if (cleanable instanceof SpanCleanable) {
+            return Math.min(((SpanCleanable) cleanable).nextClean(offset), stop);
+        }
+        if (cleanable instanceof ConcurrentDirtyBlockMap) {
+            ConcurrentDirtyBlockMap blocks = (ConcurrentDirtyBlockMap) cleanable;
+            while (offset < stop && blocks.isDirty(offset, 1)) {
+                offset = Math.min((offset / blocks.getBlockSize() + 1) * blocks.getBlockSize(), stop);
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Get the offset of the first dirty byte at or after the given offset and
+     * before the given stop offset, or the stop offset if every byte in
+     * between is clean.
+     * 
+     * @param offset
+     *            The offset to search from.
+     * @param stop
+     *            The offset to stop searching at.
+     * @return The offset of the next dirty byte or the stop offset.
+     */
+    private int nextDirty(int offset, int stop) {
+        if (cleanable instanceof SpanCleanable) {
+            int dirty = ((SpanCleanable) cleanable).nextDirty(offset);
+            return dirty == -1 ? stop : Math.min(dirty, stop);
+        }
+        if (cleanable instanceof ConcurrentDirtyBlockMap) {
+            ConcurrentDirtyBlockMap blocks = (ConcurrentDirtyBlockMap) cleanable;
+            while (offset < stop && !blocks.isDirty(offset, 1)) {
+                offset = Math.min((offset / blocks.getBlockSize() + 1) * blocks.getBlockSize(), stop);
+            }
+            return offset;
+        }
+        return stop;
     }
 
     /**
@@ -56,33 +851,162 @@ public class Header<K> extends BasicWritable {
      * <p>
      * The field region will contain a lock, shared by all field regions
      * returned by the header, that locks the entire header for reading and
-     * writing.
+     * writing. If the header is striped, the field region will instead contain
+     * the write lock of the stripe of the field.
+     * <p>
+     * The field region is created by the first call for its key and the same
+     * field region is returned by every subsequent call. Once created, the
+     * field region is found without locking or allocation. Because the field
+     * region is shared, the position and limit of its byte buffer are shared
+     * by every caller, so callers should use absolute gets and puts or a
+     * duplicate of the byte buffer.
      * 
      * @param key
      *            The header field key
      * @return A region for the header field.
+     * @exception IllegalArgumentException
+     *                If the key is not a field of the header.
      */
     public Region get(K key) {
-        List<Integer> offset = offsets.get(key);
-        Dirtyable subDirtyable = new SubCleanable(cleanable, offset.get(0), offset.get(1));
-        getLock().lock();
-        try {
-            ByteBuffer byteBuffer = getByteBuffer();
+        return get(index(key));
+    }
 
-            int position = byteBuffer.position();
-            int limit = byteBuffer.limit();
+    /**
+     * Get a region for the element at the given element index of the array
+     * field associated with the given key. The region byte buffer is a slice
+     * of the header focused on the element, and dirtying the region dirties
+     * only the element. The region lock is the lock of the field.
+     * <p>
+     * Element regions are not cached, a new region is created by each call.
+     * The typed element accessors can be used instead to read and write
+     * elements without creating any objects.
+     * 
+     * @param key
+     *            The header field key
+     * @param element
+     *            The element index.
+     * @return A region for the element.
+     * @exception IllegalArgumentException
+     *                If the key is not a field of the header or the element
+     *                index is out of range.
+     */
+    public Region get(K key, int element) {
+        int index = index(key);
+        return newRegion(index, getOffset(index, element, 0), layout.getElementSize(index));
+    }
 
-            byteBuffer.position(offset.get(0));
-            byteBuffer.limit(offset.get(0) + offset.get(1));
+    /**
+     * Get a region for the member associated with the given member key of the
+     * struct field associated with the given key. The region lock is the lock
+     * of the field.
+     * 
+     * @param <S>
+     *            The struct member key type.
+     * @param key
+     *            The header field key
+     * @param member
+     *            The struct member key.
+     * @return A region for the struct member.
+     * @exception IllegalArgumentException
+     *                If the key is not a struct field of the header or the
+     *                member key is not a member of the struct.
+     */
+    public <S> Region getMember(K key, S member) {
+        return getMember(key, 0, member);
+    }
 
-            ByteBuffer subByteBuffer = byteBuffer.slice();
+    /**
+     * Get a region for the member associated with the given member key of the
+     * struct at the given element index of the struct array field associated
+     * with the given key. Dirtying the region dirties only the member. The
+     * region lock is the lock of the field.
+     * 
+     * @param <S>
+     *            The struct member key type.
+     * @param key
+     *            The header field key
+     * @param element
+     *            The element index.
+     * @param member
+     *            The struct member key.
+     * @return A region for the struct member.
+     * @exception IllegalArgumentException
+     *                If the key is not a struct field of the header, the
+     *                element index is out of range or the member key is not a
+     *                member of the struct.
+     */
+    public <S> Region getMember(K key, int element, S member) {
+        int index = index(key);
+        @SuppressWarnings("unchecked")
+        HeaderLayout<S> struct = (HeaderLayout<S>) layout.getStruct(index);
+        if (struct == null) {
+            throw new IllegalArgumentException();
+        }
+        int memberIndex = struct.indexOf(member);
+        if (memberIndex == -1) {
+            throw new IllegalArgumentException();
+        }
+        int offset = getOffset(index, element, 0) + struct.getOffset(memberIndex);
+        return newRegion(index, offset, struct.getLength(memberIndex));
+    }
+
+    /**
+     * Get the header field region at the given field index, creating it if it
+     * has not yet been created.
+     * 
+     * @param index
+     *            The field index.
+     * @return A region for the header field.
+     */
+    private Region get(int index) {
+        Region region = regions.get(index);
+        if (region == null) {
+            regions.compareAndSet(index, null, newRegion(index));
+            region = regions.get(index);
+        }
+        return region;
+    }
+
+    /**
+     * Create the header field region at the given field index.
+     * 
+     * @param index
+     *            The field index.
+     * @return A new region for the header field.
+     */
+    private Region newRegion(int index) {
+        return newRegion(index, layout.getOffset(index), layout.getLength(index));
+    }
 
-            byteBuffer.position(position);
-            byteBuffer.limit(limit);
+    /**
+     * Create a region for the given length of bytes at the given offset in
+     * the header field at the given field index, guarded by the lock of the
+     * field.
+     * 
+     * @param index
+     *            The field index.
+     * @param offset
+     *            The offset of the region in the header.
+     * @param length
+     *            The length of the region.
+     * @return A new region.
+     */
+    private Region newRegion(int index, int offset, int length) {
+        Dirtyable subDirtyable = new SubCleanable(cleanable, offset, length);
+        Lock fieldLock = getFieldLock(index);
+        Lock sliceLock = stripes == null ? fieldLock : stripes[index % stripes.length].readLock();
+        Instrumentation.lock(this, sliceLock);
+        try {
+            ByteBuffer byteBuffer = getByteBuffer().duplicate();
 
-            return new BasicRegion(position + offset.get(0), subByteBuffer, getLock(), subDirtyable);
+            byteBuffer.limit(offset + length);
+            byteBuffer.position(offset);
+
+            ByteBuffer subByteBuffer = byteBuffer.slice();
+
+            return new BasicRegion(getPosition() + offset, subByteBuffer, fieldLock, subDirtyable);
         } finally {
-            getLock().unlock();
+            sliceLock.unlock();
         }
     }
 }
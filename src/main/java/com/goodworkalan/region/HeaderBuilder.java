@@ -2,15 +2,35 @@ package com.goodworkalan.region;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A builder for a header that defines the header by mapping a header field key
  * to a header field length. The header files will be arrayed on file one after
  * another in the order in which they are specified.
+ * <p>
+ * The builder produces an immutable {@link HeaderLayout} that is shared by
+ * every header the builder creates, so that creating a header does not copy
+ * the field definitions. The layout is created once and reused until another
+ * field is added.
+ * <p>
+ * Besides fixed length fields, the builder can add arrays of fixed length
+ * elements, length prefixed blobs with a maximum length, and nested structs
+ * described by another layout, as well as arrays of structs. The elements of
+ * an array can be used and dirtied individually, so that dirtying one element
+ * does not cause the entire array to be written.
+ * <p>
+ * Fields are packed one after another by default. A default alignment can be
+ * set for the fields that follow, and a field can be given its own alignment,
+ * so that fields are padded to start at a multiple of the alignment. The
+ * alignment can be {@link #NATURAL}, the size of the field value, or a power
+ * of two such as {@link #CACHE_LINE} or {@link #SECTOR}. The current offset
+ * can be padded with {@link #pad(int)} so that a hot field does not share a
+ * cache line with the field that follows it. Offsets are relative to the start
+ * of the header, so alignment on disk also requires an aligned header file
+ * position. The layout reports the alignment of each field and the bytes lost
+ * to padding.
  * 
  * @author Alan Gutierrez
  * 
@@ -18,18 +38,82 @@ import java.util.concurrent.locks.ReentrantLock;
  *            The header key type.
  */
 public class HeaderBuilder<K> {
+    /**
+     * Align a field to the size of its value: the size of an element up to
+     * eight bytes, four bytes for a blob, or the alignment of a struct.
+     */
+    public final static int NATURAL = 0;
+
+    /** Align a field to the start of a 64 byte cache line. */
+    public final static int CACHE_LINE = 64;
+
+    /** Align a field to the start of a 512 byte disk sector. */
+    public final static int SECTOR = 512;
+
+    /** The initial capacity of the field arrays. */
+    private final static int INITIAL_CAPACITY = 8;
+
     /** The offset of the next field. */
     private int offset;
 
-    /**
-     * The map of keys to a offset/length pairs. The lists are two element lists
-     * containing the field offset and field length.
-     */
-    private final Map<K, List<Integer>> offsets;
+    /** The field keys in the order in which they were added. */
+    private final List<K> keys;
+
+    /** The field offsets by field index. */
+    private int[] offsets;
+
+    /** The field lengths by field index. */
+    private int[] lengths;
+
+    /** The field element sizes by field index. */
+    private int[] elementSizes;
+
+    /** Whether each field is a length prefixed blob by field index. */
+    private boolean[] blobs;
+
+    /** The layouts of the members of struct fields by field index. */
+    private HeaderLayout<?>[] structs;
+
+    /** The field alignments by field index. */
+    private int[] alignments;
 
-    /** Create a new header builder. */
+    /** The default alignment of added fields. */
+    private int alignment;
+
+    /** The layout of the fields added so far or null if not yet created. */
+    private HeaderLayout<K> layout;
+
+    /** The allocator used to allocate header byte buffers. */
+    private final BufferAllocator allocator;
+
+    /** The count of read/write lock stripes or zero for a single lock. */
+    private int stripeCount;
+
+    /** Whether new headers track dirty bytes concurrently. */
+    private boolean concurrent;
+
+    /** Create a new header builder that allocates heap byte buffers. */
     public HeaderBuilder() {
-        this.offsets = new HashMap<K, List<Integer>>();
+        this(new HeapBufferAllocator());
+    }
+
+    /**
+     * Create a new header builder that allocates header byte buffers with the
+     * given allocator.
+     * 
+     * @param allocator
+     *            The allocator used to allocate header byte buffers.
+     */
+    public HeaderBuilder(BufferAllocator allocator) {
+        this.keys = new ArrayList<K>();
+        this.offsets = new int[INITIAL_CAPACITY];
+        this.lengths = new int[INITIAL_CAPACITY];
+        this.elementSizes = new int[INITIAL_CAPACITY];
+        this.blobs = new boolean[INITIAL_CAPACITY];
+        this.structs = new HeaderLayout<?>[INITIAL_CAPACITY];
+        this.alignments = new int[INITIAL_CAPACITY];
+        this.alignment = 1;
+        this.allocator = allocator;
     }
 
     /**
@@ -40,25 +124,291 @@ public class HeaderBuilder<K> {
      *            The field key.
      * @param length
      *            The field length.
+     * @exception IllegalArgumentException
+     *                If the length is negative or the header would be longer
+     *                than the largest byte buffer.
      */
     public void addField(K key, int length) {
-        List<Integer> mapping = new ArrayList<Integer>(2);
-        mapping.add(offset);
-        mapping.add(length);
-        offsets.put(key, mapping);
-        offset += length;
+        add(key, length, length, false, null, alignment);
+    }
+
+    /**
+     * Create a field of the given length at the current offset padded to the
+     * given alignment that will be retrieved with the given key.
+     * 
+     * @param key
+     *            The field key.
+     * @param length
+     *            The field length.
+     * @param alignment
+     *            The field alignment, either {@link #NATURAL} or a power of
+     *            two.
+     * @exception IllegalArgumentException
+     *                If the length is negative, the alignment is invalid or
+     *                the header would be longer than the largest byte buffer.
+     */
+    public void addField(K key, int length, int alignment) {
+        add(key, length, length, false, null, alignment);
+    }
+
+    /**
+     * Create an array field of the given count of elements of the given
+     * element size at the current offset that will be retrieved with the given
+     * key.
+     * 
+     * @param key
+     *            The field key.
+     * @param count
+     *            The count of elements.
+     * @param elementSize
+     *            The size of an element.
+     * @exception IllegalArgumentException
+     *                If the count is negative, the element size is not
+     *                positive or the header would be longer than the largest
+     *                byte buffer.
+     */
+    public void addArrayField(K key, int count, int elementSize) {
+        if (count < 0 || elementSize < 1 || (long) count * elementSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException();
+        }
+        add(key, count * elementSize, elementSize, false, null, alignment);
+    }
+
+    /**
+     * Create a length prefixed blob field at the current offset that can hold
+     * up to the given maximum count of bytes and will be retrieved with the
+     * given key. The field is four bytes longer than the maximum to hold the
+     * length of the blob.
+     * 
+     * @param key
+     *            The field key.
+     * @param maximum
+     *            The maximum length of the blob.
+     * @exception IllegalArgumentException
+     *                If the maximum is negative or the header would be longer
+     *                than the largest byte buffer.
+     */
+    public void addBlobField(K key, int maximum) {
+        if (maximum < 0 || maximum > Integer.MAX_VALUE - 4) {
+            throw new IllegalArgumentException();
+        }
+        add(key, maximum + 4, maximum + 4, true, null, alignment);
+    }
+
+    /**
+     * Create a struct field at the current offset whose members are described
+     * by the given layout and that will be retrieved with the given key.
+     * 
+     * @param key
+     *            The field key.
+     * @param struct
+     *            The layout of the struct members.
+     * @exception IllegalArgumentException
+     *                If the header would be longer than the largest byte
+     *                buffer.
+     */
+    public void addStructField(K key, HeaderLayout<?> struct) {
+        add(key, struct.getLength(), struct.getLength(), false, struct, alignment);
+    }
+
+    /**
+     * Create an array field of the given count of structs whose members are
+     * described by the given layout at the current offset that will be
+     * retrieved with the given key.
+     * 
+     * @param key
+     *            The field key.
+     * @param count
+     *            The count of elements.
+     * @param struct
+     *            The layout of the struct members.
+     * @exception IllegalArgumentException
+     *                If the count is negative, the struct is empty or the
+     *                header would be longer than the largest byte buffer.
+     */
+    public void addArrayField(K key, int count, HeaderLayout<?> struct) {
+        int elementSize = struct.getLength();
+        if (count < 0 || elementSize < 1 || (long) count * elementSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException();
+        }
+        add(key, count * elementSize, elementSize, false, struct, alignment);
+    }
+
+    /**
+     * Create a field at the current offset padded to the given alignment,
+     * growing the field arrays if necessary.
+     * 
+     * @param key
+     *            The field key.
+     * @param length
+     *            The field length.
+     * @param elementSize
+     *            The size of a field element.
+     * @param blob
+     *            Whether the field is a length prefixed blob.
+     * @param struct
+     *            The layout of the struct members or null.
+     * @param alignment
+     *            The field alignment, either {@link #NATURAL} or a power of
+     *            two.
+     * @exception IllegalArgumentException
+     *                If the length is negative, the alignment is invalid or
+     *                the header would be longer than the largest byte buffer.
+     */
+    private void add(K key, int length, int elementSize, boolean blob, HeaderLayout<?> struct, int alignment) {
+        if (alignment == NATURAL) {
+            alignment = blob ? 4 : struct != null ? struct.getAlignment() : getNaturalAlignment(elementSize);
+        }
+        int start = align(alignment);
+        if (length < 0 || Integer.MAX_VALUE - length < start) {
+            throw new IllegalArgumentException();
+        }
+        int index = keys.size();
+        if (index == offsets.length) {
+            offsets = Arrays.copyOf(offsets, index * 2);
+            lengths = Arrays.copyOf(lengths, index * 2);
+            elementSizes = Arrays.copyOf(elementSizes, index * 2);
+            blobs = Arrays.copyOf(blobs, index * 2);
+            structs = Arrays.copyOf(structs, index * 2);
+            alignments = Arrays.copyOf(alignments, index * 2);
+        }
+        keys.add(key);
+        offsets[index] = start;
+        lengths[index] = length;
+        elementSizes[index] = elementSize;
+        blobs[index] = blob;
+        structs[index] = struct;
+        alignments[index] = alignment;
+        offset = start + length;
+        layout = null;
+    }
+
+    /**
+     * Get the natural alignment of a value of the given size, the largest
+     * power of two no greater than the size, up to eight bytes.
+     * 
+     * @param size
+     *            The value size.
+     * @return The natural alignment.
+     */
+    private static int getNaturalAlignment(int size) {
+        return size < 1 ? 1 : Integer.highestOneBit(Math.min(size, 8));
+    }
+
+    /**
+     * Get the current offset rounded up to a multiple of the given alignment.
+     * 
+     * @param alignment
+     *            The alignment, a power of two.
+     * @return The aligned offset.
+     * @exception IllegalArgumentException
+     *                If the alignment is not a power of two or the header
+     *                would be longer than the largest byte buffer.
+     */
+    private int align(int alignment) {
+        if (alignment < 1 || (alignment & (alignment - 1)) != 0) {
+            throw new IllegalArgumentException();
+        }
+        long aligned = ((long) offset + alignment - 1) & -alignment;
+        if (aligned > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException();
+        }
+        return (int) aligned;
+    }
+
+    /**
+     * Set the default alignment of the fields added after this call. The
+     * initial default alignment is one, so that fields are packed.
+     * 
+     * @param alignment
+     *            The default field alignment, either {@link #NATURAL} or a
+     *            power of two.
+     * @exception IllegalArgumentException
+     *                If the alignment is invalid.
+     */
+    public void setAlignment(int alignment) {
+        if (alignment != NATURAL && (alignment < 1 || (alignment & (alignment - 1)) != 0)) {
+            throw new IllegalArgumentException();
+        }
+        this.alignment = alignment;
+    }
+
+    /**
+     * Pad the current offset to a multiple of the given alignment, so that the
+     * next field, or the end of the header, starts at the alignment. Padding
+     * after a field aligned to a cache line with {@link #CACHE_LINE} gives the
+     * field a cache line of its own.
+     * 
+     * @param alignment
+     *            The alignment, a power of two.
+     * @exception IllegalArgumentException
+     *                If the alignment is not a power of two or the header
+     *                would be longer than the largest byte buffer.
+     */
+    public void pad(int alignment) {
+        offset = align(alignment);
+        layout = null;
+    }
+
+    /**
+     * Set the count of read/write lock stripes used to guard the fields of new
+     * headers. When the count is zero, the default, every field of a header is
+     * guarded by a single header lock. To give every field its own lock, set
+     * the count to the count of fields.
+     * 
+     * @param stripeCount
+     *            The count of lock stripes.
+     */
+    public void setStripeCount(int stripeCount) {
+        if (stripeCount < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.stripeCount = stripeCount;
+    }
+
+    /**
+     * Set whether new headers are concurrent headers, which track dirty bytes
+     * in eight byte blocks with a {@link ConcurrentDirtyBlockMap}, so that the
+     * atomic accessors of the header update longs that are aligned in memory
+     * without acquiring a lock. Headers are not concurrent by default, and
+     * track dirty bytes exactly.
+     * 
+     * @param concurrent
+     *            Whether new headers are concurrent.
+     */
+    public void setConcurrent(boolean concurrent) {
+        this.concurrent = concurrent;
+    }
+
+    /**
+     * Get the immutable layout of the fields added so far. The same layout is
+     * returned until another field is added or the offset is padded.
+     * 
+     * @return The header layout.
+     * @exception IllegalArgumentException
+     *                If a key was added more than once.
+     */
+    public HeaderLayout<K> getLayout() {
+        if (layout == null) {
+            int count = keys.size();
+            layout = new HeaderLayout<K>(keys, Arrays.copyOf(offsets, count), Arrays.copyOf(lengths, count), Arrays.copyOf(elementSizes, count), Arrays.copyOf(blobs, count), Arrays.copyOf(structs, count), Arrays.copyOf(alignments, count), offset);
+        }
+        return layout;
     }
 
     /**
      * Create a new file header from this file header definition that will write
-     * itself to the given file position.
+     * itself to the given file position. The header byte buffer is allocated
+     * with the allocator of this builder. When the header is no longer used,
+     * {@link Header#release()} returns its byte buffer to the allocator.
      * 
      * @param position
      *            The file position.
      * @return A new file header.
      */
     public Header<K> newHeader(long position) {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(offset);
-        return new Header<K>(position, offsets, byteBuffer, new ReentrantLock());
+        HeaderLayout<K> layout = getLayout();
+        ByteBuffer byteBuffer = allocator.allocate(layout.getLength());
+        return layout.newHeader(position, byteBuffer, stripeCount, concurrent, allocator);
     }
 }
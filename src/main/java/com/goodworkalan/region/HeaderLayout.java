@@ -0,0 +1,467 @@
+package com.goodworkalan.region;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An immutable layout of header fields that maps each header field key to the
+ * offset and length of the field in the header. The layout is created once by
+ * a {@link HeaderBuilder} and shared by every header that uses it, so that
+ * creating a header does not copy the field definitions.
+ * <p>
+ * Fields are numbered by index in the order of their offsets. The offsets and
+ * lengths are kept in arrays of primitive integers indexed by field index.
+ * When every key is a constant of the same enum, a key is mapped to its field
+ * index by its ordinal, otherwise by a hash map.
+ * <p>
+ * A field is either a fixed length field, an array of fixed length elements,
+ * a length prefixed blob with a maximum length, or a nested struct whose
+ * members are described by another layout. An array can also be an array of
+ * structs. A fixed length field, a blob or a struct is a field with a single
+ * element.
+ * <p>
+ * Each field has an alignment, a power of two that divides the field offset.
+ * The bytes between fields and after the last field that do not belong to any
+ * field are padding. The string representation of the layout lists the
+ * offset, length and alignment of each field and the bytes lost to padding.
+ * <p>
+ * The layout is thread-safe.
+ * 
+ * @author Alan Gutierrez
+ * 
+ * @param <K>
+ *            The header key type.
+ */
+public final class HeaderLayout<K> {
+    /** The field keys by field index. */
+    private final Object[] keys;
+
+    /** The field offsets by field index. */
+    private final int[] offsets;
+
+    /** The field lengths by field index. */
+    private final int[] lengths;
+
+    /** The field element sizes by field index. */
+    private final int[] elementSizes;
+
+    /** Whether each field is a length prefixed blob by field index. */
+    private final boolean[] blobs;
+
+    /**
+     * The layouts of the members of struct fields by field index, null for
+     * fields that are not structs.
+     */
+    private final HeaderLayout<?>[] structs;
+
+    /** The field alignments by field index. */
+    private final int[] alignments;
+
+    /** The total length of the header. */
+    private final int length;
+
+    /** The count of bytes that do not belong to any field. */
+    private final int padding;
+
+    /** The map of keys to field indexes. */
+    private final Map<K, Integer> indexes;
+
+    /**
+     * The field indexes by enum ordinal, or null if the keys are not constants
+     * of a single enum. Ordinals without a field map to -1.
+     */
+    private final int[] ordinals;
+
+    /**
+     * Create a layout of the given keys with the given field offsets, lengths,
+     * element sizes, blob flags and struct layouts in a header of the given
+     * total length. The keys must be given in the order of their offsets.
+     * 
+     * @param keys
+     *            The field keys.
+     * @param offsets
+     *            The field offsets.
+     * @param lengths
+     *            The field lengths.
+     * @param elementSizes
+     *            The field element sizes.
+     * @param blobs
+     *            Whether each field is a length prefixed blob.
+     * @param structs
+     *            The layouts of the members of struct fields, null for fields
+     *            that are not structs.
+     * @param alignments
+     *            The field alignments.
+     * @param length
+     *            The total length of the header.
+     * @exception IllegalArgumentException
+     *                If a key is repeated, a field has a negative length, a
+     *                field length is not a multiple of its element size, the
+     *                fields overlap, a field extends beyond the header, an
+     *                alignment is not a power of two or a field offset is not
+     *                a multiple of its alignment.
+     */
+    HeaderLayout(List<K> keys, int[] offsets, int[] lengths, int[] elementSizes, boolean[] blobs, HeaderLayout<?>[] structs, int[] alignments, int length) {
+        int count = keys.size();
+        if (offsets.length != count || lengths.length != count || elementSizes.length != count || blobs.length != count || structs.length != count || alignments.length != count) {
+            throw new IllegalArgumentException();
+        }
+        int end = 0;
+        int padding = length;
+        for (int i = 0; i < count; i++) {
+            if (lengths[i] < 0 || offsets[i] < end || length - lengths[i] < offsets[i]) {
+                throw new IllegalArgumentException();
+            }
+            if (elementSizes[i] < 1 ? lengths[i] != 0 : lengths[i] % elementSizes[i] != 0) {
+                throw new IllegalArgumentException();
+            }
+            if (structs[i] != null && structs[i].getLength() != elementSizes[i]) {
+                throw new IllegalArgumentException();
+            }
+            if (alignments[i] < 1 || (alignments[i] & (alignments[i] - 1)) != 0 || offsets[i] % alignments[i] != 0) {
+                throw new IllegalArgumentException();
+            }
+            end = offsets[i] + lengths[i];
+            padding -= lengths[i];
+        }
+        this.keys = keys.toArray();
+        this.offsets = offsets.clone();
+        this.lengths = lengths.clone();
+        this.elementSizes = elementSizes.clone();
+        this.blobs = blobs.clone();
+        this.structs = structs.clone();
+        this.alignments = alignments.clone();
+        this.length = length;
+        this.padding = padding;
+        this.indexes = new HashMap<K, Integer>();
+        for (int i = 0; i < this.keys.length; i++) {
+            if (indexes.put(keys.get(i), i) != null) {
+                throw new IllegalArgumentException();
+            }
+        }
+        this.ordinals = getOrdinals(this.keys);
+    }
+
+    /**
+     * Map the ordinals of the given keys to their field indexes if the keys
+     * are constants of a single enum.
+     * 
+     * @param keys
+     *            The field keys.
+     * @return The field indexes by ordinal or null if the keys are not
+     *         constants of a single enum.
+     */
+    private static int[] getOrdinals(Object[] keys) {
+        if (keys.length == 0 || !(keys[0] instanceof Enum<?>)) {
+            return null;
+        }
+        Class<?> declaringClass = ((Enum<?>) keys[0]).getDeclaringClass();
+        int[] ordinals = new int[declaringClass.getEnumConstants().length];
+        Arrays.fill(ordinals, -1);
+        for (int i = 0; i < keys.length; i++) {
+            if (!(keys[i] instanceof Enum<?>) || ((Enum<?>) keys[i]).getDeclaringClass() != declaringClass) {
+                return null;
+            }
+            ordinals[((Enum<?>) keys[i]).ordinal()] = i;
+        }
+        return ordinals;
+    }
+
+    /**
+     * Get the count of fields.
+     * 
+     * @return The count of fields.
+     */
+    public int getFieldCount() {
+        return keys.length;
+    }
+
+    /**
+     * Get the total length of the header.
+     * 
+     * @return The header length.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Get the index of the field associated with the given key, or -1 if there
+     * is no such field.
+     * 
+     * @param key
+     *            The field key.
+     * @return The field index or -1.
+     */
+    public int indexOf(K key) {
+        if (ordinals != null) {
+            if (key instanceof Enum<?> && ((Enum<?>) key).getDeclaringClass() == ((Enum<?>) keys[0]).getDeclaringClass()) {
+                return ordinals[((Enum<?>) key).ordinal()];
+            }
+            return -1;
+        }
+        Integer index = indexes.get(key);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Get the key of the field at the given index.
+     * 
+     * @param index
+     *            The field index.
+     * @return The field key.
+     */
+    @SuppressWarnings("unchecked")
+    public K getKey(int index) {
+        return (K) keys[index];
+    }
+
+    /**
+     * Get the offset of the field at the given index.
+     * 
+     * @param index
+     *            The field index.
+     * @return The field offset.
+     */
+    public int getOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Get the length of the field at the given index.
+     * 
+     * @param index
+     *            The field index.
+     * @return The field length.
+     */
+    public int getLength(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * Get the size of the elements of the field at the given index. The
+     * element size of a field that is not an array is the field length.
+     * 
+     * @param index
+     *            The field index.
+     * @return The field element size.
+     */
+    public int getElementSize(int index) {
+        return elementSizes[index];
+    }
+
+    /**
+     * Get the count of elements of the field at the given index. The element
+     * count of a field that is not an array is one, unless the field is empty.
+     * 
+     * @param index
+     *            The field index.
+     * @return The count of field elements.
+     */
+    public int getElementCount(int index) {
+        return elementSizes[index] == 0 ? 0 : lengths[index] / elementSizes[index];
+    }
+
+    /**
+     * Determine whether the field at the given index is a length prefixed
+     * blob.
+     * 
+     * @param index
+     *            The field index.
+     * @return True if the field is a blob.
+     */
+    public boolean isBlob(int index) {
+        return blobs[index];
+    }
+
+    /**
+     * Get the layout of the members of the struct field or struct array field
+     * at the given index.
+     * 
+     * @param index
+     *            The field index.
+     * @return The struct layout or null if the field is not a struct.
+     */
+    public HeaderLayout<?> getStruct(int index) {
+        return structs[index];
+    }
+
+    /**
+     * Get the alignment of the field at the given index.
+     * 
+     * @param index
+     *            The field index.
+     * @return The field alignment.
+     */
+    public int getAlignment(int index) {
+        return alignments[index];
+    }
+
+    /**
+     * Get the alignment of the layout, the largest alignment of any field, so
+     * that the layout can be nested as a struct without misaligning its
+     * fields.
+     * 
+     * @return The layout alignment.
+     */
+    public int getAlignment() {
+        int alignment = 1;
+        for (int i = 0; i < alignments.length; i++) {
+            alignment = Math.max(alignment, alignments[i]);
+        }
+        return alignment;
+    }
+
+    /**
+     * Get the count of bytes in the header that do not belong to any field,
+     * lost to padding.
+     * 
+     * @return The count of padding bytes.
+     */
+    public int getPadding() {
+        return padding;
+    }
+
+    /**
+     * Return a report of the layout that lists the key, offset, length and
+     * alignment of each field, the padding before each field, and the total
+     * length and padding of the header.
+     * 
+     * @return A report of the layout.
+     */
+    @Override
+    public String toString() {
+        StringBuilder string = new StringBuilder();
+        int end = 0;
+        for (int i = 0; i < keys.length; i++) {
+            string.append(keys[i]).append(": offset ").append(offsets[i]).append(", length ").append(lengths[i]).append(", alignment ").append(alignments[i]);
+            if (offsets[i] != end) {
+                string.append(", padding ").append(offsets[i] - end);
+            }
+            string.append('\n');
+            end = offsets[i] + lengths[i];
+        }
+        string.append("length ").append(length).append(", padding ").append(padding);
+        return string.toString();
+    }
+
+    /**
+     * Create a new header with this layout that will write itself to the given
+     * file position, using the given byte buffer for header content. Every
+     * field of the header is guarded by a single header lock.
+     * 
+     * @param position
+     *            The file position.
+     * @param byteBuffer
+     *            The byte buffer of header content.
+     * @return A new header.
+     * @exception IllegalArgumentException
+     *                If the byte buffer is smaller than the header.
+     */
+    public Header<K> newHeader(long position, ByteBuffer byteBuffer) {
+        return newHeader(position, byteBuffer, 0, false, null);
+    }
+
+    /**
+     * Create a new header with this layout that will write itself to the given
+     * file position, using the given byte buffer for header content, and
+     * guarding its fields with the given count of read/write lock stripes.
+     * 
+     * @param position
+     *            The file position.
+     * @param byteBuffer
+     *            The byte buffer of header content.
+     * @param stripeCount
+     *            The count of lock stripes.
+     * @return A new header.
+     * @exception IllegalArgumentException
+     *                If the byte buffer is smaller than the header or the
+     *                stripe count is not positive.
+     */
+    public Header<K> newHeader(long position, ByteBuffer byteBuffer, int stripeCount) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException();
+        }
+        return newHeader(position, byteBuffer, stripeCount, false, null);
+    }
+
+    /**
+     * Create a new concurrent header with this layout that will write itself
+     * to the given file position, using the given byte buffer for header
+     * content. The header tracks dirty bytes in eight byte blocks with a
+     * {@link ConcurrentDirtyBlockMap}, so that its atomic accessors can update
+     * aligned longs without a lock. The fields are guarded by the given count
+     * of read/write lock stripes, or by a single header lock if the count is
+     * zero.
+     * 
+     * @param position
+     *            The file position.
+     * @param byteBuffer
+     *            The byte buffer of header content.
+     * @param stripeCount
+     *            The count of lock stripes or zero for a single lock.
+     * @return A new concurrent header.
+     * @exception IllegalArgumentException
+     *                If the byte buffer is smaller than the header or the
+     *                stripe count is negative.
+     */
+    public Header<K> newConcurrentHeader(long position, ByteBuffer byteBuffer, int stripeCount) {
+        if (stripeCount < 0) {
+            throw new IllegalArgumentException();
+        }
+        return newHeader(position, byteBuffer, stripeCount, true, null);
+    }
+
+    /**
+     * Create a new header with this layout that will write itself to the given
+     * file position, using the given byte buffer for header content, guarded
+     * by the given count of lock stripes or a single lock if the count is
+     * zero, that frees its byte buffer to the given allocator when it is
+     * released.
+     * 
+     * @param position
+     *            The file position.
+     * @param byteBuffer
+     *            The byte buffer of header content.
+     * @param stripeCount
+     *            The count of lock stripes or zero for a single lock.
+     * @param concurrent
+     *            Whether the header is a concurrent header.
+     * @param allocator
+     *            The allocator of the byte buffer or null.
+     * @return A new header.
+     * @exception IllegalArgumentException
+     *                If the byte buffer is smaller than the header.
+     */
+    Header<K> newHeader(long position, ByteBuffer byteBuffer, int stripeCount, boolean concurrent, BufferAllocator allocator) {
+        ReadWriteLock[] stripes = stripeCount == 0 ? null : newStripes(stripeCount);
+        if (concurrent) {
+            return new Header<K>(position, this, byteBuffer, stripes, new ConcurrentDirtyBlockMap(byteBuffer.capacity(), 8), allocator);
+        }
+        if (stripes == null) {
+            return new Header<K>(position, this, byteBuffer, new ReentrantLock(), allocator);
+        }
+        return new Header<K>(position, this, byteBuffer, stripes, allocator);
+    }
+
+    /**
+     * Create the given count of read/write lock stripes.
+     * 
+     * @param stripeCount
+     *            The count of lock stripes.
+     * @return The read/write lock stripes.
+     */
+    private static ReadWriteLock[] newStripes(int stripeCount) {
+        ReadWriteLock[] stripes = new ReadWriteLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        return stripes;
+    }
+}
@@ -0,0 +1,31 @@
+package com.goodworkalan.region;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An allocator that allocates heap byte buffers and leaves freed byte buffers
+ * to the garbage collector.
+ * 
+ * @author Alan Gutierrez
+ */
+public class HeapBufferAllocator implements BufferAllocator {
+    /**
+     * Allocate a heap byte buffer with the given capacity.
+     * 
+     * @param capacity
+     *            The capacity of the byte buffer.
+     * @return A new heap byte buffer.
+     */
+    public ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Does nothing.
+     * 
+     * @param byteBuffer
+     *            The byte buffer to free.
+     */
+    public void free(ByteBuffer byteBuffer) {
+    }
+}
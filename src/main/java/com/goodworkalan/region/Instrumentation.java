@@ -0,0 +1,174 @@
+package com.goodworkalan.region;
+
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Holds the {@link RegionListener} that is notified of the dirtying, flushing
+ * and locking of regions, and records flushes and lock waits as Flight
+ * Recorder events.
+ * <p>
+ * The listener is disabled by default. While no listener is installed, the
+ * cost of the listener is a read of a volatile field at each point of notice;
+ * nothing is counted or timed for it.
+ * <p>
+ * A flush and a lock wait are also recorded as the
+ * <code>com.goodworkalan.region.Flush</code> and
+ * <code>com.goodworkalan.region.LockWait</code> events of the
+ * <code>Region</code> category when a Flight Recorder recording enables
+ * them. Each event begins before the writes or the wait and is committed
+ * after, so its duration and its place on the timeline are those of the
+ * operation, and a recording threshold selects the slow ones. A lock taken
+ * without waiting creates no event.
+ * <p>
+ * Every writable of this package reports its flushes, and every region lock
+ * acquired by this package, including the field locks taken by the atomic
+ * accessors of a {@link Header}, is acquired through
+ * {@link #lock(Region, Lock)} so that its waits are reported.
+ * 
+ * @author Alan Gutierrez
+ */
+public final class Instrumentation {
+    /** The region listener or null if instrumentation is disabled. */
+    private static volatile RegionListener listener;
+
+    /**
+     * Private constructor of a static utility class.
+     */
+    private Instrumentation() {
+    }
+
+    /**
+     * Get the region listener.
+     * 
+     * @return The region listener or null if instrumentation is disabled.
+     */
+    public static RegionListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Set the region listener, or disable instrumentation by setting it to
+     * null.
+     * 
+     * @param listener
+     *            The region listener or null.
+     */
+    public static void setListener(RegionListener listener) {
+        Instrumentation.listener = listener;
+    }
+
+    /**
+     * Acquire the lock of the given region, notifying the region listener of
+     * the time spent waiting if the lock was not immediately available.
+     * 
+     * @param region
+     *            The region.
+     */
+    public static void lock(Region region) {
+        lock(region, region.getLock());
+    }
+
+    /**
+     * Acquire the given lock that guards all or part of the given region,
+     * notifying the region listener of the time spent waiting if the lock was
+     * not immediately available.
+     * 
+     * @param region
+     *            The region.
+     * @param lock
+     *            The lock of the region or of a part of the region.
+     */
+    public static void lock(Region region, Lock lock) {
+        if (lock.tryLock()) {
+            return;
+        }
+        RegionListener listener = Instrumentation.listener;
+        long start = listener == null ? 0 : System.nanoTime();
+        LockWaitEvent event = new LockWaitEvent();
+        event.begin();
+        lock.lock();
+        event.end();
+        if (event.shouldCommit()) {
+            event.regionClass = region.getClass();
+            event.position = region.getPosition();
+            event.commit();
+        }
+        if (listener != null) {
+            listener.lockWaited(region, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Begin timing a flush, before the first write of the flush.
+     * 
+     * @return The flush event to pass to
+     *         {@link #flushed(Region, FlushEvent, int, int, int, int)}.
+     */
+    static FlushEvent beginFlush() {
+        FlushEvent event = new FlushEvent();
+        event.listener = listener;
+        if (event.listener != null) {
+            event.started = System.nanoTime();
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End the timing of a flush of the given region, after the last write of
+     * the flush, committing the flush event if it is enabled and notifying
+     * the region listener that was installed when the flush began.
+     * 
+     * @param region
+     *            The region.
+     * @param event
+     *            The flush event returned by {@link #beginFlush()}.
+     * @param spanCount
+     *            The count of dirty spans written.
+     * @param byteCount
+     *            The count of bytes written.
+     * @param writeCount
+     *            The count of calls to write the file channel.
+     * @param mergeCount
+     *            The count of merge iterations of the cleanable.
+     */
+    static void flushed(Region region, FlushEvent event, int spanCount, int byteCount, int writeCount, int mergeCount) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.regionClass = region.getClass();
+            event.position = region.getPosition();
+            event.spanCount = spanCount;
+            event.byteCount = byteCount;
+            event.writeCount = writeCount;
+            event.mergeCount = mergeCount;
+            event.commit();
+        }
+        if (event.listener != null) {
+            event.listener.flushed(region, spanCount, byteCount, writeCount, mergeCount, System.nanoTime() - event.started);
+        }
+    }
+
+    /**
+     * Get the count of merge iterations performed by the given cleanable since
+     * it was last entirely clean. Merges are counted by {@link DirtyByteMap}
+     * and {@link DirtyIntervalSet}, directly or through a
+     * {@link SynchronizedSpanCleanable}. Block maps set bits and never merge,
+     * so their count is zero.
+     * 
+     * @param cleanable
+     *            The cleanable.
+     * @return The count of merge iterations.
+     */
+    static int getMergeCount(Cleanable cleanable) {
+        if (cleanable instanceof DirtyIntervalSet) {
+            return ((DirtyIntervalSet) cleanable).getMergeCount();
+        }
+        if (cleanable instanceof DirtyByteMap) {
+            return ((DirtyByteMap) cleanable).getMergeCount();
+        }
+        if (cleanable instanceof SynchronizedSpanCleanable) {
+            return ((SynchronizedSpanCleanable) cleanable).getMergeCount();
+        }
+        return 0;
+    }
+}
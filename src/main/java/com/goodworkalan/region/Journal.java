@@ -0,0 +1,355 @@
+package com.goodworkalan.region;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * A write-ahead redo journal that records the dirty spans of regions as
+ * sequential appends to a journal file channel, so that a commit costs one
+ * sequential write and one force of the journal instead of many small writes
+ * to the data file.
+ * <p>
+ * Each thread builds its own {@link Transaction}, created by
+ * {@link #newTransaction()}. The dirty spans of a region are copied into the
+ * transaction with {@link Transaction#append(ByteBuffer, SpanCleanable, long)}.
+ * The spans are not marked clean, so the regions still write them to the data
+ * file later, lazily or in batches. A call to {@link #commit(Transaction)}
+ * appends a commit record to the transaction, writes its records to the end
+ * of the journal file channel and forces it to disk. Transactions of
+ * different threads never interleave in the journal. Once the regions have
+ * been written to the data file, {@link #checkpoint(FileChannel)} forces the
+ * data file and empties the journal.
+ * <p>
+ * Each record begins with a type and ends with a CRC32C checksum of the
+ * record.
+ * A span record holds the file position, length and bytes of a span, and a
+ * commit record ends a transaction. At startup,
+ * {@link #recover(FileChannel, FileChannel)} replays the spans of every
+ * committed transaction onto the data file, ignoring a transaction torn by a
+ * crash, then empties the journal. A journal must be recovered before it is
+ * used to append records.
+ * <p>
+ * The journal is thread-safe. A transaction is not, and must be used by one
+ * thread at a time.
+ * 
+ * @author Alan Gutierrez
+ */
+public class Journal {
+    /** The type of a span record. */
+    private final static int SPAN = 1;
+
+    /** The type of a commit record. */
+    private final static int COMMIT = 2;
+
+    /** The length of the type, position and length of a span record. */
+    private final static int SPAN_HEADER_LENGTH = 16;
+
+    /** The length of the checksum that ends a record. */
+    private final static int CHECKSUM_LENGTH = 4;
+
+    /** The initial capacity of the buffer of appended records. */
+    private final static int INITIAL_CAPACITY = 4096;
+
+    /** The journal file channel. */
+    private final FileChannel fileChannel;
+
+    /** The file position of the end of the journal. */
+    private long end;
+
+    /**
+     * The records of a transaction, appended by a single thread and written to
+     * the journal when the transaction is committed.
+     */
+    public final static class Transaction {
+        /** The journal of the transaction. */
+        private final Journal journal;
+
+        /** The checksum calculator. */
+        private final CRC32C crc;
+
+        /** The records appended since the last commit. */
+        private ByteBuffer records;
+
+        /**
+         * Create an empty transaction for the given journal.
+         * 
+         * @param journal
+         *            The journal.
+         */
+        private Transaction(Journal journal) {
+            this.journal = journal;
+            this.crc = new CRC32C();
+            this.records = ByteBuffer.allocate(INITIAL_CAPACITY);
+        }
+
+        /**
+         * Grow the buffer of appended records so that it has at least the
+         * given count of bytes remaining.
+         * 
+         * @param length
+         *            The count of bytes needed.
+         */
+        private void reserve(int length) {
+            if (records.remaining() < length) {
+                int capacity = records.capacity() * 2;
+                while (capacity - records.position() < length) {
+                    capacity *= 2;
+                }
+                ByteBuffer grown = ByteBuffer.allocate(capacity);
+                records.flip();
+                grown.put(records);
+                records = grown;
+            }
+        }
+
+        /**
+         * Append the checksum of the record that starts at the given offset in
+         * the buffer of appended records.
+         * 
+         * @param start
+         *            The offset of the start of the record.
+         */
+        private void seal(int start) {
+            crc.reset();
+            crc.update(records.array(), start, records.position() - start);
+            records.putInt((int) crc.getValue());
+        }
+
+        /**
+         * Append a span record for each dirty span of the given byte buffer,
+         * as reported by the given cleanable, where the byte buffer is written
+         * at the given file position of the data file. The spans are not
+         * marked clean. The caller must hold the lock of the region of the
+         * byte buffer.
+         * 
+         * @param byteBuffer
+         *            The byte buffer.
+         * @param cleanable
+         *            The cleanable that tracks the dirty bytes of the byte
+         *            buffer.
+         * @param position
+         *            The file position of the byte buffer in the data file.
+         */
+        public void append(ByteBuffer byteBuffer, SpanCleanable cleanable, long position) {
+            for (int start = cleanable.nextDirty(0), end; start != -1; start = cleanable.nextDirty(end)) {
+                end = cleanable.nextClean(start);
+                reserve(SPAN_HEADER_LENGTH + end - start + CHECKSUM_LENGTH);
+                int record = records.position();
+                records.putInt(SPAN);
+                records.putLong(position + start);
+                records.putInt(end - start);
+                ByteBuffer span = byteBuffer.duplicate();
+                span.limit(end);
+                span.position(start);
+                records.put(span);
+                seal(record);
+            }
+        }
+    }
+
+    /**
+     * Create a journal that appends to the end of the given journal file
+     * channel.
+     * 
+     * @param fileChannel
+     *            The journal file channel.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public Journal(FileChannel fileChannel) throws IOException {
+        this.fileChannel = fileChannel;
+        this.end = fileChannel.size();
+    }
+
+    /**
+     * Get the length of the journal on disk.
+     * 
+     * @return The length of the journal.
+     */
+    public synchronized long getLength() {
+        return end;
+    }
+
+    /**
+     * Create an empty transaction to append records to and commit to this
+     * journal.
+     * 
+     * @return A new transaction.
+     */
+    public Transaction newTransaction() {
+        return new Transaction(this);
+    }
+
+    /**
+     * Append a commit record to the given transaction, write its records to
+     * the end of the journal and force the journal to disk, leaving the
+     * transaction empty for reuse. If no records have been appended to the
+     * transaction since it was last committed, nothing is written.
+     * <p>
+     * If the write or force fails, the commit record is removed again and the
+     * records of the transaction are kept, so the caller can commit the
+     * transaction again. The end of the journal does not move, so the next
+     * commit overwrites any bytes written by the failed commit.
+     * 
+     * @param transaction
+     *            The transaction.
+     * @exception IllegalArgumentException
+     *                If the transaction was created by another journal.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public synchronized void commit(Transaction transaction) throws IOException {
+        if (transaction.journal != this) {
+            throw new IllegalArgumentException();
+        }
+        ByteBuffer records = transaction.records;
+        int record = records.position();
+        if (record == 0) {
+            return;
+        }
+        transaction.reserve(4 + CHECKSUM_LENGTH);
+        records = transaction.records;
+        records.putInt(COMMIT);
+        transaction.seal(record);
+        records.flip();
+        boolean written = false;
+        try {
+            BasicWritable.write(fileChannel, records, end);
+            fileChannel.force(false);
+            end += records.limit();
+            written = true;
+        } finally {
+            records.clear();
+            if (!written) {
+                records.position(record);
+            }
+        }
+    }
+
+    /**
+     * Force the given data file to disk, then empty the journal. The caller
+     * must have written every region whose spans were committed to the data
+     * file.
+     * 
+     * @param data
+     *            The data file channel.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public synchronized void checkpoint(FileChannel data) throws IOException {
+        data.force(false);
+        fileChannel.truncate(0);
+        fileChannel.force(false);
+        end = 0;
+    }
+
+    /**
+     * Read a record header of the given length at the given journal position
+     * into the given byte buffer, returning false if the journal ends first.
+     * 
+     * @param journal
+     *            The journal file channel.
+     * @param bytes
+     *            The byte buffer, cleared and limited to the header length.
+     * @param position
+     *            The journal position.
+     * @param size
+     *            The length of the journal.
+     * @return True if the header was read.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private static boolean read(FileChannel journal, ByteBuffer bytes, long position, long size) throws IOException {
+        if (size - position < bytes.remaining()) {
+            return false;
+        }
+        BasicWritable.read(journal, bytes, position);
+        bytes.flip();
+        return true;
+    }
+
+    /**
+     * Replay the spans of every committed transaction in the given journal
+     * onto the given data file, force the data file, and empty the journal.
+     * Records after the last valid commit record, including a transaction torn
+     * by a crash, are ignored.
+     * 
+     * @param journal
+     *            The journal file channel.
+     * @param data
+     *            The data file channel.
+     * @return The count of transactions replayed.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public static int recover(FileChannel journal, FileChannel data) throws IOException {
+        long size = journal.size();
+        ByteBuffer header = ByteBuffer.allocate(SPAN_HEADER_LENGTH);
+        CRC32C crc = new CRC32C();
+        long committed = 0;
+        int transactions = 0;
+        long position = 0;
+        for (;;) {
+            header.clear();
+            header.limit(4);
+            if (!read(journal, header, position, size)) {
+                break;
+            }
+            int type = header.getInt(0);
+            int length;
+            if (type == COMMIT) {
+                length = 4;
+            } else if (type == SPAN) {
+                header.clear();
+                if (!read(journal, header, position, size)) {
+                    break;
+                }
+                int spanLength = header.getInt(12);
+                if (spanLength < 0 || spanLength > Integer.MAX_VALUE - SPAN_HEADER_LENGTH - CHECKSUM_LENGTH) {
+                    break;
+                }
+                length = SPAN_HEADER_LENGTH + spanLength;
+            } else {
+                break;
+            }
+            if (size - position < length + CHECKSUM_LENGTH) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(length + CHECKSUM_LENGTH);
+            BasicWritable.read(journal, record, position);
+            crc.reset();
+            crc.update(record.array(), 0, length);
+            if (record.getInt(length) != (int) crc.getValue()) {
+                break;
+            }
+            position += length + CHECKSUM_LENGTH;
+            if (type == COMMIT) {
+                committed = position;
+                transactions++;
+            }
+        }
+        position = 0;
+        while (position < committed) {
+            header.clear();
+            header.limit(4);
+            read(journal, header, position, size);
+            if (header.getInt(0) == COMMIT) {
+                position += 4 + CHECKSUM_LENGTH;
+            } else {
+                header.clear();
+                read(journal, header, position, size);
+                ByteBuffer span = ByteBuffer.allocate(header.getInt(12));
+                BasicWritable.read(journal, span, position + SPAN_HEADER_LENGTH);
+                span.flip();
+                BasicWritable.write(data, span, header.getLong(4));
+                position += SPAN_HEADER_LENGTH + span.capacity() + CHECKSUM_LENGTH;
+            }
+        }
+        data.force(false);
+        journal.truncate(0);
+        journal.force(false);
+        return transactions;
+    }
+}
@@ -0,0 +1,32 @@
+package com.goodworkalan.region;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A region that reads its content from an underlying file channel. This is the
+ * counterpart of {@link Writable}.
+ * 
+ * @author Alan Gutierrez
+ */
+public interface Loadable extends Region {
+    /**
+     * Read the entire content of the region from the given file channel at the
+     * position of this region offset by the given offset and mark the entire
+     * region as clean. Bytes beyond the end of the file are zero.
+     * 
+     * @param fileChannel
+     *            The file channel to read from.
+     * @param offset
+     *            An offset to add to the region file position.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public void load(FileChannel fileChannel, int offset) throws IOException;
+
+    /**
+     * Mark the entire region as clean after its content has been read by a
+     * caller other than the region itself, such as a scatter read.
+     */
+    public void loaded();
+}
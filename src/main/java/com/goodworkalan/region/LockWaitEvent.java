@@ -0,0 +1,27 @@
+package com.goodworkalan.region;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Flight Recorder event that times a wait to acquire the lock of a region,
+ * begun when the lock is found to be held and committed once it is acquired.
+ * 
+ * @author Alan Gutierrez
+ */
+@Name("com.goodworkalan.region.LockWait")
+@Label("Region Lock Wait")
+@Category("Region")
+@Description("A thread waited to acquire the lock of a region")
+final class LockWaitEvent extends Event {
+    /** The class of the region. */
+    @Label("Region Class")
+    Class<?> regionClass;
+
+    /** The file position of the region. */
+    @Label("Position")
+    long position;
+}
@@ -0,0 +1,570 @@
+package com.goodworkalan.region;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A writable region whose content is a memory mapped byte buffer of the file,
+ * so that changes to the content go directly to the operating system page
+ * cache. Writing the region forces the pages that contain dirty bytes to disk.
+ * <p>
+ * When the cleanable used to track dirty bytes is a {@link SpanCleanable}, only
+ * the pages that contain dirty spans are forced, and a clean region is not
+ * forced at all. Forcing a range of pages requires the ranged
+ * <code>MappedByteBuffer.force(int, int)</code> method of newer JDKs. Where it
+ * is not available the entire mapped buffer is forced whenever any byte is
+ * dirty.
+ * <p>
+ * A mapping is normally released only when the garbage collector finalizes the
+ * mapped byte buffer, which can hold address space and file handles long after
+ * the region is discarded. {@link #unmap()} releases the mapping immediately
+ * where the JDK allows it, and the region cannot be written afterward.
+ * <p>
+ * Because a mapping is shared with every thread and process that maps the
+ * same file, the region offers volatile reads and writes, compare and set and
+ * get and add of <code>long</code> and <code>int</code> values through
+ * {@link VarHandle} views of the mapped byte buffer. The atomic updates mark
+ * the value dirty.
+ * <p>
+ * A mapped region, like any byte buffer, is limited to 2 GiB. A space larger
+ * than that is addressed with <code>long</code> positions through
+ * {@link RegionSpace}.
+ * 
+ * @author Alan Gutierrez
+ */
+public class MappedRegion extends AbstractRegion implements Writable {
+    /** The page size assumed when the page size cannot be determined. */
+    private final static int DEFAULT_PAGE_SIZE = 4096;
+
+    /** The ranged force method of the mapped byte buffer, if available. */
+    private final static Method FORCE_RANGE = getForceRange();
+
+    /** The unsafe instance used to release a mapping, if available. */
+    private final static Object UNSAFE = getUnsafe();
+
+    /** The size of the pages forced to disk. */
+    final static int PAGE_SIZE = getPageSize();
+
+    /** The method of the unsafe instance that releases a mapping. */
+    private final static Method INVOKE_CLEANER = getInvokeCleaner();
+
+    /** A big-endian view of a byte buffer as longs. */
+    private final static VarHandle BIG_ENDIAN_LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /** A little-endian view of a byte buffer as longs. */
+    private final static VarHandle LITTLE_ENDIAN_LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /** A big-endian view of a byte buffer as ints. */
+    private final static VarHandle BIG_ENDIAN_INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    /** A little-endian view of a byte buffer as ints. */
+    private final static VarHandle LITTLE_ENDIAN_INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /** The cleanable interface used to track which bytes are dirty. */
+    protected final Cleanable cleanable;
+
+    /** The memory mapped byte buffer of region content. */
+    private final MappedByteBuffer mappedByteBuffer;
+
+    /**
+     * The dirty block map reused to receive the drained blocks of a
+     * {@link ConcurrentDirtyBlockMap} cleanable, or null.
+     */
+    private final DirtyBlockMap drained;
+
+    /** Whether the mapping has been released. */
+    private boolean unmapped;
+
+    /** The count of dirty spans forced by the current write. */
+    private int spanCount;
+
+    /** The count of forces of the mapped byte buffer by the current write. */
+    private int forceCount;
+
+    /** The count of bytes forced by the current write. */
+    private int forcedByteCount;
+
+    /**
+     * Create a region at the given file position, with the given memory mapped
+     * byte buffer of region content, guarded by the given lock.
+     * 
+     * @param position
+     *            The position of the region on disk.
+     * @param mappedByteBuffer
+     *            The memory mapped byte buffer of region content.
+     * @param lock
+     *            A lock used to lock the region for reading and writing.
+     * @param cleanable
+     *            The cleanable interface used to record dirtyed bytes in the
+     *            byte buffer.
+     */
+    public MappedRegion(long position, MappedByteBuffer mappedByteBuffer, Lock lock, Cleanable cleanable) {
+        super(position, mappedByteBuffer, lock);
+        this.mappedByteBuffer = mappedByteBuffer;
+        this.cleanable = cleanable;
+        this.drained = BasicWritable.newDrainMap(cleanable);
+    }
+
+    /**
+     * Create a region that maps the given length of bytes of the given file
+     * channel at the given file position for reading and writing. The region
+     * is guarded by a new reentrant lock and tracks dirty bytes with a
+     * {@link DirtyIntervalSet}.
+     * 
+     * @param fileChannel
+     *            The file channel to map.
+     * @param position
+     *            The position of the region on disk.
+     * @param length
+     *            The length of the region.
+     * @throws IOException
+     *             If an I/O error occurs while mapping the file.
+     */
+    public MappedRegion(FileChannel fileChannel, long position, int length) throws IOException {
+        this(position, fileChannel.map(FileChannel.MapMode.READ_WRITE, position, length), new ReentrantLock(), new DirtyIntervalSet(length));
+    }
+
+    /**
+     * Look up the ranged force method of the mapped byte buffer class, which
+     * is only available in newer JDKs.
+     * 
+     * @return The ranged force method or null if it is not available.
+     */
+    private static Method getForceRange() {
+        try {
+            return MappedByteBuffer.class.getMethod("force", int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Look up the unsafe instance, which can release a mapping and report the
+     * page size.
+     * 
+     * @return The unsafe instance or null if it is not available.
+     */
+    private static Object getUnsafe() {
+        try {
+            Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return field.get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the page size of the operating system from the unsafe instance, or
+     * the default page size if it is not available or is not a power of two.
+     * The ranged force method aligns the range to pages itself, so the page
+     * size is only used to merge dirty spans that share a page into one force.
+     * 
+     * @return The page size.
+     */
+    private static int getPageSize() {
+        if (UNSAFE == null) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        int pageSize;
+        try {
+            pageSize = (Integer) UNSAFE.getClass().getMethod("pageSize").invoke(UNSAFE);
+        } catch (ReflectiveOperationException e) {
+            return DEFAULT_PAGE_SIZE;
+        } catch (RuntimeException e) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        return pageSize > 0 && (pageSize & (pageSize - 1)) == 0 ? pageSize : DEFAULT_PAGE_SIZE;
+    }
+
+    /**
+     * Look up the method of the unsafe instance that releases a mapping.
+     * 
+     * @return The release method or null if it is not available.
+     */
+    private static Method getInvokeCleaner() {
+        if (UNSAFE == null) {
+            return null;
+        }
+        try {
+            return UNSAFE.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return the drityable interface used to record dirtyed bytes in the byte
+     * buffer.
+     * 
+     * @return The dirtyable recorder for the byte buffer.
+     */
+    @Override
+    protected Dirtyable getDirtyable() {
+        return cleanable;
+    }
+
+    /**
+     * Force the pages that contain dirty bytes to disk and mark the entire
+     * cleanable used to track dirty bytes as clean. The content is already
+     * written to the file by the memory mapping, so the given file channel and
+     * offset are not used. A {@link ConcurrentDirtyBlockMap} is drained before
+     * the pages are forced, so that blocks dirtied concurrently remain dirty.
+     * The forces are reported to the region listener as writes of the forced
+     * bytes.
+     * 
+     * @param fileChannel
+     *            The file channel to write to.
+     * @param offset
+     *            An offset to add to the dirty region map file position.
+     * @throws IOException
+     *             If an I/O error occurs.
+     * @exception IllegalStateException
+     *                If the mapping has been released.
+     */
+    public void write(FileChannel fileChannel, int offset) throws IOException {
+        if (unmapped) {
+            throw new IllegalStateException();
+        }
+        FlushEvent event = Instrumentation.beginFlush();
+        spanCount = 0;
+        forceCount = 0;
+        forcedByteCount = 0;
+        SpanCleanable spans = BasicWritable.getSpans(cleanable, drained);
+        if (spans != null) {
+            int start = spans.nextDirty(0);
+            if (start == -1) {
+                return;
+            }
+            boolean forced = false;
+            try {
+                force(spans, start);
+                forced = true;
+            } finally {
+                if (!forced && spans != cleanable) {
+                    ((ConcurrentDirtyBlockMap) cleanable).restore((DirtyBlockMap) spans);
+                    spans.clean();
+                }
+            }
+        } else {
+            spanCount++;
+            force();
+        }
+        Instrumentation.flushed(this, event, spanCount, forcedByteCount, forceCount, Instrumentation.getMergeCount(cleanable));
+        if (spans == cleanable || spans == null) {
+            cleanable.clean();
+        } else {
+            spans.clean();
+        }
+    }
+
+    /**
+     * Force the entire mapped byte buffer to disk.
+     */
+    private void force() {
+        mappedByteBuffer.force();
+        forceCount++;
+        forcedByteCount += getLength();
+    }
+
+    /**
+     * Force the pages that contain the dirty spans of the given span cleanable,
+     * starting from the given first dirty offset.
+     * 
+     * @param spans
+     *            The dirty spans.
+     * @param start
+     *            The offset of the first dirty byte.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private void force(SpanCleanable spans, int start) throws IOException {
+        if (FORCE_RANGE == null) {
+            spanCount++;
+            force();
+        } else {
+            int shift = (int) (getPosition() % PAGE_SIZE);
+            while (start != -1) {
+                int first = (start + shift) / PAGE_SIZE * PAGE_SIZE - shift;
+                int end = spans.nextClean(start);
+                int next = spans.nextDirty(end);
+                int last = (end + shift + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE - shift;
+                spanCount++;
+                while (next != -1 && next < last) {
+                    end = spans.nextClean(next);
+                    next = spans.nextDirty(end);
+                    spanCount++;
+                    last = (end + shift + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE - shift;
+                }
+                if (first < 0) {
+                    first = 0;
+                }
+                if (last > getLength()) {
+                    last = getLength();
+                }
+                force(first, last - first);
+                start = next;
+            }
+        }
+    }
+
+    /**
+     * Force the given length of bytes at the given offset of the mapped byte
+     * buffer to disk using the ranged force method.
+     * 
+     * @param offset
+     *            The offset of the range to force.
+     * @param length
+     *            The length of the range to force.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private void force(int offset, int length) throws IOException {
+        try {
+            FORCE_RANGE.invoke(mappedByteBuffer, offset, length);
+            forceCount++;
+            forcedByteCount += length;
+        } catch (IllegalAccessException e) {
+            force();
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                if (cause.getCause() instanceof IOException) {
+                    throw (IOException) cause.getCause();
+                }
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Release the mapping immediately instead of waiting for the garbage
+     * collector to finalize the mapped byte buffer. Dirty bytes that have not
+     * been forced are still written to the file by the operating system, but
+     * are not forced to disk.
+     * <p>
+     * The caller must hold the region lock and must ensure that no thread uses
+     * the byte buffer of the region afterward, since reading or writing the
+     * byte buffer of a released mapping can crash the virtual machine. The
+     * region can no longer be written.
+     * 
+     * @return True if the mapping was released, false if the JDK does not
+     *         provide <code>Unsafe.invokeCleaner</code>, in which case it is
+     *         released by the garbage collector as before.
+     */
+    public boolean unmap() {
+        if (unmapped) {
+            return true;
+        }
+        if (INVOKE_CLEANER == null) {
+            return false;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, mappedByteBuffer);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        }
+        unmapped = true;
+        return true;
+    }
+
+    /**
+     * Get the view of the mapped byte buffer as longs in the byte order of the
+     * byte buffer, checking that the mapping has not been released.
+     * 
+     * @return The long view.
+     * @exception IllegalStateException
+     *                If the mapping has been released.
+     */
+    private VarHandle getLongs() {
+        if (unmapped) {
+            throw new IllegalStateException();
+        }
+        return mappedByteBuffer.order() == ByteOrder.BIG_ENDIAN ? BIG_ENDIAN_LONGS : LITTLE_ENDIAN_LONGS;
+    }
+
+    /**
+     * Get the view of the mapped byte buffer as ints in the byte order of the
+     * byte buffer, checking that the mapping has not been released.
+     * 
+     * @return The int view.
+     * @exception IllegalStateException
+     *                If the mapping has been released.
+     */
+    private VarHandle getInts() {
+        if (unmapped) {
+            throw new IllegalStateException();
+        }
+        return mappedByteBuffer.order() == ByteOrder.BIG_ENDIAN ? BIG_ENDIAN_INTS : LITTLE_ENDIAN_INTS;
+    }
+
+    /**
+     * Read the long value at the given offset with volatile memory semantics.
+     * The caller must hold the region lock unless the cleanable is a
+     * {@link ConcurrentDirtyBlockMap}, and in either case the region must not
+     * be unmapped concurrently.
+     * 
+     * @param offset
+     *            The offset of the long, aligned to eight bytes in memory.
+     * @return The long value.
+     * @exception IllegalStateException
+     *                If the mapping has been released or the long is not
+     *                aligned in memory.
+     */
+    public long getLongVolatile(int offset) {
+        return (long) getLongs().getVolatile(mappedByteBuffer, offset);
+    }
+
+    /**
+     * Write the given long value at the given offset with volatile memory
+     * semantics and mark it dirty.
+     * 
+     * @param offset
+     *            The offset of the long, aligned to eight bytes in memory.
+     * @param value
+     *            The long value.
+     * @exception IllegalStateException
+     *                If the mapping has been released or the long is not
+     *                aligned in memory.
+     */
+    public void putLongVolatile(int offset, long value) {
+        getLongs().setVolatile(mappedByteBuffer, offset, value);
+        dirty(offset, 8);
+    }
+
+    /**
+     * Atomically set the long value at the given offset to the given update
+     * value if it is the given expected value, marking it dirty if it is set.
+     * 
+     * @param offset
+     *            The offset of the long, aligned to eight bytes in memory.
+     * @param expect
+     *            The expected value.
+     * @param update
+     *            The new value.
+     * @return True if the value was set.
+     * @exception IllegalStateException
+     *                If the mapping has been released or the long is not
+     *                aligned in memory.
+     */
+    public boolean compareAndSetLong(int offset, long expect, long update) {
+        if (!getLongs().compareAndSet(mappedByteBuffer, offset, expect, update)) {
+            return false;
+        }
+        dirty(offset, 8);
+        return true;
+    }
+
+    /**
+     * Atomically add the given delta to the long value at the given offset
+     * and mark it dirty.
+     * 
+     * @param offset
+     *            The offset of the long, aligned to eight bytes in memory.
+     * @param delta
+     *            The value to add.
+     * @return The previous value.
+     * @exception IllegalStateException
+     *                If the mapping has been released or the long is not
+     *                aligned in memory.
+     */
+    public long getAndAddLong(int offset, long delta) {
+        long value = (long) getLongs().getAndAdd(mappedByteBuffer, offset, delta);
+        dirty(offset, 8);
+        return value;
+    }
+
+    /**
+     * Read the int value at the given offset with volatile memory semantics.
+     * The caller must hold the region lock unless the cleanable is a
+     * {@link ConcurrentDirtyBlockMap}, and in either case the region must not
+     * be unmapped concurrently.
+     * 
+     * @param offset
+     *            The offset of the int, aligned to four bytes in memory.
+     * @return The int value.
+     * @exception IllegalStateException
+     *                If the mapping has been released or the int is not
+     *                aligned in memory.
+     */
+    public int getIntVolatile(int offset) {
+        return (int) getInts().getVolatile(mappedByteBuffer, offset);
+    }
+
+    /**
+     * Write the given int value at the given offset with volatile memory
+     * semantics and mark it dirty.
+     * 
+     * @param offset
+     *            The offset of the int, aligned to four bytes in memory.
+     * @param value
+     *            The int value.
+     * @exception IllegalStateException
+     *                If the mapping has been released or the int is not
+     *                aligned in memory.
+     */
+    public void putIntVolatile(int offset, int value) {
+        getInts().setVolatile(mappedByteBuffer, offset, value);
+        dirty(offset, 4);
+    }
+
+    /**
+     * Atomically set the int value at the given offset to the given update
+     * value if it is the given expected value, marking it dirty if it is set.
+     * 
+     * @param offset
+     *            The offset of the int, aligned to four bytes in memory.
+     * @param expect
+     *            The expected value.
+     * @param update
+     *            The new value.
+     * @return True if the value was set.
+     * @exception IllegalStateException
+     *                If the mapping has been released or the int is not
+     *                aligned in memory.
+     */
+    public boolean compareAndSetInt(int offset, int expect, int update) {
+        if (!getInts().compareAndSet(mappedByteBuffer, offset, expect, update)) {
+            return false;
+        }
+        dirty(offset, 4);
+        return true;
+    }
+
+    /**
+     * Atomically add the given delta to the int value at the given offset and
+     * mark it dirty.
+     * 
+     * @param offset
+     *            The offset of the int, aligned to four bytes in memory.
+     * @param delta
+     *            The value to add.
+     * @return The previous value.
+     * @exception IllegalStateException
+     *                If the mapping has been released or the int is not
+     *                aligned in memory.
+     */
+    public int getAndAddInt(int offset, int delta) {
+        int value = (int) getInts().getAndAdd(mappedByteBuffer, offset, delta);
+        dirty(offset, 4);
+        return value;
+    }
+}
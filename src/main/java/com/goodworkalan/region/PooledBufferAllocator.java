@@ -0,0 +1,142 @@
+package com.goodworkalan.region;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An allocator that pools direct byte buffers in power of two size classes so
+ * that they can be reused instead of being allocated and collected.
+ * <p>
+ * A request is served from the smallest size class that can hold it. The byte
+ * buffer returned is a slice of the pooled byte buffer whose capacity is
+ * exactly the capacity requested, so that regions can continue to use the
+ * byte buffer capacity as the region length. Requests larger than the largest
+ * size class are allocated directly and are not pooled. The pool retains freed
+ * byte buffers until the total capacity of retained byte buffers reaches the
+ * retained capacity given at construction.
+ * <p>
+ * The allocator maps every outstanding slice to its pooled byte buffer until
+ * the slice is freed, so a byte buffer that is never freed is never
+ * collected. Every byte buffer allocated must be freed, as
+ * {@link Header#release()} does for a header created by a
+ * {@link HeaderBuilder}.
+ * <p>
+ * The pooled allocator is thread-safe.
+ * 
+ * @author Alan Gutierrez
+ */
+public class PooledBufferAllocator implements BufferAllocator {
+    /** The base two logarithm of the smallest size class. */
+    private final static int MINIMUM_SHIFT = 6;
+
+    /** The base two logarithm of the largest size class. */
+    private final int maximumShift;
+
+    /** The maximum total capacity of retained free byte buffers. */
+    private final long retainedCapacity;
+
+    /** The free byte buffers for each size class. */
+    private final List<List<ByteBuffer>> free;
+
+    /** The outstanding byte buffer slices mapped to their pooled byte buffer. */
+    private final Map<ByteBuffer, ByteBuffer> outstanding;
+
+    /** The total capacity of retained free byte buffers. */
+    long retained;
+
+    /**
+     * Create a pooled allocator with size classes from 64 bytes up to the
+     * given largest size class that retains free byte buffers up to the given
+     * total capacity.
+     * 
+     * @param largest
+     *            The largest size class, a power of two.
+     * @param retainedCapacity
+     *            The maximum total capacity of retained free byte buffers.
+     */
+    public PooledBufferAllocator(int largest, long retainedCapacity) {
+        if (largest < (1 << MINIMUM_SHIFT) || (largest & (largest - 1)) != 0) {
+            throw new IllegalArgumentException();
+        }
+        this.maximumShift = Integer.numberOfTrailingZeros(largest);
+        this.retainedCapacity = retainedCapacity;
+        this.free = new ArrayList<List<ByteBuffer>>();
+        for (int i = MINIMUM_SHIFT; i <= maximumShift; i++) {
+            free.add(new ArrayList<ByteBuffer>());
+        }
+        this.outstanding = new IdentityHashMap<ByteBuffer, ByteBuffer>();
+    }
+
+    /**
+     * Get the base two logarithm of the smallest size class that can hold the
+     * given capacity.
+     * 
+     * @param capacity
+     *            The capacity.
+     * @return The base two logarithm of the size class.
+     */
+    private static int getShift(int capacity) {
+        int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return shift < MINIMUM_SHIFT ? MINIMUM_SHIFT : shift;
+    }
+
+    /**
+     * Allocate a direct byte buffer with the given capacity, reusing a pooled
+     * byte buffer from the smallest size class that can hold it if one is
+     * free.
+     * 
+     * @param capacity
+     *            The capacity of the byte buffer.
+     * @return A new direct byte buffer.
+     */
+    public ByteBuffer allocate(int capacity) {
+        int shift = getShift(capacity);
+        if (shift > maximumShift) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        ByteBuffer pooled = null;
+        synchronized (this) {
+            List<ByteBuffer> buffers = free.get(shift - MINIMUM_SHIFT);
+            if (!buffers.isEmpty()) {
+                pooled = buffers.remove(buffers.size() - 1);
+                retained -= pooled.capacity();
+            }
+        }
+        if (pooled == null) {
+            pooled = ByteBuffer.allocateDirect(1 << shift);
+        } else {
+            pooled.clear();
+            while (pooled.remaining() >= 8) {
+                pooled.putLong(0L);
+            }
+            while (pooled.hasRemaining()) {
+                pooled.put((byte) 0);
+            }
+            pooled.clear();
+        }
+        pooled.limit(capacity);
+        ByteBuffer slice = pooled.slice();
+        synchronized (this) {
+            outstanding.put(slice, pooled);
+        }
+        return slice;
+    }
+
+    /**
+     * Return the given byte buffer to the pool of its size class, if the pool
+     * has not reached its retained capacity.
+     * 
+     * @param byteBuffer
+     *            The byte buffer to free.
+     */
+    public synchronized void free(ByteBuffer byteBuffer) {
+        ByteBuffer pooled = outstanding.remove(byteBuffer);
+        if (pooled != null && retained + pooled.capacity() <= retainedCapacity) {
+            free.get(getShift(pooled.capacity()) - MINIMUM_SHIFT).add(pooled);
+            retained += pooled.capacity();
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.goodworkalan.region;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache of regions of a single file channel that keeps the total length of
+ * cached regions within a memory budget.
+ * <p>
+ * Regions are identified by their file position. On a miss the region content
+ * is read from the file channel into a byte buffer obtained from the buffer
+ * allocator of the cache. When loading a region would exceed the memory
+ * budget, regions are evicted using the CLOCK algorithm, an approximation of
+ * least recently used. A dirty region is written back to the file channel
+ * before it is evicted.
+ * <p>
+ * A region is returned locked, and the cache will not evict a locked region.
+ * The caller must unlock the region when it is done with it and must not use
+ * the region after it has been unlocked without getting it from the cache
+ * again. If every cached region is locked, the cache will exceed its memory
+ * budget rather than block.
+ * <p>
+ * The cache is thread-safe. Neither loading a region nor writing back an
+ * evicted region is performed while holding the cache monitor. A region
+ * chosen for eviction is kept locked while it is written back, so that other
+ * threads can neither evict it again nor use it, and is then removed. A
+ * thread waiting on the lock of an evicted region gets the region from the
+ * cache again.
+ * 
+ * @author Alan Gutierrez
+ */
+public class RegionCache {
+    /** The file channel of the cached regions. */
+    private final FileChannel fileChannel;
+
+    /** The allocator used to allocate region byte buffers. */
+    private final BufferAllocator allocator;
+
+    /** The maximum total length of cached regions. */
+    private final long capacity;
+
+    /** The cached regions by file position. */
+    private final Map<Long, Entry> entries;
+
+    /** The ring of cached regions swept by the clock hand. */
+    private final List<Entry> ring;
+
+    /** The index of the clock hand in the ring. */
+    private int hand;
+
+    /** The total length of cached regions. */
+    private long size;
+
+    /** The count of requests served from the cache. */
+    private long hitCount;
+
+    /** The count of requests that loaded a region from the file channel. */
+    private long missCount;
+
+    /** The count of regions evicted. */
+    private long evictionCount;
+
+    /** The count of dirty regions written back by eviction. */
+    private long writeBackCount;
+
+    /**
+     * A cached region.
+     */
+    private final static class Entry {
+        /** The cached region. */
+        public final BasicWritable region;
+
+        /** The cleanable used to track the dirty bytes of the region. */
+        public final SpanCleanable cleanable;
+
+        /** The lock of the region. */
+        public final ReentrantLock lock;
+
+        /** Whether the region has been used since the clock hand last passed. */
+        public boolean referenced;
+
+        /** Whether the region has been evicted or failed to load. */
+        public boolean evicted;
+
+        /**
+         * Create a cached region.
+         * 
+         * @param region
+         *            The cached region.
+         * @param cleanable
+         *            The cleanable used to track the dirty bytes.
+         * @param lock
+         *            The lock of the region.
+         */
+        public Entry(BasicWritable region, SpanCleanable cleanable, ReentrantLock lock) {
+            this.region = region;
+            this.cleanable = cleanable;
+            this.lock = lock;
+        }
+    }
+
+    /**
+     * Create a region cache for the given file channel that allocates region
+     * byte buffers with the given allocator and keeps the total length of
+     * cached regions at or below the given capacity.
+     * 
+     * @param fileChannel
+     *            The file channel of the cached regions.
+     * @param allocator
+     *            The allocator used to allocate region byte buffers.
+     * @param capacity
+     *            The maximum total length of cached regions.
+     */
+    public RegionCache(FileChannel fileChannel, BufferAllocator allocator, long capacity) {
+        this.fileChannel = fileChannel;
+        this.allocator = allocator;
+        this.capacity = capacity;
+        this.entries = new HashMap<Long, Entry>();
+        this.ring = new ArrayList<Entry>();
+    }
+
+    /**
+     * Get the region of the given length at the given file position, loading
+     * it from the file channel if it is not cached. The region is returned
+     * locked and the caller must unlock it when done.
+     * 
+     * @param position
+     *            The file position of the region.
+     * @param length
+     *            The length of the region.
+     * @return The locked region.
+     * @throws IOException
+     *             If an I/O error occurs while loading the region or writing
+     *             back an evicted region.
+     * @exception IllegalStateException
+     *                If a region of a different length is cached at the file
+     *                position.
+     */
+    public Writable get(long position, int length) throws IOException {
+        for (;;) {
+            Entry entry = null;
+            Entry victim = null;
+            boolean loading = false;
+            synchronized (this) {
+                entry = entries.get(position);
+                if (entry == null) {
+                    while (size + length > capacity) {
+                        Entry candidate = evict();
+                        if (candidate == null) {
+                            break;
+                        }
+                        if (candidate.cleanable.nextDirty(0) != -1) {
+                            victim = candidate;
+                            break;
+                        }
+                        remove(candidate);
+                        evictionCount++;
+                        candidate.lock.unlock();
+                    }
+                    if (victim == null) {
+                        ByteBuffer byteBuffer = allocator.allocate(length);
+                        DirtyIntervalSet cleanable = new DirtyIntervalSet(length);
+                        ReentrantLock lock = new ReentrantLock();
+                        entry = new Entry(new BasicWritable(position, byteBuffer, lock, cleanable), cleanable, lock);
+                        lock.lock();
+                        entries.put(position, entry);
+                        ring.add(entry);
+                        size += length;
+                        missCount++;
+                        loading = true;
+                    }
+                } else if (entry.region.getLength() != length) {
+                    throw new IllegalStateException();
+                } else {
+                    hitCount++;
+                }
+                if (entry != null) {
+                    entry.referenced = true;
+                }
+            }
+            if (victim != null) {
+                writeBack(victim);
+                continue;
+            }
+            if (loading) {
+                boolean loaded = false;
+                try {
+                    entry.region.load(fileChannel, 0);
+                    loaded = true;
+                } finally {
+                    if (!loaded) {
+                        synchronized (this) {
+                            remove(entry);
+                        }
+                        entry.region.getLock().unlock();
+                    }
+                }
+                return entry.region;
+            }
+            Instrumentation.lock(entry.region);
+            if (!entry.evicted) {
+                return entry.region;
+            }
+            entry.region.getLock().unlock();
+        }
+    }
+
+    /**
+     * Write back the given dirty region chosen for eviction, locked by the
+     * current thread, without holding the cache monitor, then remove it from
+     * the cache and unlock it. If the write fails, the region remains cached.
+     * 
+     * @param victim
+     *            The entry to write back and remove.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    private void writeBack(Entry victim) throws IOException {
+        try {
+            victim.region.write(fileChannel, 0);
+            synchronized (this) {
+                remove(victim);
+                evictionCount++;
+                writeBackCount++;
+            }
+        } finally {
+            victim.lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the given entry from the cache and free its byte buffer.
+     * 
+     * @param entry
+     *            The entry to remove.
+     */
+    private void remove(Entry entry) {
+        entry.evicted = true;
+        entries.remove(entry.region.getPosition());
+        int index = ring.indexOf(entry);
+        Entry last = ring.remove(ring.size() - 1);
+        if (last != entry) {
+            ring.set(index, last);
+        }
+        if (hand >= ring.size()) {
+            hand = 0;
+        }
+        size -= entry.region.getLength();
+        allocator.free(entry.region.getByteBuffer());
+    }
+
+    /**
+     * Sweep the clock hand to find an unlocked region that has not been
+     * referenced since the hand last passed it, and lock it for eviction.
+     * Regions locked by the current thread are also skipped. The hand sweeps
+     * the ring at most twice. The caller must hold the cache monitor.
+     * 
+     * @return The locked entry to evict or null if every region is locked.
+     */
+    private Entry evict() {
+        for (int i = 0, stop = ring.size() * 2; i < stop; i++) {
+            Entry entry = ring.get(hand);
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else if (entry.lock.tryLock()) {
+                if (entry.lock.getHoldCount() == 1) {
+                    return entry;
+                }
+                entry.lock.unlock();
+            }
+            hand = (hand + 1) % ring.size();
+        }
+        return null;
+    }
+
+    /**
+     * Write every dirty cached region to the file channel, locking each region
+     * in turn. Clean regions are not written.
+     * 
+     * @return The count of regions written.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public int flush() throws IOException {
+        List<Entry> copy;
+        synchronized (this) {
+            copy = new ArrayList<Entry>(ring);
+        }
+        int count = 0;
+        for (Entry entry : copy) {
+            Instrumentation.lock(entry.region);
+            try {
+                if (!entry.evicted && entry.cleanable.nextDirty(0) != -1) {
+                    entry.region.write(fileChannel, 0);
+                    count++;
+                }
+            } finally {
+                entry.region.getLock().unlock();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the count of requests served from the cache.
+     * 
+     * @return The count of cache hits.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Get the count of requests that loaded a region from the file channel.
+     * 
+     * @return The count of cache misses.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Get the count of regions evicted.
+     * 
+     * @return The count of evictions.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Get the count of dirty regions written back to the file channel by
+     * eviction.
+     * 
+     * @return The count of eviction write-backs.
+     */
+    public synchronized long getWriteBackCount() {
+        return writeBackCount;
+    }
+
+    /**
+     * Get the total length of cached regions.
+     * 
+     * @return The total length of cached regions.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,248 @@
+package com.goodworkalan.region;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A region listener that keeps running totals of dirty bytes, flushes, dirty
+ * spans, merge iterations and lock waits for each class of region.
+ * <p>
+ * Dirty bytes are counted against the class of the region that was dirtied.
+ * The field regions of a {@link Header} are {@link BasicRegion} instances, so
+ * the bytes they dirty are counted against <code>BasicRegion</code> while the
+ * flushes of the header are counted against <code>Header</code>. The write
+ * amplification of headers is therefore meaningful only over the totals of
+ * every class, or when fields are updated through the accessors of the header.
+ * 
+ * @author Alan Gutierrez
+ */
+public class RegionCounters implements RegionListener {
+    /** The counters for each class of region. */
+    private final ConcurrentMap<Class<?>, Counters> counters = new ConcurrentHashMap<Class<?>, Counters>();
+
+    /**
+     * The running totals for a class of region.
+     */
+    public final static class Counters {
+        /** The count of bytes dirtied. */
+        private final AtomicLong dirtyByteCount = new AtomicLong();
+
+        /** The count of flushes. */
+        private final AtomicLong flushCount = new AtomicLong();
+
+        /** The count of dirty spans written. */
+        private final AtomicLong spanCount = new AtomicLong();
+
+        /** The count of bytes written. */
+        private final AtomicLong writtenByteCount = new AtomicLong();
+
+        /** The count of calls to write the file channel. */
+        private final AtomicLong writeCount = new AtomicLong();
+
+        /** The count of merge iterations. */
+        private final AtomicLong mergeCount = new AtomicLong();
+
+        /** The time in nanoseconds spent writing. */
+        private final AtomicLong flushDuration = new AtomicLong();
+
+        /** The count of lock waits. */
+        private final AtomicLong lockWaitCount = new AtomicLong();
+
+        /** The time in nanoseconds spent waiting for locks. */
+        private final AtomicLong lockWaitDuration = new AtomicLong();
+
+        /**
+         * Get the count of bytes dirtied.
+         * 
+         * @return The count of bytes dirtied.
+         */
+        public long getDirtyByteCount() {
+            return dirtyByteCount.get();
+        }
+
+        /**
+         * Get the count of flushes.
+         * 
+         * @return The count of flushes.
+         */
+        public long getFlushCount() {
+            return flushCount.get();
+        }
+
+        /**
+         * Get the count of dirty spans written.
+         * 
+         * @return The count of dirty spans written.
+         */
+        public long getSpanCount() {
+            return spanCount.get();
+        }
+
+        /**
+         * Get the count of bytes written.
+         * 
+         * @return The count of bytes written.
+         */
+        public long getWrittenByteCount() {
+            return writtenByteCount.get();
+        }
+
+        /**
+         * Get the count of calls to write the file channel.
+         * 
+         * @return The count of calls to write.
+         */
+        public long getWriteCount() {
+            return writeCount.get();
+        }
+
+        /**
+         * Get the count of merge iterations performed while tracking dirty
+         * spans.
+         * 
+         * @return The count of merge iterations.
+         */
+        public long getMergeCount() {
+            return mergeCount.get();
+        }
+
+        /**
+         * Get the time in nanoseconds spent writing.
+         * 
+         * @return The time spent writing.
+         */
+        public long getFlushDuration() {
+            return flushDuration.get();
+        }
+
+        /**
+         * Get the count of times a thread had to wait for a region lock.
+         * 
+         * @return The count of lock waits.
+         */
+        public long getLockWaitCount() {
+            return lockWaitCount.get();
+        }
+
+        /**
+         * Get the time in nanoseconds spent waiting for region locks.
+         * 
+         * @return The time spent waiting.
+         */
+        public long getLockWaitDuration() {
+            return lockWaitDuration.get();
+        }
+
+        /**
+         * Get the write amplification, the count of bytes written divided by
+         * the count of bytes dirtied.
+         * 
+         * @return The write amplification or zero if no bytes were dirtied.
+         */
+        public double getWriteAmplification() {
+            long dirtied = dirtyByteCount.get();
+            return dirtied == 0 ? 0 : (double) writtenByteCount.get() / dirtied;
+        }
+    }
+
+    /**
+     * Get the counters for the class of the given region, creating them if
+     * they do not exist.
+     * 
+     * @param region
+     *            The region.
+     * @return The counters for the class of the region.
+     */
+    private Counters counters(Region region) {
+        Class<?> type = region.getClass();
+        Counters found = counters.get(type);
+        if (found == null) {
+            Counters created = new Counters();
+            found = counters.putIfAbsent(type, created);
+            if (found == null) {
+                found = created;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Get the counters for the given class of region.
+     * 
+     * @param type
+     *            The class of region.
+     * @return The counters or null if no region of the class was reported.
+     */
+    public Counters getCounters(Class<?> type) {
+        return counters.get(type);
+    }
+
+    /**
+     * Get the write amplification over every class of region, the count of
+     * bytes written divided by the count of bytes dirtied.
+     * 
+     * @return The write amplification or zero if no bytes were dirtied.
+     */
+    public double getWriteAmplification() {
+        long dirtied = 0;
+        long written = 0;
+        for (Counters each : counters.values()) {
+            dirtied += each.getDirtyByteCount();
+            written += each.getWrittenByteCount();
+        }
+        return dirtied == 0 ? 0 : (double) written / dirtied;
+    }
+
+    /**
+     * Count the given length of dirty bytes of the given region.
+     * 
+     * @param region
+     *            The region.
+     * @param length
+     *            The length of the dirty bytes.
+     */
+    public void dirtied(Region region, int length) {
+        counters(region).dirtyByteCount.addAndGet(length);
+    }
+
+    /**
+     * Count a flush of the given region.
+     * 
+     * @param region
+     *            The region.
+     * @param spanCount
+     *            The count of dirty spans written.
+     * @param byteCount
+     *            The count of bytes written.
+     * @param writeCount
+     *            The count of calls to write the file channel.
+     * @param mergeCount
+     *            The count of merge iterations.
+     * @param duration
+     *            The time in nanoseconds taken to write.
+     */
+    public void flushed(Region region, int spanCount, int byteCount, int writeCount, int mergeCount, long duration) {
+        Counters counters = counters(region);
+        counters.flushCount.incrementAndGet();
+        counters.spanCount.addAndGet(spanCount);
+        counters.writtenByteCount.addAndGet(byteCount);
+        counters.writeCount.addAndGet(writeCount);
+        counters.mergeCount.addAndGet(mergeCount);
+        counters.flushDuration.addAndGet(duration);
+    }
+
+    /**
+     * Count a wait for the lock of the given region.
+     * 
+     * @param region
+     *            The region.
+     * @param duration
+     *            The time in nanoseconds spent waiting.
+     */
+    public void lockWaited(Region region, long duration) {
+        Counters counters = counters(region);
+        counters.lockWaitCount.incrementAndGet();
+        counters.lockWaitDuration.addAndGet(duration);
+    }
+}
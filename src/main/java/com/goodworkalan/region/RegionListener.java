@@ -0,0 +1,60 @@
+package com.goodworkalan.region;
+
+/**
+ * Receives notice of the dirtying, flushing and locking of regions, for
+ * gathering metrics or tracing in production. A listener is installed with
+ * {@link Instrumentation#setListener(RegionListener)}.
+ * <p>
+ * A listener is called from the thread that dirtied, wrote or locked the
+ * region, often while that thread holds the region lock, so it must be
+ * thread-safe and must return quickly.
+ * 
+ * @author Alan Gutierrez
+ */
+public interface RegionListener {
+    /**
+     * Called when the given length of bytes of the given region is marked as
+     * dirty. Bytes dirtied more than once before a flush are reported each
+     * time.
+     * 
+     * @param region
+     *            The region.
+     * @param length
+     *            The length of the dirty bytes.
+     */
+    public void dirtied(Region region, int length);
+
+    /**
+     * Called when the given region has written its dirty content to disk.
+     * 
+     * @param region
+     *            The region.
+     * @param spanCount
+     *            The count of dirty spans written.
+     * @param byteCount
+     *            The count of bytes written.
+     * @param writeCount
+     *            The count of calls to write the file channel.
+     * @param mergeCount
+     *            The count of merge iterations performed by the cleanable
+     *            while tracking the dirty spans, counted by a
+     *            {@link DirtyByteMap} or {@link DirtyIntervalSet}, directly or
+     *            through a {@link SynchronizedSpanCleanable}, and zero for
+     *            block maps and regions that are written whole.
+     * @param duration
+     *            The time in nanoseconds taken to write.
+     */
+    public void flushed(Region region, int spanCount, int byteCount, int writeCount, int mergeCount, long duration);
+
+    /**
+     * Called when a thread had to wait to acquire the lock of the given
+     * region, or the lock of a field or stripe of a header. A lock acquired
+     * without waiting is not reported.
+     * 
+     * @param region
+     *            The region.
+     * @param duration
+     *            The time in nanoseconds spent waiting.
+     */
+    public void lockWaited(Region region, long duration);
+}
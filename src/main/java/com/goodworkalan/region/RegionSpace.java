@@ -0,0 +1,332 @@
+package com.goodworkalan.region;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A space of bytes addressed by <code>long</code> positions that spans one or
+ * more file channels, for files larger than a single byte buffer can hold.
+ * <p>
+ * The space is divided into segments of a fixed length, each a region with
+ * its own byte buffer, lock and {@link DirtyIntervalSet}. Each file channel
+ * holds the same length of the space, a multiple of the segment length, so
+ * that a segment never spans two file channels. The first file channel holds
+ * the start of the space, the second file channel the bytes that follow, and
+ * so on.
+ * <p>
+ * The segments of each file channel are held by a {@link RegionCache}. A
+ * segment is read from its file channel the first time it is used, without
+ * holding any lock other than the lock of the segment, so that loading one
+ * segment does not block threads using other segments and threads that want
+ * the same segment wait for a single read. When the segments of a file
+ * channel exceed its equal share of the capacity of the space, unlocked
+ * segments are evicted, and dirty segments are written back before they are
+ * evicted.
+ * <p>
+ * Reads, writes and dirty marks that cross segment boundaries are split
+ * across the segments, locking each segment in turn, so an update that spans
+ * segments is not atomic.
+ * <p>
+ * The space is thread-safe.
+ * 
+ * @author Alan Gutierrez
+ */
+public class RegionSpace {
+    /** The file channels of the space in order. */
+    private final FileChannel[] fileChannels;
+
+    /** The length of the space held by each file channel. */
+    private final long fileLength;
+
+    /** The length of a segment. */
+    private final int segmentLength;
+
+    /** The caches of the segments of each file channel. */
+    private final RegionCache[] caches;
+
+    /** The count of eviction write-backs of each cache forced to disk. */
+    private final long[] forcedWriteBackCounts;
+
+    /**
+     * Create a region space over a single file channel, divided into segments
+     * of the given length allocated with the given allocator, that keeps every
+     * segment it loads in memory.
+     * 
+     * @param fileChannel
+     *            The file channel.
+     * @param segmentLength
+     *            The length of a segment.
+     * @param allocator
+     *            The allocator used to allocate segment byte buffers.
+     */
+    public RegionSpace(FileChannel fileChannel, int segmentLength, BufferAllocator allocator) {
+        this(fileChannel, segmentLength, allocator, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a region space over a single file channel, divided into segments
+     * of the given length allocated with the given allocator, that keeps the
+     * total length of loaded segments within the given capacity.
+     * 
+     * @param fileChannel
+     *            The file channel.
+     * @param segmentLength
+     *            The length of a segment.
+     * @param allocator
+     *            The allocator used to allocate segment byte buffers.
+     * @param capacity
+     *            The maximum total length of loaded segments.
+     */
+    public RegionSpace(FileChannel fileChannel, int segmentLength, BufferAllocator allocator, long capacity) {
+        this(new FileChannel[] { fileChannel }, Long.MAX_VALUE / Math.max(segmentLength, 1) * segmentLength, segmentLength, allocator, capacity);
+    }
+
+    /**
+     * Create a region space over the given file channels, each holding the
+     * given length of the space, divided into segments of the given length
+     * allocated with the given allocator, that keeps every segment it loads
+     * in memory.
+     * 
+     * @param fileChannels
+     *            The file channels of the space in order.
+     * @param fileLength
+     *            The length of the space held by each file channel, a
+     *            multiple of the segment length.
+     * @param segmentLength
+     *            The length of a segment.
+     * @param allocator
+     *            The allocator used to allocate segment byte buffers.
+     */
+    public RegionSpace(FileChannel[] fileChannels, long fileLength, int segmentLength, BufferAllocator allocator) {
+        this(fileChannels, fileLength, segmentLength, allocator, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a region space over the given file channels, each holding the
+     * given length of the space, divided into segments of the given length
+     * allocated with the given allocator, that keeps the total length of
+     * loaded segments within the given capacity. Each file channel is given
+     * an equal share of the capacity.
+     * 
+     * @param fileChannels
+     *            The file channels of the space in order.
+     * @param fileLength
+     *            The length of the space held by each file channel, a
+     *            multiple of the segment length.
+     * @param segmentLength
+     *            The length of a segment.
+     * @param allocator
+     *            The allocator used to allocate segment byte buffers.
+     * @param capacity
+     *            The maximum total length of loaded segments.
+     */
+    public RegionSpace(FileChannel[] fileChannels, long fileLength, int segmentLength, BufferAllocator allocator, long capacity) {
+        if (fileChannels.length == 0 || segmentLength < 1 || fileLength < segmentLength || fileLength % segmentLength != 0) {
+            throw new IllegalArgumentException();
+        }
+        this.fileChannels = fileChannels.clone();
+        this.fileLength = fileLength;
+        this.segmentLength = segmentLength;
+        this.caches = new RegionCache[fileChannels.length];
+        for (int i = 0; i < fileChannels.length; i++) {
+            caches[i] = new RegionCache(fileChannels[i], allocator, capacity / fileChannels.length);
+        }
+        this.forcedWriteBackCounts = new long[fileChannels.length];
+    }
+
+    /**
+     * Get the length of a segment.
+     * 
+     * @return The length of a segment.
+     */
+    public int getSegmentLength() {
+        return segmentLength;
+    }
+
+    /**
+     * Get the count of segments loaded into memory.
+     * 
+     * @return The count of loaded segments.
+     */
+    public int getSegmentCount() {
+        long size = 0;
+        for (RegionCache cache : caches) {
+            size += cache.getSize();
+        }
+        return (int) (size / segmentLength);
+    }
+
+    /**
+     * Get the index of the file channel that holds the given position of the
+     * space.
+     * 
+     * @param position
+     *            The position in the space.
+     * @return The file channel index.
+     * @exception IllegalStateException
+     *                If the position is outside of the space.
+     */
+    private int getFile(long position) {
+        long file = position / fileLength;
+        if (position < 0 || file >= fileChannels.length) {
+            throw new IllegalStateException();
+        }
+        return (int) file;
+    }
+
+    /**
+     * Get the segment that contains the given position of the space, reading
+     * it from its file channel if it is not loaded. The segment is returned
+     * locked and the caller must unlock it when done, and must not use it
+     * after it has been unlocked, since an unlocked segment can be evicted.
+     * The file position of the segment is its position in its file channel.
+     * 
+     * @param position
+     *            The position in the space.
+     * @return The locked segment.
+     * @throws IOException
+     *             If an I/O error occurs while loading the segment or writing
+     *             back an evicted segment.
+     * @exception IllegalStateException
+     *                If the position is outside of the space.
+     */
+    public Writable getSegment(long position) throws IOException {
+        int file = getFile(position);
+        long start = position / segmentLength * segmentLength;
+        return caches[file].get(start % fileLength, segmentLength);
+    }
+
+    /**
+     * Copy bytes between the given byte buffer and the space starting at the
+     * given position, segment by segment, marking the bytes dirty if copying
+     * into the space.
+     * 
+     * @param position
+     *            The position in the space.
+     * @param bytes
+     *            The byte buffer.
+     * @param write
+     *            Whether to copy from the byte buffer into the space.
+     * @throws IOException
+     *             If an I/O error occurs while loading a segment.
+     */
+    private void copy(long position, ByteBuffer bytes, boolean write) throws IOException {
+        while (bytes.hasRemaining()) {
+            Writable segment = getSegment(position);
+            int offset = (int) (position % segmentLength);
+            int length = Math.min(segmentLength - offset, bytes.remaining());
+            try {
+                ByteBuffer content = segment.getByteBuffer().duplicate();
+                content.limit(offset + length);
+                content.position(offset);
+                if (write) {
+                    ByteBuffer source = bytes.duplicate();
+                    source.limit(source.position() + length);
+                    content.put(source);
+                    segment.dirty(offset, length);
+                } else {
+                    ByteBuffer target = bytes.duplicate();
+                    target.limit(target.position() + length);
+                    target.put(content);
+                }
+            } finally {
+                segment.getLock().unlock();
+            }
+            bytes.position(bytes.position() + length);
+            position += length;
+        }
+    }
+
+    /**
+     * Read the remaining bytes of the given byte buffer from the space
+     * starting at the given position.
+     * 
+     * @param position
+     *            The position in the space.
+     * @param bytes
+     *            The byte buffer to read into.
+     * @throws IOException
+     *             If an I/O error occurs while loading a segment.
+     * @exception IllegalStateException
+     *                If the bytes extend outside of the space.
+     */
+    public void read(long position, ByteBuffer bytes) throws IOException {
+        copy(position, bytes, false);
+    }
+
+    /**
+     * Write the remaining bytes of the given byte buffer into the space
+     * starting at the given position and mark them dirty. The bytes are
+     * written to disk by the next {@link #flush()}.
+     * 
+     * @param position
+     *            The position in the space.
+     * @param bytes
+     *            The byte buffer to write from.
+     * @throws IOException
+     *             If an I/O error occurs while loading a segment.
+     * @exception IllegalStateException
+     *                If the bytes extend outside of the space.
+     */
+    public void write(long position, ByteBuffer bytes) throws IOException {
+        copy(position, bytes, true);
+    }
+
+    /**
+     * Mark as dirty the given length of bytes of the space starting at the
+     * given position, for callers that have updated the byte buffers of the
+     * segments directly.
+     * 
+     * @param position
+     *            The position in the space.
+     * @param length
+     *            The length of the dirty bytes.
+     * @throws IOException
+     *             If an I/O error occurs while loading a segment.
+     * @exception IllegalStateException
+     *                If the bytes extend outside of the space.
+     */
+    public void dirty(long position, long length) throws IOException {
+        if (length < 0) {
+            throw new IllegalStateException();
+        }
+        while (length != 0) {
+            Writable segment = getSegment(position);
+            int offset = (int) (position % segmentLength);
+            int count = (int) Math.min(segmentLength - offset, length);
+            try {
+                segment.dirty(offset, count);
+            } finally {
+                segment.getLock().unlock();
+            }
+            position += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Write the dirty spans of every loaded segment to its file channel,
+     * locking each segment in turn, then force to disk every file channel that
+     * was written to, either by this flush or by the eviction of a dirty
+     * segment since the last flush. Clean segments are not written.
+     * 
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public void flush() throws IOException {
+        for (int i = 0; i < fileChannels.length; i++) {
+            long writeBackCount = caches[i].getWriteBackCount();
+            boolean written = caches[i].flush() != 0;
+            synchronized (this) {
+                written = written || writeBackCount != forcedWriteBackCounts[i];
+            }
+            if (written) {
+                fileChannels[i].force(false);
+                synchronized (this) {
+                    forcedWriteBackCounts[i] = Math.max(forcedWriteBackCounts[i], writeBackCount);
+                }
+            }
+        }
+    }
+}
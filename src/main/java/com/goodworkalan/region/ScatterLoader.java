@@ -0,0 +1,136 @@
+package com.goodworkalan.region;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads the content of many regions from a file channel using as few reads as
+ * it can. Regions that are contiguous on disk are read together with a single
+ * scattering read.
+ * <p>
+ * The regions are added to the scatter loader, then read with a single call to
+ * {@link #load(FileChannel, int)}. A scattering read uses and changes the
+ * position of the file channel, so a scatter loader must not be used with a
+ * file channel whose position is used concurrently.
+ * <p>
+ * The scatter loader is not thread-safe. The caller must hold the locks of the
+ * regions added until the load completes.
+ * 
+ * @author Alan Gutierrez
+ */
+public class ScatterLoader {
+    /** Orders regions by file position. */
+    private final static Comparator<Loadable> POSITION = new Comparator<Loadable>() {
+        public int compare(Loadable left, Loadable right) {
+            long a = left.getPosition();
+            long b = right.getPosition();
+            return a < b ? -1 : a == b ? 0 : 1;
+        }
+    };
+
+    /** The regions to load. */
+    private final List<Loadable> regions;
+
+    /** The count of file channel reads made by the last load. */
+    private int readCount;
+
+    /** Create an empty scatter loader. */
+    public ScatterLoader() {
+        this.regions = new ArrayList<Loadable>();
+    }
+
+    /**
+     * Add the given region to be read by the next load.
+     * 
+     * @param region
+     *            The region to load.
+     */
+    public void add(Loadable region) {
+        regions.add(region);
+    }
+
+    /**
+     * Get the count of file channel reads made by the last load.
+     * 
+     * @return The count of file channel reads.
+     */
+    public int getReadCount() {
+        return readCount;
+    }
+
+    /**
+     * Read the content of the added regions from the given file channel at the
+     * position of each region offset by the given offset, and mark each region
+     * as clean. Regions that are contiguous on disk are read with a scattering
+     * read. Bytes beyond the end of the file are zero, and only those bytes
+     * are written before the region is marked clean. The added regions are
+     * discarded after the load, whether or not it succeeds.
+     * 
+     * @param fileChannel
+     *            The file channel to read from.
+     * @param offset
+     *            An offset to add to the region file positions.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public void load(FileChannel fileChannel, int offset) throws IOException {
+        readCount = 0;
+        try {
+            Collections.sort(regions, POSITION);
+            int i = 0;
+            while (i < regions.size()) {
+                int j = i + 1;
+                long end = regions.get(i).getPosition() + regions.get(i).getLength();
+                while (j < regions.size() && regions.get(j).getPosition() == end) {
+                    end += regions.get(j).getLength();
+                    j++;
+                }
+                ByteBuffer[] buffers = new ByteBuffer[j - i];
+                for (int k = i; k < j; k++) {
+                    ByteBuffer byteBuffer = regions.get(k).getByteBuffer();
+                    byteBuffer.clear();
+                    byteBuffer.limit(regions.get(k).getLength());
+                    buffers[k - i] = byteBuffer;
+                }
+                long position = offset + regions.get(i).getPosition();
+                if (buffers.length == 1) {
+                    while (buffers[0].hasRemaining()) {
+                        readCount++;
+                        int read = fileChannel.read(buffers[0], position);
+                        if (read == -1) {
+                            break;
+                        }
+                        position += read;
+                    }
+                } else {
+                    fileChannel.position(position);
+                    while (buffers[buffers.length - 1].hasRemaining()) {
+                        readCount++;
+                        if (fileChannel.read(buffers) == -1) {
+                            break;
+                        }
+                    }
+                }
+                for (int k = i; k < j; k++) {
+                    ByteBuffer byteBuffer = regions.get(k).getByteBuffer();
+                    while (byteBuffer.remaining() >= 8) {
+                        byteBuffer.putLong(0L);
+                    }
+                    while (byteBuffer.hasRemaining()) {
+                        byteBuffer.put((byte) 0);
+                    }
+                    byteBuffer.clear();
+                    regions.get(k).loaded();
+                }
+                i = j;
+            }
+        } finally {
+            regions.clear();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.goodworkalan.region;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32C;
+
+/**
+ * A region that commits its content to one of two alternating slots on disk,
+ * so that a write torn by a crash never damages the last committed content.
+ * <p>
+ * Each slot begins with a slot header of a sequence number, the content length
+ * and a CRC32C checksum of the sequence number, the length and the content,
+ * followed by the content. The first slot is at the file position of the
+ * region and the second slot follows it, so the region occupies twice its
+ * length plus two slot headers on disk. Every write writes the entire content
+ * to the slot that was not written last, with the next sequence number.
+ * Loading reads both slots and keeps the content of the slot with the highest
+ * sequence number whose checksum is valid.
+ * <p>
+ * A write is only safe if the previous write has been forced to disk, since a
+ * torn write of one slot is only recoverable if the other slot is intact.
+ * {@link #commit(FileChannel, int)} writes and forces in one step. When
+ * writes are forced by a {@link Flusher}, a slotted region must not be
+ * submitted again until its previous flush has completed.
+ * <p>
+ * A slotted region wraps another region, usually a {@link Header}, that holds
+ * the content, and shares its byte buffer and lock. The caller must hold the
+ * lock of the region when writing or loading.
+ * 
+ * @author Alan Gutierrez
+ */
+public class SlottedWritable implements Writable, Loadable {
+    /** The length of the slot header. */
+    public final static int SLOT_HEADER_LENGTH = 16;
+
+    /** The region that holds the content. */
+    private final Loadable region;
+
+    /** The byte buffer of the slot header. */
+    private final ByteBuffer slotHeader;
+
+    /** The checksum of a slot. */
+    private final CRC32C crc;
+
+    /** The sequence number of the last slot written or loaded. */
+    private long sequence;
+
+    /** The index of the last slot written or loaded or -1 if none. */
+    private int slot;
+
+    /**
+     * Create a slotted region that commits the content of the given region.
+     * 
+     * @param region
+     *            The region that holds the content.
+     */
+    public SlottedWritable(Loadable region) {
+        this.region = region;
+        this.slotHeader = ByteBuffer.allocate(SLOT_HEADER_LENGTH);
+        this.crc = new CRC32C();
+        this.slot = -1;
+    }
+
+    /**
+     * Get the lock of the region that holds the content.
+     * 
+     * @return The lock.
+     */
+    public Lock getLock() {
+        return region.getLock();
+    }
+
+    /**
+     * Get the file position of the first slot.
+     * 
+     * @return The file position.
+     */
+    public long getPosition() {
+        return region.getPosition();
+    }
+
+    /**
+     * Get the byte buffer of the region that holds the content.
+     * 
+     * @return The byte buffer.
+     */
+    public ByteBuffer getByteBuffer() {
+        return region.getByteBuffer();
+    }
+
+    /**
+     * Get the length of the content.
+     * 
+     * @return The length of the content.
+     */
+    public int getLength() {
+        return region.getLength();
+    }
+
+    /**
+     * Mark as dirty the bytes in the content starting at the given offset and
+     * extending for the given length.
+     * 
+     * @param offset
+     *            The offset of the dirty region.
+     * @param length
+     *            The length of the dirty region.
+     */
+    public void dirty(int offset, int length) {
+        region.dirty(offset, length);
+    }
+
+    /**
+     * Mark the entire content as dirty.
+     */
+    public void dirty() {
+        region.dirty();
+    }
+
+    /**
+     * Get the length of a slot on disk, the length of the content plus the
+     * length of the slot header.
+     * 
+     * @return The length of a slot.
+     */
+    public int getSlotLength() {
+        return SLOT_HEADER_LENGTH + region.getLength();
+    }
+
+    /**
+     * Get the sequence number of the last slot written or loaded, or zero if
+     * no slot has been written or a load found no valid slot.
+     * 
+     * @return The sequence number.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Write the entire content to the slot that was not written last, with the
+     * next sequence number, and mark the content clean. The slot is not forced
+     * to disk.
+     * 
+     * @param fileChannel
+     *            The file channel to write to.
+     * @param offset
+     *            An offset to add to the file position of the slots.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public void write(FileChannel fileChannel, int offset) throws IOException {
+        FlushEvent event = Instrumentation.beginFlush();
+        int next = slot == 0 ? 1 : 0;
+        ByteBuffer content = region.getByteBuffer().duplicate();
+        content.clear();
+        slotHeader.clear();
+        slotHeader.putLong(sequence + 1);
+        slotHeader.putInt(content.remaining());
+        slotHeader.putInt(checksum(slotHeader, content));
+        slotHeader.flip();
+        long position = getPosition() + offset + (long) next * getSlotLength();
+        int byteCount = slotHeader.remaining() + content.remaining();
+        int writeCount = BasicWritable.write(fileChannel, slotHeader, position);
+        writeCount += BasicWritable.write(fileChannel, content, position + SLOT_HEADER_LENGTH);
+        sequence++;
+        slot = next;
+        Instrumentation.flushed(this, event, 1, byteCount, writeCount, 0);
+        region.loaded();
+    }
+
+    /**
+     * Write the entire content to the slot that was not written last and force
+     * the file channel to disk, committing the content.
+     * 
+     * @param fileChannel
+     *            The file channel to write to.
+     * @param offset
+     *            An offset to add to the file position of the slots.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public void commit(FileChannel fileChannel, int offset) throws IOException {
+        write(fileChannel, offset);
+        fileChannel.force(false);
+    }
+
+    /**
+     * Read the content from the slot with the highest sequence number whose
+     * checksum is valid and mark the content clean. If neither slot is valid,
+     * the content is zeroed and the sequence number is zero.
+     * 
+     * @param fileChannel
+     *            The file channel to read from.
+     * @param offset
+     *            An offset to add to the file position of the slots.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public void load(FileChannel fileChannel, int offset) throws IOException {
+        long[] sequences = new long[2];
+        for (int i = 0; i < 2; i++) {
+            slotHeader.clear();
+            BasicWritable.read(fileChannel, slotHeader, getPosition() + offset + (long) i * getSlotLength());
+            sequences[i] = slotHeader.getLong(0);
+        }
+        int first = sequences[1] > sequences[0] ? 1 : 0;
+        ByteBuffer content = region.getByteBuffer().duplicate();
+        for (int i = 0; i < 2; i++) {
+            int candidate = i == 0 ? first : 1 - first;
+            long position = getPosition() + offset + (long) candidate * getSlotLength();
+            slotHeader.clear();
+            BasicWritable.read(fileChannel, slotHeader, position);
+            content.clear();
+            BasicWritable.read(fileChannel, content, position + SLOT_HEADER_LENGTH);
+            content.clear();
+            if (sequences[candidate] > 0 && slotHeader.getInt(8) == content.remaining()) {
+                int expected = slotHeader.getInt(12);
+                slotHeader.limit(12);
+                if (checksum(slotHeader, content) == expected) {
+                    sequence = sequences[candidate];
+                    slot = candidate;
+                    region.loaded();
+                    return;
+                }
+            }
+        }
+        content.clear();
+        while (content.hasRemaining()) {
+            content.put((byte) 0);
+        }
+        sequence = 0;
+        slot = -1;
+        region.loaded();
+    }
+
+    /**
+     * Mark the entire content as clean after it has been read by a caller other
+     * than this region.
+     */
+    public void loaded() {
+        region.loaded();
+    }
+
+    /**
+     * Calculate the checksum of the first twelve bytes of the slot header, the
+     * sequence number and the length, and the remaining bytes of the given
+     * content.
+     * 
+     * @param slotHeader
+     *            The slot header.
+     * @param content
+     *            The content.
+     * @return The checksum.
+     */
+    private int checksum(ByteBuffer slotHeader, ByteBuffer content) {
+        crc.reset();
+        crc.update(slotHeader.array(), slotHeader.arrayOffset(), 12);
+        BasicWritable.update(crc, content, content.position(), content.remaining());
+        return (int) crc.getValue();
+    }
+}
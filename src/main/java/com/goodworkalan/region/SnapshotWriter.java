@@ -0,0 +1,181 @@
+package com.goodworkalan.region;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes the dirty content of a region from a snapshot, so that writers are
+ * blocked only while the dirty spans are copied and not while they are
+ * written to disk.
+ * <p>
+ * A flush takes the region lock, copies the dirty spans into a staging buffer
+ * that is reused from flush to flush, marks the region clean and releases the
+ * region lock. It then writes the spans from the staging buffer. Bytes
+ * dirtied while the spans are written are tracked by the region as usual and
+ * written by the next flush. If the write fails, the spans of the snapshot are
+ * marked dirty again so that they are not lost.
+ * <p>
+ * If the cleanable of the region is not a {@link SpanCleanable}, the snapshot
+ * is the entire content.
+ * <p>
+ * Flushes of the same region are serialized so that an older snapshot is
+ * never written over a newer one. The caller must not hold the region lock
+ * when flushing.
+ * 
+ * @author Alan Gutierrez
+ */
+public class SnapshotWriter {
+    /** The region to flush. */
+    private final BasicWritable region;
+
+    /** A lock that serializes flushes. */
+    private final Lock flushLock;
+
+    /** The staging buffer of copied spans. */
+    private ByteBuffer staging;
+
+    /** The offsets of the starts and ends of the copied spans. */
+    private int[] spans;
+
+    /** The count of copied spans. */
+    private int spanCount;
+
+    /** The count of merge iterations of the cleanable when it was copied. */
+    private int mergeCount;
+
+    /**
+     * Create a snapshot writer for the given region.
+     * 
+     * @param region
+     *            The region to flush.
+     */
+    public SnapshotWriter(BasicWritable region) {
+        this.region = region;
+        this.flushLock = new ReentrantLock();
+        this.staging = ByteBuffer.allocate(0);
+        this.spans = new int[8];
+    }
+
+    /**
+     * Get the region to flush.
+     * 
+     * @return The region.
+     */
+    public BasicWritable getRegion() {
+        return region;
+    }
+
+    /**
+     * Record a span of the given start and end offsets, growing the span
+     * array and the staging buffer as needed.
+     * 
+     * @param start
+     *            The start offset.
+     * @param end
+     *            The end offset.
+     */
+    private void addSpan(int start, int end) {
+        if (spanCount * 2 == spans.length) {
+            int[] grown = new int[spans.length * 2];
+            System.arraycopy(spans, 0, grown, 0, spans.length);
+            spans = grown;
+        }
+        spans[spanCount * 2] = start;
+        spans[spanCount * 2 + 1] = end;
+        spanCount++;
+    }
+
+    /**
+     * Copy the dirty spans of the region into the staging buffer and mark the
+     * region clean. A {@link ConcurrentDirtyBlockMap} is drained before its
+     * spans are copied. The caller must hold the region lock.
+     */
+    private void copy() {
+        spanCount = 0;
+        Cleanable cleanable = region.cleanable;
+        SpanCleanable dirty = region.getSpans();
+        if (dirty != null) {
+            for (int start = dirty.nextDirty(0), end; start != -1; start = dirty.nextDirty(end)) {
+                end = dirty.nextClean(start);
+                addSpan(start, end);
+            }
+        } else {
+            addSpan(0, region.getLength());
+        }
+        int length = 0;
+        for (int i = 0; i < spanCount; i++) {
+            length += spans[i * 2 + 1] - spans[i * 2];
+        }
+        if (staging.capacity() < length) {
+            staging = ByteBuffer.allocate(Math.max(length, staging.capacity() * 2));
+        }
+        staging.clear();
+        ByteBuffer content = region.getByteBuffer().duplicate();
+        for (int i = 0; i < spanCount; i++) {
+            content.limit(spans[i * 2 + 1]);
+            content.position(spans[i * 2]);
+            staging.put(content);
+        }
+        staging.flip();
+        mergeCount = Instrumentation.getMergeCount(cleanable);
+        if (dirty == cleanable || dirty == null) {
+            cleanable.clean();
+        } else {
+            dirty.clean();
+        }
+    }
+
+    /**
+     * Write the dirty spans of the region to the given file channel at the
+     * position of the region offset by the given offset, holding the region
+     * lock only while the spans are copied to the staging buffer. If the write
+     * fails, the spans are marked dirty again.
+     * 
+     * @param fileChannel
+     *            The file channel to write to.
+     * @param offset
+     *            An offset to add to the region file position.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public void flush(FileChannel fileChannel, int offset) throws IOException {
+        flushLock.lock();
+        try {
+            Instrumentation.lock(region);
+            try {
+                copy();
+            } finally {
+                region.getLock().unlock();
+            }
+            FlushEvent event = Instrumentation.beginFlush();
+            int writeCount = 0;
+            boolean written = false;
+            try {
+                long position = region.getPosition() + offset;
+                for (int i = 0; i < spanCount; i++) {
+                    int start = spans[i * 2];
+                    staging.limit(staging.position() + spans[i * 2 + 1] - start);
+                    writeCount += BasicWritable.write(fileChannel, staging, position + start);
+                }
+                written = true;
+            } finally {
+                if (!written) {
+                    Instrumentation.lock(region);
+                    try {
+                        for (int i = 0; i < spanCount; i++) {
+                            region.cleanable.dirty(spans[i * 2], spans[i * 2 + 1] - spans[i * 2]);
+                        }
+                    } finally {
+                        region.getLock().unlock();
+                    }
+                }
+            }
+            Instrumentation.flushed(region, event, spanCount, staging.limit(), writeCount, mergeCount);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+}
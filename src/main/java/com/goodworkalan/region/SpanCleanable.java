@@ -0,0 +1,37 @@
+package com.goodworkalan.region;
+
+/**
+ * A cleanable that can enumerate the dirty spans of its buffer. The spans are
+ * enumerated by alternately searching for the next dirty byte and the next
+ * clean byte, so that enumerating the spans does not copy them or allocate.
+ * <pre>
+ * for (int start = cleanable.nextDirty(0); start != -1; start = cleanable.nextDirty(end)) {
+ *     end = cleanable.nextClean(start);
+ *     // Bytes from start up to but not including end are dirty.
+ * }
+ * </pre>
+ * 
+ * @author Alan Gutierrez
+ */
+public interface SpanCleanable extends Cleanable {
+    /**
+     * Get the offset of the first dirty byte at or after the given offset, or
+     * -1 if there are no dirty bytes at or after the given offset.
+     * 
+     * @param offset
+     *            The offset to search from.
+     * @return The offset of the next dirty byte or -1.
+     */
+    public int nextDirty(int offset);
+
+    /**
+     * Get the offset of the first clean byte at or after the given offset, or
+     * the length of the buffer if every byte from the given offset to the end
+     * of the buffer is dirty.
+     * 
+     * @param offset
+     *            The offset to search from.
+     * @return The offset of the next clean byte or the buffer length.
+     */
+    public int nextClean(int offset);
+}
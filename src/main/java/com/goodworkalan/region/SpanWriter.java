@@ -0,0 +1,247 @@
+package com.goodworkalan.region;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the dirty spans of one or more byte buffers to a file channel using
+ * as few writes as it can.
+ * <p>
+ * Dirty spans of a byte buffer that are separated by no more than the gap
+ * threshold are coalesced into a single span, rewriting the clean bytes
+ * between them. Coalesced spans from different byte buffers that are
+ * contiguous on disk are written together with a single gathering write.
+ * <p>
+ * The byte buffers are added to the span writer with their cleanables and file
+ * positions, then written with a single call to {@link #write(FileChannel)}.
+ * After each write the count of bytes written and the count of write calls
+ * made against the file channel are available, so that the gap threshold can
+ * be tuned. A gathering write uses and changes the position of the file
+ * channel, so a span writer must not be used with a file channel whose
+ * position is used concurrently.
+ * <p>
+ * The span writer is not thread-safe. The caller must hold the locks of the
+ * regions whose buffers are added until the write completes.
+ * 
+ * @author Alan Gutierrez
+ */
+public class SpanWriter {
+    /** The initial capacity of the span arrays. */
+    private final static int INITIAL_CAPACITY = 8;
+
+    /** The largest count of clean bytes between coalesced dirty spans. */
+    private final int gap;
+
+    /** The byte buffer slices of the pending spans. */
+    private ByteBuffer[] slices;
+
+    /** The file positions of the pending spans. */
+    private long[] positions;
+
+    /** The cleanables of the pending spans. */
+    private Cleanable[] cleanables;
+
+    /** The offsets of the pending spans in their cleanables. */
+    private int[] offsets;
+
+    /** The count of pending spans. */
+    private int count;
+
+    /** The count of bytes written by the last write. */
+    private long byteCount;
+
+    /** The count of file channel writes made by the last write. */
+    private int writeCount;
+
+    /**
+     * Create a span writer that coalesces dirty spans separated by no more
+     * than the given count of clean bytes.
+     * 
+     * @param gap
+     *            The largest count of clean bytes between coalesced dirty
+     *            spans.
+     */
+    public SpanWriter(int gap) {
+        if (gap < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.gap = gap;
+        this.slices = new ByteBuffer[INITIAL_CAPACITY];
+        this.positions = new long[INITIAL_CAPACITY];
+        this.cleanables = new Cleanable[INITIAL_CAPACITY];
+        this.offsets = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Get the largest count of clean bytes between coalesced dirty spans.
+     * 
+     * @return The gap threshold.
+     */
+    public int getGap() {
+        return gap;
+    }
+
+    /**
+     * Get the count of bytes written by the last write, including the clean
+     * bytes written between coalesced spans.
+     * 
+     * @return The count of bytes written.
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Get the count of file channel writes made by the last write.
+     * 
+     * @return The count of file channel writes.
+     */
+    public int getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Add the dirty spans of the given byte buffer, as reported by the given
+     * cleanable, to be written at the given file position by the next write.
+     * 
+     * @param byteBuffer
+     *            The byte buffer.
+     * @param cleanable
+     *            The cleanable that tracks the dirty bytes of the byte buffer.
+     * @param position
+     *            The file position of the byte buffer.
+     */
+    public void add(ByteBuffer byteBuffer, SpanCleanable cleanable, long position) {
+        int start = cleanable.nextDirty(0);
+        while (start != -1) {
+            int end = cleanable.nextClean(start);
+            int next = cleanable.nextDirty(end);
+            while (next != -1 && next - end <= gap) {
+                end = cleanable.nextClean(next);
+                next = cleanable.nextDirty(end);
+            }
+
+            ByteBuffer slice = byteBuffer.duplicate();
+            slice.limit(end);
+            slice.position(start);
+            add(slice, position + start, cleanable, start);
+
+            start = next;
+        }
+    }
+
+    /**
+     * Append a pending span, growing the span arrays if necessary.
+     * 
+     * @param slice
+     *            The byte buffer slice positioned at the span.
+     * @param position
+     *            The file position of the span.
+     * @param cleanable
+     *            The cleanable of the span.
+     * @param offset
+     *            The offset of the span in the cleanable.
+     */
+    private void add(ByteBuffer slice, long position, Cleanable cleanable, int offset) {
+        if (count == slices.length) {
+            int capacity = count * 2;
+            ByteBuffer[] newSlices = new ByteBuffer[capacity];
+            long[] newPositions = new long[capacity];
+            Cleanable[] newCleanables = new Cleanable[capacity];
+            int[] newOffsets = new int[capacity];
+            System.arraycopy(slices, 0, newSlices, 0, count);
+            System.arraycopy(positions, 0, newPositions, 0, count);
+            System.arraycopy(cleanables, 0, newCleanables, 0, count);
+            System.arraycopy(offsets, 0, newOffsets, 0, count);
+            slices = newSlices;
+            positions = newPositions;
+            cleanables = newCleanables;
+            offsets = newOffsets;
+        }
+        int i = count++;
+        while (i > 0 && positions[i - 1] > position) {
+            slices[i] = slices[i - 1];
+            positions[i] = positions[i - 1];
+            cleanables[i] = cleanables[i - 1];
+            offsets[i] = offsets[i - 1];
+            i--;
+        }
+        slices[i] = slice;
+        positions[i] = position;
+        cleanables[i] = cleanable;
+        offsets[i] = offset;
+    }
+
+    /**
+     * Write the pending spans to the given file channel and mark them as clean
+     * in their cleanables. Pending spans that are contiguous on disk are
+     * written with a gathering write. If an I/O error occurs, the spans that
+     * were not written remain dirty and the pending spans are discarded.
+     * 
+     * @param fileChannel
+     *            The file channel.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public void write(FileChannel fileChannel) throws IOException {
+        byteCount = 0;
+        writeCount = 0;
+        try {
+            int i = 0;
+            while (i < count) {
+                int j = i + 1;
+                long end = positions[i] + slices[i].remaining();
+                while (j < count && positions[j] == end) {
+                    end += slices[j].remaining();
+                    j++;
+                }
+                if (j - i == 1) {
+                    long position = positions[i];
+                    while (slices[i].hasRemaining()) {
+                        position += fileChannel.write(slices[i], position);
+                        writeCount++;
+                    }
+                    byteCount += position - positions[i];
+                } else {
+                    fileChannel.position(positions[i]);
+                    while (slices[j - 1].hasRemaining()) {
+                        byteCount += fileChannel.write(slices, i, j - i);
+                        writeCount++;
+                    }
+                }
+                for (int k = i; k < j; k++) {
+                    cleanables[k].clean(offsets[k], slices[k].limit() - offsets[k]);
+                }
+                i = j;
+            }
+        } finally {
+            for (int i = 0; i < count; i++) {
+                slices[i] = null;
+                cleanables[i] = null;
+            }
+            count = 0;
+        }
+    }
+
+    /**
+     * Write the dirty spans of the given byte buffer, as reported by the given
+     * cleanable, to the given file channel at the given file position and mark
+     * them as clean.
+     * 
+     * @param byteBuffer
+     *            The byte buffer.
+     * @param cleanable
+     *            The cleanable that tracks the dirty bytes of the byte buffer.
+     * @param fileChannel
+     *            The file channel.
+     * @param position
+     *            The file position of the byte buffer.
+     * @throws IOException
+     *             If an I/O error occurs.
+     */
+    public void write(ByteBuffer byteBuffer, SpanCleanable cleanable, FileChannel fileChannel, long position) throws IOException {
+        add(byteBuffer, cleanable, position);
+        write(fileChannel);
+    }
+}
@@ -0,0 +1,128 @@
+package com.goodworkalan.region;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A lock that locks every one of an array of locks, always in the same order,
+ * so that it excludes the holders of any of the locks and cannot deadlock with
+ * another striped lock over the same locks. Conditions are not supported.
+ * 
+ * @author Alan Gutierrez
+ */
+public class StripedLock implements Lock {
+    /** The locks, locked in array order and unlocked in reverse. */
+    private final Lock[] locks;
+
+    /**
+     * Create a lock that locks every one of the given locks.
+     * 
+     * @param locks
+     *            The locks, locked in array order.
+     */
+    public StripedLock(Lock[] locks) {
+        this.locks = locks;
+    }
+
+    /**
+     * Unlock the locks before the given index in reverse order.
+     * 
+     * @param count
+     *            The count of locks held.
+     */
+    private void unlock(int count) {
+        while (count != 0) {
+            locks[--count].unlock();
+        }
+    }
+
+    /**
+     * Acquire every lock in order.
+     */
+    public void lock() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i].lock();
+        }
+    }
+
+    /**
+     * Acquire every lock in order unless the current thread is interrupted.
+     * 
+     * @throws InterruptedException
+     *             If the current thread is interrupted.
+     */
+    public void lockInterruptibly() throws InterruptedException {
+        int i = 0;
+        try {
+            for (; i < locks.length; i++) {
+                locks[i].lockInterruptibly();
+            }
+        } catch (InterruptedException e) {
+            unlock(i);
+            throw e;
+        }
+    }
+
+    /**
+     * Acquire every lock only if every lock is free at the time of invocation.
+     * 
+     * @return True if every lock was acquired.
+     */
+    public boolean tryLock() {
+        for (int i = 0; i < locks.length; i++) {
+            if (!locks[i].tryLock()) {
+                unlock(i);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Acquire every lock if every lock becomes free within the given waiting
+     * time and the current thread is not interrupted.
+     * 
+     * @param time
+     *            The maximum time to wait.
+     * @param unit
+     *            The time unit of the time argument.
+     * @return True if every lock was acquired.
+     * @throws InterruptedException
+     *             If the current thread is interrupted.
+     */
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        int i = 0;
+        try {
+            for (; i < locks.length; i++) {
+                if (!locks[i].tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    unlock(i);
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            unlock(i);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Release every lock in reverse order.
+     */
+    public void unlock() {
+        unlock(locks.length);
+    }
+
+    /**
+     * Conditions are not supported.
+     * 
+     * @return Never returns.
+     * @exception UnsupportedOperationException
+     *                Always.
+     */
+    public Condition newCondition() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,108 @@
+package com.goodworkalan.region;
+
+/**
+ * A span cleanable that synchronizes every method of an underlying span
+ * cleanable, so that it can be shared by regions guarded by different locks.
+ * 
+ * @author Alan Gutierrez
+ */
+public class SynchronizedSpanCleanable implements SpanCleanable {
+    /** The underlying span cleanable. */
+    private final SpanCleanable cleanable;
+
+    /**
+     * Create a span cleanable that synchronizes every method of the given
+     * span cleanable.
+     * 
+     * @param cleanable
+     *            The underlying span cleanable.
+     */
+    public SynchronizedSpanCleanable(SpanCleanable cleanable) {
+        this.cleanable = cleanable;
+    }
+
+    /**
+     * Get the length of the buffer.
+     * 
+     * @return The length of the buffer.
+     */
+    public int getLength() {
+        return cleanable.getLength();
+    }
+
+    /**
+     * Mark as dirty the bytes in the byte buffer starting at the given offset
+     * and extending for the given length.
+     * 
+     * @param offset
+     *            The offset of the dirty region.
+     * @param length
+     *            The length of the dirty region.
+     */
+    public synchronized void dirty(int offset, int length) {
+        cleanable.dirty(offset, length);
+    }
+
+    /**
+     * Mark the entire buffer as dirty.
+     */
+    public synchronized void dirty() {
+        cleanable.dirty();
+    }
+
+    /**
+     * Mark as clean the bytes in the byte buffer starting at the given offset
+     * and extending for the given length.
+     * 
+     * @param offset
+     *            The offset of the clean region.
+     * @param length
+     *            The length of the clean region.
+     */
+    public synchronized void clean(int offset, int length) {
+        cleanable.clean(offset, length);
+    }
+
+    /**
+     * Mark the entire buffer as clean.
+     */
+    public synchronized void clean() {
+        cleanable.clean();
+    }
+
+    /**
+     * Get the offset of the first dirty byte at or after the given offset, or
+     * -1 if there are no dirty bytes at or after the given offset.
+     * 
+     * @param offset
+     *            The offset to search from.
+     * @return The offset of the next dirty byte or -1.
+     */
+    public synchronized int nextDirty(int offset) {
+        return cleanable.nextDirty(offset);
+    }
+
+    /**
+     * Get the offset of the first clean byte at or after the given offset, or
+     * the length of the buffer if every byte from the given offset to the end
+     * of the buffer is dirty.
+     * 
+     * @param offset
+     *            The offset to search from.
+     * @return The offset of the next clean byte or the buffer length.
+     */
+    public synchronized int nextClean(int offset) {
+        return cleanable.nextClean(offset);
+    }
+
+    /**
+     * Get the count of merge iterations performed by the underlying span
+     * cleanable since it was last entirely clean, or zero if it does not count
+     * them.
+     * 
+     * @return The count of merge iterations.
+     */
+    public synchronized int getMergeCount() {
+        return Instrumentation.getMergeCount(cleanable);
+    }
+}
@@ -0,0 +1,162 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.testng.annotations.Test;
+
+public class BasicWritableTest {
+    private File newFile() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private BasicWritable newWritable(int length) {
+        return new BasicWritable(8, ByteBuffer.allocate(length), new ReentrantLock(), new DirtyIntervalSet(length));
+    }
+
+    @Test
+    public void write() throws IOException {
+        final AtomicInteger writes = new AtomicInteger();
+        FileChannel fileChannel = new RandomAccessFile(newFile(), "rw").getChannel();
+        FileChannel counted = new HookFileChannel(fileChannel, new Runnable() {
+            public void run() {
+                writes.incrementAndGet();
+            }
+        });
+        BasicWritable writable = newWritable(64);
+        DirtyIntervalSet cleanable = (DirtyIntervalSet) writable.getDirtyable();
+
+        // A clean region is not written.
+        writable.write(counted, 0);
+        assertEquals(0, writes.get());
+        assertEquals(0, fileChannel.size());
+
+        // Only the dirty spans are written.
+        writable.getByteBuffer().putLong(0, 1);
+        writable.dirty(0, 8);
+        writable.getByteBuffer().putLong(32, 2);
+        writable.dirty(32, 8);
+        writable.getByteBuffer().putLong(16, 3);
+        writable.write(counted, 100);
+        assertEquals(2, writes.get());
+        assertEquals(100 + 8 + 40, fileChannel.size());
+        assertEquals(-1, cleanable.nextDirty(0));
+        assertEquals(0, writable.getByteBuffer().position());
+        assertEquals(64, writable.getByteBuffer().limit());
+        ByteBuffer read = ByteBuffer.allocate(40);
+        fileChannel.read(read, 108);
+        assertEquals(1, read.getLong(0));
+        assertEquals(0, read.getLong(16));
+        assertEquals(2, read.getLong(32));
+    }
+
+    @Test
+    public void writeWhole() throws IOException {
+        FileChannel fileChannel = new RandomAccessFile(newFile(), "rw").getChannel();
+        BasicWritable writable = new BasicWritable(8, ByteBuffer.allocate(64), new ReentrantLock(), new NullCleanable(64));
+        writable.getByteBuffer().putLong(56, 4);
+        writable.write(fileChannel, 0);
+        assertEquals(72, fileChannel.size());
+        ByteBuffer read = ByteBuffer.allocate(8);
+        fileChannel.read(read, 64);
+        assertEquals(4, read.getLong(0));
+    }
+
+    @Test
+    public void writeFailure() throws IOException {
+        FileChannel fileChannel = new RandomAccessFile(newFile(), "rw").getChannel();
+        fileChannel.close();
+        BasicWritable writable = newWritable(64);
+        DirtyIntervalSet cleanable = (DirtyIntervalSet) writable.getDirtyable();
+        writable.dirty(16, 8);
+        boolean failed = false;
+        try {
+            writable.write(fileChannel, 0);
+        } catch (IOException e) {
+            failed = true;
+        }
+        assertTrue(failed);
+        assertEquals(16, cleanable.nextDirty(0));
+        assertEquals(24, cleanable.nextClean(16));
+        assertEquals(0, writable.getByteBuffer().position());
+        assertEquals(64, writable.getByteBuffer().limit());
+    }
+
+    @Test
+    public void asynchronous() throws IOException, InterruptedException, ExecutionException {
+        File file = newFile();
+        AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            BasicWritable writable = newWritable(64);
+            DirtyIntervalSet cleanable = (DirtyIntervalSet) writable.getDirtyable();
+            writable.getByteBuffer().putLong(0, 1);
+            writable.dirty(0, 8);
+            writable.getByteBuffer().putLong(32, 2);
+            writable.dirty(32, 8);
+            writable.getLock().lock();
+            Future<Integer> future;
+            try {
+                future = writable.write(fileChannel, 0);
+                // The spans are copied, so the region can change during the write.
+                assertEquals(-1, cleanable.nextDirty(0));
+                writable.getByteBuffer().putLong(0, 3);
+                writable.dirty(0, 8);
+            } finally {
+                writable.getLock().unlock();
+            }
+            assertEquals(16, (int) future.get());
+            ByteBuffer read = ByteBuffer.allocate(8);
+            fileChannel.read(read, 8).get();
+            assertEquals(1, read.getLong(0));
+            read.clear();
+            fileChannel.read(read, 40).get();
+            assertEquals(2, read.getLong(0));
+
+            // The span dirtied during the write is still dirty.
+            assertEquals(0, cleanable.nextDirty(0));
+            assertEquals(8, cleanable.nextClean(0));
+        } finally {
+            fileChannel.close();
+        }
+    }
+
+    @Test
+    public void asynchronousFailure() throws IOException, InterruptedException {
+        File file = newFile();
+        AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        fileChannel.close();
+        BasicWritable writable = newWritable(64);
+        DirtyIntervalSet cleanable = (DirtyIntervalSet) writable.getDirtyable();
+        writable.dirty(16, 8);
+        writable.getLock().lock();
+        Future<Integer> future;
+        try {
+            future = writable.write(fileChannel, 0);
+        } finally {
+            writable.getLock().unlock();
+        }
+        boolean failed = false;
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            failed = true;
+        }
+        assertTrue(failed);
+        assertEquals(16, cleanable.nextDirty(0));
+        assertEquals(24, cleanable.nextClean(16));
+    }
+}
@@ -0,0 +1,135 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+import org.testng.annotations.Test;
+
+public class ChecksummedWritableTest {
+    private ChecksummedWritable newChecksummed() {
+        BasicWritable region = new BasicWritable(0, ByteBuffer.allocate(1000), new ReentrantLock(), new DirtyIntervalSet(1000));
+        return new ChecksummedWritable(region, 256, 1024);
+    }
+
+    @Test
+    public void checksum() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            // A region never written is valid.
+            ChecksummedWritable checksummed = newChecksummed();
+            checksummed.load(fileChannel, 0);
+            assertEquals(16, checksummed.getChecksumLength());
+
+            checksummed.getByteBuffer().put(300, (byte) 1);
+            checksummed.dirty(300, 1);
+            checksummed.getByteBuffer().put(999, (byte) 2);
+            checksummed.dirty(999, 1);
+            checksummed.write(fileChannel, 0);
+
+            ChecksummedWritable loaded = newChecksummed();
+            loaded.load(fileChannel, 0);
+            assertEquals(2, loaded.getByteBuffer().get(999));
+
+            // Only the dirty block checksum is updated.
+            loaded.getByteBuffer().put(0, (byte) 3);
+            loaded.getByteBuffer().put(512, (byte) 4);
+            loaded.dirty(0, 1);
+            loaded.write(fileChannel, 0);
+            assertEquals(2, loaded.verify());
+
+            fileChannel.write(ByteBuffer.wrap(new byte[] { 5 }), 700);
+            try {
+                newChecksummed().load(fileChannel, 0);
+                throw new AssertionError();
+            } catch (ChecksumException e) {
+                assertEquals(2, e.getBlock());
+            }
+        } finally {
+            fileChannel.close();
+        }
+    }
+
+    @Test
+    public void direct() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            BasicWritable region = new BasicWritable(0, ByteBuffer.allocateDirect(1000), new ReentrantLock(), new DirtyIntervalSet(1000));
+            ChecksummedWritable checksummed = new ChecksummedWritable(region, 256, 1024);
+            checksummed.getByteBuffer().put(0, (byte) 7);
+            checksummed.dirty(0, 1);
+            checksummed.write(fileChannel, 0);
+
+            // The table holds the CRC32C of the block combined with the
+            // CRC32C of a block of zeros.
+            byte[] block = new byte[256];
+            block[0] = 7;
+            CRC32C crc = new CRC32C();
+            crc.update(block);
+            int expected = (int) crc.getValue();
+            crc.reset();
+            crc.update(new byte[256]);
+            expected ^= (int) crc.getValue();
+            ByteBuffer entry = ByteBuffer.allocate(4);
+            fileChannel.read(entry, 1024);
+            assertEquals(expected, entry.getInt(0));
+
+            // A heap region verifies the checksums of a direct region.
+            ChecksummedWritable loaded = newChecksummed();
+            loaded.load(fileChannel, 0);
+            assertEquals(7, loaded.getByteBuffer().get(0));
+        } finally {
+            fileChannel.close();
+        }
+    }
+
+    @Test
+    public void tableWriteFailure() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        final FileChannel closing = new RandomAccessFile(file, "rw").getChannel();
+        // Close the channel after the content is written, so that the
+        // checksum table write fails.
+        FileChannel failing = new HookFileChannel(closing, new Runnable() {
+            public void run() {
+                try {
+                    closing.close();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        ChecksummedWritable checksummed = newChecksummed();
+        checksummed.getByteBuffer().put(300, (byte) 1);
+        checksummed.dirty(300, 1);
+        boolean failed = false;
+        try {
+            checksummed.write(failing, 0);
+        } catch (IOException e) {
+            failed = true;
+        }
+        assertTrue(failed);
+
+        // The content is clean, but the next write writes the table range.
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            checksummed.write(fileChannel, 0);
+            ChecksummedWritable loaded = newChecksummed();
+            loaded.load(fileChannel, 0);
+            assertEquals(1, loaded.getByteBuffer().get(300));
+        } finally {
+            fileChannel.close();
+        }
+    }
+}
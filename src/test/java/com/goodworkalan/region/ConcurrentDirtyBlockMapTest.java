@@ -0,0 +1,167 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.testng.annotations.Test;
+
+public class ConcurrentDirtyBlockMapTest {
+    @Test
+    public void drain() {
+        ConcurrentDirtyBlockMap map = new ConcurrentDirtyBlockMap(256, 4);
+        map.dirty(3, 10);
+        map.dirty(200, 1);
+        map.clean(4, 4);
+        DirtyBlockMap drained = map.drain();
+        assertEquals(0, drained.nextDirty(0));
+        assertEquals(4, drained.nextClean(0));
+        assertEquals(8, drained.nextDirty(4));
+        assertEquals(16, drained.nextClean(8));
+        assertEquals(200, drained.nextDirty(16));
+        assertEquals(204, drained.nextClean(200));
+        assertEquals(-1, map.drain().nextDirty(0));
+        map.restore(drained);
+        assertEquals(8, map.drain().nextDirty(4));
+    }
+
+    @Test
+    public void concurrentDrain() throws InterruptedException {
+        final int blockCount = 4096;
+        final ConcurrentDirtyBlockMap map = new ConcurrentDirtyBlockMap(blockCount, 1);
+        final DirtyBlockMap taken = new DirtyBlockMap(blockCount, 1);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            final int thread = i;
+            new Thread(new Runnable() {
+                public void run() {
+                    for (int block = thread; block < blockCount; block += 4) {
+                        map.dirty(block, 1);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        Thread drainer = new Thread(new Runnable() {
+            public void run() {
+                while (running.get()) {
+                    map.drainTo(taken);
+                }
+            }
+        });
+        drainer.start();
+        done.await();
+        running.set(false);
+        drainer.join();
+        map.drainTo(taken);
+        // Every block dirtied was taken by exactly one of the drains.
+        assertEquals(0, taken.nextDirty(0));
+        assertEquals(blockCount, taken.nextClean(0));
+    }
+
+    @Test
+    public void dirtyDuringWrite() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        final BasicWritable writable = new BasicWritable(0, ByteBuffer.allocate(64), new ReentrantLock(), new ConcurrentDirtyBlockMap(64, 8));
+        final AtomicBoolean hooked = new AtomicBoolean();
+        FileChannel fileChannel = new HookFileChannel(randomAccessFile.getChannel(), new Runnable() {
+            public void run() {
+                // Another thread updates the block as it is being written.
+                if (!hooked.getAndSet(true)) {
+                    writable.getByteBuffer().putLong(0, 2);
+                    writable.dirty(0, 8);
+                }
+            }
+        });
+        try {
+            writable.getByteBuffer().putLong(0, 1);
+            writable.dirty(0, 8);
+            writable.write(fileChannel, 0);
+            ConcurrentDirtyBlockMap map = (ConcurrentDirtyBlockMap) writable.getDirtyable();
+            DirtyBlockMap dirty = map.drain();
+            assertEquals(0, dirty.nextDirty(0));
+            map.restore(dirty);
+            writable.write(fileChannel, 0);
+            ByteBuffer read = ByteBuffer.allocate(8);
+            fileChannel.read(read, 0);
+            assertEquals(2, read.getLong(0));
+        } finally {
+            fileChannel.close();
+        }
+    }
+
+    @Test
+    public void drainReused() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            BasicWritable writable = new BasicWritable(0, ByteBuffer.allocate(64), new ReentrantLock(), new ConcurrentDirtyBlockMap(64, 8));
+            writable.getByteBuffer().putLong(0, 1);
+            writable.dirty(0, 8);
+            writable.write(fileChannel, 0);
+            // The block written by the first write is not written again.
+            writable.getByteBuffer().putLong(0, 2);
+            writable.getByteBuffer().putLong(32, 3);
+            writable.dirty(32, 8);
+            writable.write(fileChannel, 0);
+            ByteBuffer read = ByteBuffer.allocate(64);
+            fileChannel.read(read, 0);
+            assertEquals(1, read.getLong(0));
+            assertEquals(3, read.getLong(32));
+            assertTrue(writable.getSpans().nextDirty(0) == -1);
+        } finally {
+            fileChannel.close();
+        }
+    }
+
+    @Test
+    public void concurrentWrite() throws IOException, InterruptedException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            final int length = 8 * 1024;
+            final BasicWritable writable = new BasicWritable(0, ByteBuffer.allocate(length), new ReentrantLock(), new ConcurrentDirtyBlockMap(length, 64));
+            final CountDownLatch done = new CountDownLatch(4);
+            for (int i = 0; i < 4; i++) {
+                final int thread = i;
+                new Thread(new Runnable() {
+                    public void run() {
+                        for (int round = 1; round <= 50; round++) {
+                            for (int offset = thread * 8; offset < length; offset += 32) {
+                                writable.getByteBuffer().putLong(offset, round);
+                                writable.dirty(offset, 8);
+                            }
+                        }
+                        done.countDown();
+                    }
+                }).start();
+            }
+            while (done.getCount() != 0) {
+                writable.write(fileChannel, 0);
+            }
+            writable.write(fileChannel, 0);
+            // Every store that raced a write was written by a later write.
+            ByteBuffer read = ByteBuffer.allocate(length);
+            fileChannel.read(read, 0);
+            for (int offset = 0; offset < length; offset += 8) {
+                assertEquals(50, read.getLong(offset));
+            }
+            assertTrue(((ConcurrentDirtyBlockMap) writable.getDirtyable()).drain().nextDirty(0) == -1);
+        } finally {
+            fileChannel.close();
+        }
+    }
+}
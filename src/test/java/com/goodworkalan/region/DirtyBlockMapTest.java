@@ -0,0 +1,69 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+public class DirtyBlockMapTest {
+    @Test
+    public void dirty() {
+        DirtyBlockMap dirtyBlockMap = new DirtyBlockMap(1000, 8);
+        assertEquals(125, dirtyBlockMap.nextClearBlock(125));
+        assertEquals(-1, dirtyBlockMap.nextSetBlock(0));
+
+        // A single byte dirties its block.
+        dirtyBlockMap.dirty(9, 1);
+        assertEquals(1, dirtyBlockMap.nextSetBlock(0));
+        assertEquals(2, dirtyBlockMap.nextClearBlock(1));
+
+        // A span crossing a block boundary dirties both blocks.
+        dirtyBlockMap.dirty(23, 2);
+        assertEquals(2, dirtyBlockMap.nextSetBlock(2));
+        assertEquals(4, dirtyBlockMap.nextClearBlock(2));
+
+        // A span crossing a word boundary.
+        dirtyBlockMap.dirty(500, 100);
+        assertEquals(62, dirtyBlockMap.nextSetBlock(4));
+        assertEquals(75, dirtyBlockMap.nextClearBlock(62));
+
+        // The partial last block.
+        dirtyBlockMap.dirty(999, 1);
+        assertEquals(124, dirtyBlockMap.nextSetBlock(75));
+        assertEquals(125, dirtyBlockMap.nextClearBlock(124));
+
+        dirtyBlockMap.clean();
+        assertEquals(-1, dirtyBlockMap.nextSetBlock(0));
+    }
+
+    @Test
+    public void clean() {
+        DirtyBlockMap dirtyBlockMap = new DirtyBlockMap(1000, 8);
+        dirtyBlockMap.dirty();
+        assertEquals(125, dirtyBlockMap.nextClearBlock(0));
+
+        // Partially covered blocks stay dirty.
+        dirtyBlockMap.clean(4, 8);
+        assertEquals(125, dirtyBlockMap.nextClearBlock(0));
+
+        // Entirely covered blocks are cleaned.
+        dirtyBlockMap.clean(4, 28);
+        assertEquals(1, dirtyBlockMap.nextClearBlock(0));
+        assertEquals(4, dirtyBlockMap.nextSetBlock(1));
+
+        // The last block is cleaned when cleaning to the end.
+        dirtyBlockMap.clean(992, 8);
+        assertEquals(124, dirtyBlockMap.nextClearBlock(4));
+        assertEquals(-1, dirtyBlockMap.nextSetBlock(124));
+    }
+
+    @Test(expectedExceptions = java.lang.IllegalArgumentException.class)
+    public void blockSize() {
+        new DirtyBlockMap(1000, 24);
+    }
+
+    @Test(expectedExceptions = java.lang.IllegalStateException.class)
+    public void regionalUpperRange() {
+        DirtyBlockMap dirtyBlockMap = new DirtyBlockMap(64, 8);
+        dirtyBlockMap.dirty(0, 65);
+    }
+}
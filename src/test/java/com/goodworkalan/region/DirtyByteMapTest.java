@@ -61,6 +61,84 @@ public class DirtyByteMapTest {
         assertEquals(1, dirtyByteMap.dirtied.size());
     }
 
+    private void assertDirtied(DirtyByteMap dirtyByteMap, int... spans) {
+        assertEquals(spans.length / 2, dirtyByteMap.dirtied.size());
+        for (int i = 0; i < spans.length; i += 2) {
+            assertEquals(Integer.valueOf(spans[i + 1]), dirtyByteMap.dirtied.get(spans[i]));
+        }
+    }
+
+    @Test
+    public void dirtySeveral() {
+        DirtyByteMap dirtyByteMap = new DirtyByteMap(64);
+        dirtyByteMap.dirty(2, 2);
+        dirtyByteMap.dirty(6, 2);
+        dirtyByteMap.dirty(10, 2);
+        dirtyByteMap.dirty(14, 2);
+
+        // Merged with the two regions it overlaps, but not the ones after.
+        dirtyByteMap.dirty(5, 6);
+        assertDirtied(dirtyByteMap, 2, 4, 5, 12, 14, 16);
+
+        // Merged with every region, starting within the first.
+        dirtyByteMap.dirty(3, 12);
+        assertDirtied(dirtyByteMap, 2, 16);
+    }
+
+    @Test(timeOut = 10000)
+    public void clean() {
+        DirtyByteMap dirtyByteMap = new DirtyByteMap(64);
+
+        // Splitting a region.
+        dirtyByteMap.dirty(0, 64);
+        dirtyByteMap.clean(8, 8);
+        assertDirtied(dirtyByteMap, 0, 8, 16, 64);
+
+        // Cleaning an already clean region.
+        dirtyByteMap.clean(10, 4);
+        assertDirtied(dirtyByteMap, 0, 8, 16, 64);
+
+        // Truncating both regions.
+        dirtyByteMap.clean(4, 16);
+        assertDirtied(dirtyByteMap, 0, 4, 20, 64);
+
+        // Cleaning across several regions.
+        dirtyByteMap.clean();
+        dirtyByteMap.dirty(2, 2);
+        dirtyByteMap.dirty(6, 2);
+        dirtyByteMap.dirty(10, 2);
+        dirtyByteMap.dirty(14, 2);
+        dirtyByteMap.clean(3, 10);
+        assertDirtied(dirtyByteMap, 2, 3, 14, 16);
+
+        // Removing every region.
+        dirtyByteMap.clean(0, 64);
+        assertDirtied(dirtyByteMap);
+        assertEquals(0, dirtyByteMap.getMergeCount());
+    }
+
+    @Test
+    public void spans() {
+        DirtyByteMap dirtyByteMap = new DirtyByteMap(64);
+        assertEquals(-1, dirtyByteMap.nextDirty(0));
+
+        dirtyByteMap.dirty(2, 2);
+        dirtyByteMap.dirty(8, 4);
+        dirtyByteMap.dirty(60, 4);
+        assertEquals(2, dirtyByteMap.nextDirty(0));
+        assertEquals(3, dirtyByteMap.nextDirty(3));
+        assertEquals(4, dirtyByteMap.nextClean(3));
+        assertEquals(5, dirtyByteMap.nextClean(5));
+        assertEquals(64, dirtyByteMap.nextClean(60));
+
+        StringBuilder spans = new StringBuilder();
+        for (int start = dirtyByteMap.nextDirty(0), end; start != -1; start = dirtyByteMap.nextDirty(end)) {
+            end = dirtyByteMap.nextClean(start);
+            spans.append(start).append('-').append(end).append(' ');
+        }
+        assertEquals("2-4 8-12 60-64 ", spans.toString());
+    }
+
     @Test(expectedExceptions = java.lang.IllegalStateException.class)
     public void regionalLowerRange() {
         DirtyByteMap dirtyByteMap = new DirtyByteMap(64);
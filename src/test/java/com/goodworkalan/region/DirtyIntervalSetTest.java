@@ -0,0 +1,132 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+public class DirtyIntervalSetTest {
+    @Test
+    public void dirty() {
+        DirtyIntervalSet dirtyIntervalSet = new DirtyIntervalSet(64);
+
+        dirtyIntervalSet.dirty(0, 64);
+
+        dirtyIntervalSet.dirty(3, 3);
+
+        dirtyIntervalSet.dirty(7, 3);
+
+        dirtyIntervalSet.dirty(3, 3);
+        dirtyIntervalSet.dirty(6, 4);
+
+        dirtyIntervalSet.dirty(6, 4);
+        dirtyIntervalSet.dirty(3, 3);
+        assertEquals(1, dirtyIntervalSet.size);
+
+        dirtyIntervalSet.clean();
+
+        // Two invalid regions.
+        dirtyIntervalSet.dirty(3, 3);
+        dirtyIntervalSet.dirty(7, 3);
+        assertEquals(2, dirtyIntervalSet.size);
+
+        // First region extended by one.
+        dirtyIntervalSet.dirty(2, 4);
+        assertEquals(2, dirtyIntervalSet.size);
+
+        // First region replace by larger region and merged into second region.
+        dirtyIntervalSet.dirty(2, 5);
+        assertEquals(1, dirtyIntervalSet.size);
+
+        // Invalidating an already invalid region.
+        dirtyIntervalSet.dirty(3, 3);
+        assertEquals(1, dirtyIntervalSet.size);
+
+        // Extending a region.
+        dirtyIntervalSet.dirty(8, 3);
+        assertEquals(1, dirtyIntervalSet.size);
+
+        dirtyIntervalSet.clean();
+
+        // Swallowing entire regions.
+        dirtyIntervalSet.dirty(3, 3);
+        dirtyIntervalSet.dirty(7, 3);
+        assertEquals(2, dirtyIntervalSet.size);
+        dirtyIntervalSet.dirty(11, 2);
+        assertEquals(3, dirtyIntervalSet.size);
+        dirtyIntervalSet.dirty(2, 14);
+        assertEquals(1, dirtyIntervalSet.size);
+
+        dirtyIntervalSet.clean();
+
+        // Growing beyond the initial capacity.
+        for (int i = 0; i < 32; i++) {
+            dirtyIntervalSet.dirty(62 - i * 2, 1);
+        }
+        assertEquals(32, dirtyIntervalSet.size);
+        dirtyIntervalSet.dirty(0, 64);
+        assertEquals(1, dirtyIntervalSet.size);
+    }
+
+    @Test
+    public void clean() {
+        DirtyIntervalSet dirtyIntervalSet = new DirtyIntervalSet(64);
+
+        // Splitting a region.
+        dirtyIntervalSet.dirty(0, 64);
+        dirtyIntervalSet.clean(8, 8);
+        assertEquals(2, dirtyIntervalSet.size);
+
+        // Cleaning an already clean region.
+        dirtyIntervalSet.clean(10, 4);
+        assertEquals(2, dirtyIntervalSet.size);
+
+        // Truncating both regions.
+        dirtyIntervalSet.clean(4, 16);
+        assertEquals(2, dirtyIntervalSet.size);
+
+        // Removing the first region entirely.
+        dirtyIntervalSet.clean(0, 4);
+        assertEquals(1, dirtyIntervalSet.size);
+
+        // Removing the last region entirely.
+        dirtyIntervalSet.clean(20, 44);
+        assertEquals(0, dirtyIntervalSet.size);
+    }
+
+    @Test
+    public void mergeCount() {
+        DirtyIntervalSet dirtyIntervalSet = new DirtyIntervalSet(64);
+
+        dirtyIntervalSet.dirty(0, 4);
+        dirtyIntervalSet.dirty(8, 4);
+        assertEquals(0, dirtyIntervalSet.getMergeCount());
+
+        dirtyIntervalSet.dirty(2, 8);
+        assertEquals(2, dirtyIntervalSet.getMergeCount());
+
+        dirtyIntervalSet.clean(4, 2);
+        assertEquals(3, dirtyIntervalSet.getMergeCount());
+
+        dirtyIntervalSet.clean(0, 64);
+        assertEquals(0, dirtyIntervalSet.getMergeCount());
+
+        dirtyIntervalSet.dirty(0, 4);
+        dirtyIntervalSet.dirty(2, 4);
+        assertEquals(1, dirtyIntervalSet.getMergeCount());
+
+        dirtyIntervalSet.clean();
+        assertEquals(0, dirtyIntervalSet.getMergeCount());
+    }
+
+    @Test(expectedExceptions = java.lang.IllegalStateException.class)
+    public void regionalLowerRange() {
+        DirtyIntervalSet dirtyIntervalSet = new DirtyIntervalSet(64);
+        dirtyIntervalSet.dirty(-1, 10);
+    }
+
+    @Test(expectedExceptions = java.lang.IllegalStateException.class)
+    public void regionalUpperRange() {
+        DirtyIntervalSet dirtyIntervalSet = new DirtyIntervalSet(64);
+        dirtyIntervalSet.dirty(0, 65);
+    }
+}
@@ -0,0 +1,120 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.testng.annotations.Test;
+
+public class FlusherTest {
+    private FileChannel newFileChannel() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        return new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    private BasicWritable newWritable(long position, final List<Long> written) {
+        return new BasicWritable(position, ByteBuffer.allocate(8), new ReentrantLock(), new DirtyIntervalSet(8)) {
+            @Override
+            public void write(FileChannel fileChannel, int offset) throws IOException {
+                written.add(getPosition());
+                super.write(fileChannel, offset);
+            }
+        };
+    }
+
+    @Test
+    public void batch() throws IOException, InterruptedException, ExecutionException {
+        FileChannel fileChannel = newFileChannel();
+        try {
+            List<Long> written = Collections.synchronizedList(new ArrayList<Long>());
+            Flusher flusher = new Flusher(fileChannel, 3, 1000, 3);
+            List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+            for (long position = 16; position >= 0; position -= 8) {
+                BasicWritable writable = newWritable(position, written);
+                writable.getByteBuffer().putLong(0, position + 1);
+                writable.dirty();
+                futures.add(flusher.submit(writable));
+            }
+            flusher.shutdown();
+            flusher.run();
+            for (CompletableFuture<Void> future : futures) {
+                assertTrue(future.isDone());
+                future.get();
+            }
+            // The batch is written in file position order.
+            assertEquals(0L, (long) written.get(0));
+            assertEquals(8L, (long) written.get(1));
+            assertEquals(16L, (long) written.get(2));
+            ByteBuffer read = ByteBuffer.allocate(8);
+            fileChannel.read(read, 8);
+            assertEquals(9, read.getLong(0));
+        } finally {
+            fileChannel.close();
+        }
+    }
+
+    @Test
+    public void shutdown() throws IOException, InterruptedException, ExecutionException {
+        FileChannel fileChannel = newFileChannel();
+        try {
+            List<Long> written = Collections.synchronizedList(new ArrayList<Long>());
+            Flusher flusher = new Flusher(fileChannel, 2, 0, 8);
+            Thread thread = new Thread(flusher);
+            thread.start();
+            CompletableFuture<Void> future = flusher.submit(newWritable(0, written));
+            flusher.shutdown();
+            boolean rejected = false;
+            try {
+                flusher.submit(newWritable(8, written));
+            } catch (IllegalStateException e) {
+                rejected = true;
+            }
+            assertTrue(rejected);
+            thread.join(10000);
+            assertTrue(!thread.isAlive());
+            future.get();
+            assertEquals(1, written.size());
+        } finally {
+            fileChannel.close();
+        }
+    }
+
+    @Test
+    public void interrupt() throws IOException, InterruptedException {
+        FileChannel fileChannel = newFileChannel();
+        try {
+            List<Long> written = Collections.synchronizedList(new ArrayList<Long>());
+            Flusher flusher = new Flusher(fileChannel, 1, 0, 8);
+            CompletableFuture<Void> first = flusher.submit(newWritable(0, written));
+            CompletableFuture<Void> second = flusher.submit(newWritable(8, written));
+            Thread.currentThread().interrupt();
+            flusher.run();
+            assertTrue(Thread.interrupted());
+            // Every queued region fails rather than waiting forever.
+            assertTrue(first.isCompletedExceptionally());
+            assertTrue(second.isCompletedExceptionally());
+            assertEquals(0, written.size());
+            boolean rejected = false;
+            try {
+                flusher.submit(newWritable(16, written));
+            } catch (IllegalStateException e) {
+                rejected = true;
+            }
+            assertTrue(rejected);
+        } finally {
+            fileChannel.close();
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import org.testng.annotations.Test;
+
+public class HeaderTest {
+    private enum Field {
+        COUNT, FLAGS, NAME
+    }
+
+    private HeaderBuilder<Field> newBuilder() {
+        HeaderBuilder<Field> builder = new HeaderBuilder<Field>();
+        builder.addField(Field.COUNT, 8);
+        builder.addField(Field.FLAGS, 4);
+        builder.addField(Field.NAME, 6);
+        return builder;
+    }
+
+    @Test
+    public void layout() {
+        HeaderBuilder<Field> builder = newBuilder();
+        HeaderLayout<Field> layout = builder.getLayout();
+        assertTrue(layout == builder.newHeader(0).getLayout());
+        assertEquals(18, layout.getLength());
+        assertEquals(1, layout.indexOf(Field.FLAGS));
+        assertEquals(8, layout.getOffset(1));
+        assertEquals(4, layout.getLength(1));
+
+        Header<Field> header = builder.newHeader(100);
+        assertTrue(header.get(Field.NAME) == header.get(Field.NAME));
+        assertEquals(112, header.get(Field.NAME).getPosition());
+        assertEquals(6, header.get(Field.NAME).getByteBuffer().capacity());
+    }
+
+    @Test
+    public void accessors() {
+        Header<Field> header = newBuilder().newHeader(0);
+        SpanCleanable cleanable = (SpanCleanable) header.getDirtyable();
+        assertTrue(cleanable instanceof DirtyIntervalSet);
+
+        header.putInt(Field.FLAGS, 7);
+        assertEquals(7, header.getInt(Field.FLAGS));
+        assertEquals(8, cleanable.nextDirty(0));
+        assertEquals(12, cleanable.nextClean(8));
+
+        header.putBytes(Field.NAME, new byte[] { 1, 2, 3 });
+        byte[] bytes = new byte[3];
+        header.getBytes(Field.NAME, bytes);
+        assertEquals(3, bytes[2]);
+        assertEquals(15, cleanable.nextClean(12));
+
+        header.putLong(Field.COUNT, 40);
+        assertEquals(40, header.getAndAddLong(Field.COUNT, 2));
+        assertFalse(header.compareAndSetLong(Field.COUNT, 40, 0));
+        assertTrue(header.compareAndSetLong(Field.COUNT, 42, 0));
+        assertEquals(0, header.getLong(Field.COUNT));
+        assertEquals(0, cleanable.nextDirty(0));
+    }
+
+    @Test
+    public void repeated() {
+        HeaderBuilder<String> entry = new HeaderBuilder<String>();
+        entry.addField("key", 4);
+        entry.addField("value", 8);
+
+        HeaderBuilder<String> builder = new HeaderBuilder<String>();
+        builder.addArrayField("slots", 1024, 8);
+        builder.addBlobField("name", 16);
+        builder.addArrayField("entries", 4, entry.getLayout());
+        HeaderLayout<String> layout = builder.getLayout();
+        assertEquals(1024, layout.getElementCount(0));
+        assertEquals(8 * 1024 + 20 + 4 * 12, layout.getLength());
+
+        Header<String> header = builder.newHeader(0);
+        SpanCleanable cleanable = (SpanCleanable) header.getDirtyable();
+
+        // Dirtying an element dirties only the element.
+        header.putLong("slots", 100, 7);
+        assertEquals(7, header.getLong("slots", 100));
+        assertEquals(800, cleanable.nextDirty(0));
+        assertEquals(808, cleanable.nextClean(800));
+        header.get("slots", 200).dirty();
+        assertEquals(1600, cleanable.nextDirty(808));
+        assertEquals(1608, cleanable.nextClean(1600));
+        cleanable.clean();
+
+        // A blob dirties only its length and content.
+        header.putBlob("name", new byte[] { 1, 2, 3 });
+        assertEquals(3, header.getBlob("name").length);
+        assertEquals(8192, cleanable.nextDirty(0));
+        assertEquals(8199, cleanable.nextClean(8192));
+        cleanable.clean();
+
+        // A struct member dirties only the member.
+        Region value = header.getMember("entries", 2, "value");
+        assertEquals(8 * 1024 + 20 + 2 * 12 + 4, value.getPosition());
+        value.dirty();
+        assertEquals(8240, cleanable.nextDirty(0));
+        assertEquals(8248, cleanable.nextClean(8240));
+    }
+
+    @Test
+    public void alignment() {
+        HeaderBuilder<String> builder = new HeaderBuilder<String>();
+        builder.addField("flag", 1);
+        builder.setAlignment(HeaderBuilder.NATURAL);
+        builder.addField("count", 8);
+        builder.addField("hot", 8, HeaderBuilder.CACHE_LINE);
+        builder.pad(HeaderBuilder.CACHE_LINE);
+        builder.addBlobField("name", 10);
+        builder.addField("root", 16, HeaderBuilder.SECTOR);
+        HeaderLayout<String> layout = builder.getLayout();
+        assertEquals(8, layout.getOffset(1));
+        assertEquals(64, layout.getOffset(2));
+        assertEquals(128, layout.getOffset(3));
+        assertEquals(4, layout.getAlignment(3));
+        assertEquals(512, layout.getOffset(4));
+        assertEquals(512, layout.getAlignment());
+        assertEquals(528, layout.getLength());
+        assertEquals(528 - 1 - 8 - 8 - 14 - 16, layout.getPadding());
+    }
+
+    @Test
+    public void striped() throws InterruptedException {
+        HeaderBuilder<Field> builder = newBuilder();
+        builder.setStripeCount(3);
+        final Header<Field> header = builder.newHeader(0);
+        assertTrue(header.getDirtyable() instanceof SynchronizedSpanCleanable);
+
+        // A field region locks only its stripe.
+        header.get(Field.COUNT).getLock().lock();
+        final boolean[] locked = new boolean[2];
+        Thread other = new Thread() {
+            public void run() {
+                locked[0] = header.get(Field.FLAGS).getLock().tryLock();
+                header.get(Field.FLAGS).getLock().unlock();
+                locked[1] = header.getLock().tryLock();
+            }
+        };
+        other.start();
+        other.join();
+        assertTrue(locked[0]);
+        assertFalse(locked[1]);
+        assertTrue(header.getReadWriteLock(Field.COUNT).writeLock() == header.get(Field.COUNT).getLock());
+        header.get(Field.COUNT).getLock().unlock();
+
+        // The header lock takes every stripe.
+        header.getLock().lock();
+        final boolean[] read = new boolean[Field.values().length];
+        try {
+            other = new Thread() {
+                public void run() {
+                    for (Field field : Field.values()) {
+                        read[field.ordinal()] = header.getReadWriteLock(field).readLock().tryLock();
+                    }
+                }
+            };
+            other.start();
+            other.join();
+        } finally {
+            header.getLock().unlock();
+        }
+        for (boolean stripe : read) {
+            assertFalse(stripe);
+        }
+    }
+
+    @Test
+    public void concurrent() throws InterruptedException {
+        HeaderBuilder<Field> builder = new HeaderBuilder<Field>(new DirectBufferAllocator());
+        builder.addField(Field.COUNT, 8);
+        builder.addField(Field.FLAGS, 4);
+        builder.setConcurrent(true);
+        final Header<Field> header = builder.newHeader(0);
+        assertTrue(header.getDirtyable() instanceof ConcurrentDirtyBlockMap);
+
+        // An aligned long is updated without the header lock.
+        header.getLock().lock();
+        Thread[] threads = new Thread[4];
+        try {
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    public void run() {
+                        for (int j = 0; j < 1000; j++) {
+                            header.getAndAddLong(Field.COUNT, 1);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join(10000);
+                assertFalse(thread.isAlive());
+            }
+        } finally {
+            header.getLock().unlock();
+        }
+        assertTrue(header.compareAndSetLong(Field.COUNT, 4000, 1));
+        assertFalse(header.compareAndSetLong(Field.COUNT, 4000, 2));
+
+        header.getLock().lock();
+        try {
+            assertEquals(1, header.getLong(Field.COUNT));
+        } finally {
+            header.getLock().unlock();
+        }
+
+        DirtyBlockMap dirty = ((ConcurrentDirtyBlockMap) header.getDirtyable()).drain();
+        assertEquals(0, dirty.nextDirty(0));
+        assertEquals(8, dirty.nextClean(0));
+    }
+
+    @Test
+    public void lazy() throws IOException {
+        File file = File.createTempFile("header", ".dat");
+        file.deleteOnExit();
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            Header<Field> header = newBuilder().newHeader(0);
+            header.putLong(Field.COUNT, 5);
+            header.putInt(Field.FLAGS, 9);
+            header.putBytes(Field.NAME, new byte[] { 1, 2, 3 });
+            write(header, fileChannel);
+
+            // A field set before it is read keeps its value and is written.
+            header = newBuilder().newHeader(0);
+            header.putInt(Field.FLAGS, 7);
+            header.get(Field.FLAGS, fileChannel, 0);
+            header.get(Field.COUNT, fileChannel, 0);
+            assertEquals(7, header.getInt(Field.FLAGS));
+            assertEquals(5, header.getLong(Field.COUNT));
+            write(header, fileChannel);
+
+            header = newBuilder().newHeader(0);
+            header.get(Field.NAME, fileChannel, 0);
+            header.get(Field.COUNT, fileChannel, 0);
+            header.get(Field.FLAGS, fileChannel, 0);
+            byte[] bytes = new byte[3];
+            header.getBytes(Field.NAME, bytes);
+            assertEquals(3, bytes[2]);
+            assertEquals(5, header.getLong(Field.COUNT));
+            assertEquals(7, header.getInt(Field.FLAGS));
+
+            // A concurrent header keeps the value of a dirty block.
+            HeaderBuilder<Field> builder = newBuilder();
+            builder.setConcurrent(true);
+            header = builder.newHeader(0);
+            header.getAndAddLong(Field.COUNT, 3);
+            header.get(Field.COUNT, fileChannel, 0);
+            header.get(Field.FLAGS, fileChannel, 0);
+            assertEquals(3, header.getLong(Field.COUNT));
+            assertEquals(7, header.getInt(Field.FLAGS));
+            write(header, fileChannel);
+
+            header = newBuilder().newHeader(0);
+            header.get(Field.COUNT, fileChannel, 0);
+            header.get(Field.FLAGS, fileChannel, 0);
+            assertEquals(3, header.getLong(Field.COUNT));
+            assertEquals(7, header.getInt(Field.FLAGS));
+        } finally {
+            fileChannel.close();
+        }
+    }
+
+    private void write(Header<Field> header, FileChannel fileChannel) throws IOException {
+        header.getLock().lock();
+        try {
+            header.write(fileChannel, 0);
+        } finally {
+            header.getLock().unlock();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void outOfRange() {
+        HeaderBuilder<String> builder = new HeaderBuilder<String>();
+        builder.addArrayField("slots", 4, 8);
+        builder.newHeader(0).getLong("slots", 4);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void tooShort() {
+        newBuilder().newHeader(0).getLong(Field.FLAGS);
+    }
+}
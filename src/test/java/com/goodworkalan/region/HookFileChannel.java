@@ -0,0 +1,125 @@
+package com.goodworkalan.region;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A file channel that delegates to another file channel and runs a hook
+ * after each positional write and before each positional read, so that tests
+ * can act in the middle of a write or a load.
+ */
+class HookFileChannel extends FileChannel {
+    private final FileChannel fileChannel;
+
+    private final Runnable hook;
+
+    private final Runnable readHook;
+
+    public HookFileChannel(FileChannel fileChannel, Runnable hook) {
+        this(fileChannel, hook, new Runnable() {
+            public void run() {
+            }
+        });
+    }
+
+    public HookFileChannel(FileChannel fileChannel, Runnable hook, Runnable readHook) {
+        this.fileChannel = fileChannel;
+        this.hook = hook;
+        this.readHook = readHook;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        int written = fileChannel.write(src, position);
+        hook.run();
+        return written;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        readHook.run();
+        return fileChannel.read(dst, position);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return fileChannel.read(dst);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        return fileChannel.read(dsts, offset, length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return fileChannel.write(src);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        return fileChannel.write(srcs, offset, length);
+    }
+
+    @Override
+    public long position() throws IOException {
+        return fileChannel.position();
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+        fileChannel.position(newPosition);
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return fileChannel.size();
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        fileChannel.truncate(size);
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        fileChannel.force(metaData);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return fileChannel.transferTo(position, count, target);
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        return fileChannel.transferFrom(src, position, count);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        return fileChannel.map(mode, position, size);
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return fileChannel.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return fileChannel.tryLock(position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        fileChannel.close();
+    }
+}
@@ -0,0 +1,129 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.testng.annotations.Test;
+
+public class InstrumentationTest {
+    private List<RecordedEvent> getEvents(Recording recording, String name) throws IOException {
+        File dump = File.createTempFile("region", ".jfr");
+        dump.deleteOnExit();
+        recording.dump(dump.toPath());
+        List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+            if (event.getEventType().getName().equals(name)) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    @Test
+    public void flushEvent() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        FileChannel fileChannel = new HookFileChannel(new RandomAccessFile(file, "rw").getChannel(), new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        RegionCounters counters = new RegionCounters();
+        Instrumentation.setListener(counters);
+        Recording recording = new Recording();
+        try {
+            recording.enable(FlushEvent.class).withThreshold(Duration.ofMillis(10));
+            recording.start();
+            BasicWritable writable = new BasicWritable(16, ByteBuffer.allocate(64), new ReentrantLock(), new DirtyByteMap(64));
+            writable.dirty(0, 4);
+            writable.dirty(2, 4);
+            writable.dirty(16, 4);
+            Instrumentation.lock(writable);
+            try {
+                writable.write(fileChannel, 0);
+                // A flush faster than the threshold is not recorded.
+                writable.write(new RandomAccessFile(file, "rw").getChannel(), 0);
+            } finally {
+                writable.getLock().unlock();
+            }
+            recording.stop();
+
+            List<RecordedEvent> flushes = getEvents(recording, "com.goodworkalan.region.Flush");
+            assertEquals(1, flushes.size());
+            RecordedEvent flush = flushes.get(0);
+            assertTrue(flush.getDuration().toMillis() >= 40);
+            assertEquals(BasicWritable.class.getName(), flush.getClass("regionClass").getName());
+            assertEquals(16, flush.getLong("position"));
+            assertEquals(2, flush.getInt("spanCount"));
+            assertEquals(10, flush.getLong("byteCount"));
+            assertEquals(2, flush.getInt("writeCount"));
+            assertEquals(1, flush.getInt("mergeCount"));
+            assertEquals(2, counters.getCounters(BasicWritable.class).getFlushCount());
+        } finally {
+            Instrumentation.setListener(null);
+            recording.close();
+            fileChannel.close();
+        }
+    }
+
+    @Test
+    public void lockWaitEvent() throws IOException, InterruptedException {
+        final ReentrantLock lock = new ReentrantLock();
+        final BasicWritable writable = new BasicWritable(32, ByteBuffer.allocate(64), lock, new DirtyByteMap(64));
+        final CountDownLatch locked = new CountDownLatch(1);
+        Recording recording = new Recording();
+        try {
+            recording.enable(LockWaitEvent.class);
+            recording.start();
+            Thread holder = new Thread(new Runnable() {
+                public void run() {
+                    lock.lock();
+                    try {
+                        locked.countDown();
+                        while (!lock.hasQueuedThreads()) {
+                            Thread.sleep(1);
+                        }
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            });
+            holder.start();
+            locked.await();
+            Instrumentation.lock(writable);
+            lock.unlock();
+            holder.join();
+            recording.stop();
+
+            List<RecordedEvent> waits = getEvents(recording, "com.goodworkalan.region.LockWait");
+            assertEquals(1, waits.size());
+            RecordedEvent wait = waits.get(0);
+            assertTrue(wait.getDuration().toMillis() >= 50);
+            assertEquals(32, wait.getLong("position"));
+        } finally {
+            recording.close();
+        }
+    }
+}
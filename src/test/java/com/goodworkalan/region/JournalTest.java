@@ -0,0 +1,206 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.testng.annotations.Test;
+
+public class JournalTest {
+    private FileChannel open() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        return new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    @Test
+    public void recover() throws IOException {
+        FileChannel journalChannel = open();
+        FileChannel data = open();
+        try {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(64);
+            DirtyIntervalSet dirty = new DirtyIntervalSet(64);
+            byteBuffer.put(4, (byte) 1);
+            dirty.dirty(4, 1);
+            byteBuffer.put(40, (byte) 2);
+            dirty.dirty(40, 2);
+
+            Journal journal = new Journal(journalChannel);
+            Journal.Transaction transaction = journal.newTransaction();
+            transaction.append(byteBuffer, dirty, 128);
+            journal.commit(transaction);
+            assertEquals(4, dirty.nextDirty(0));
+
+            // A transaction torn by a crash is ignored.
+            long length = journal.getLength();
+            byteBuffer.put(4, (byte) 3);
+            transaction.append(byteBuffer, dirty, 128);
+            journal.commit(transaction);
+            journalChannel.truncate(journal.getLength() - 2);
+            assertEquals(length * 2 - 2, journalChannel.size());
+
+            assertEquals(1, Journal.recover(journalChannel, data));
+            assertEquals(0, journalChannel.size());
+            ByteBuffer read = ByteBuffer.allocate(64);
+            data.read(read, 128);
+            assertEquals(1, read.get(4));
+            assertEquals(2, read.get(40));
+            assertEquals(0, read.get(41));
+
+            assertEquals(0, Journal.recover(journalChannel, data));
+        } finally {
+            journalChannel.close();
+            data.close();
+        }
+    }
+
+    @Test
+    public void interleaved() throws IOException {
+        FileChannel journalChannel = open();
+        FileChannel data = open();
+        try {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(8);
+            DirtyIntervalSet dirty = new DirtyIntervalSet(8);
+            dirty.dirty(0, 8);
+
+            // A transaction appended while another commits is not committed.
+            Journal journal = new Journal(journalChannel);
+            Journal.Transaction first = journal.newTransaction();
+            Journal.Transaction second = journal.newTransaction();
+            byteBuffer.putLong(0, 1);
+            first.append(byteBuffer, dirty, 0);
+            byteBuffer.putLong(0, 2);
+            second.append(byteBuffer, dirty, 8);
+            journal.commit(first);
+
+            assertEquals(1, Journal.recover(journalChannel, data));
+            ByteBuffer read = ByteBuffer.allocate(16);
+            data.read(read, 0);
+            assertEquals(1, read.getLong(0));
+            assertEquals(0, read.getLong(8));
+        } finally {
+            journalChannel.close();
+            data.close();
+        }
+    }
+
+    @Test
+    public void commitFailure() throws IOException {
+        FileChannel journalChannel = open();
+        FileChannel data = open();
+        try {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(8);
+            DirtyIntervalSet dirty = new DirtyIntervalSet(8);
+            dirty.dirty(0, 8);
+            byteBuffer.putLong(0, 7);
+
+            Journal journal = new Journal(journalChannel);
+            Journal.Transaction transaction = journal.newTransaction();
+            transaction.append(byteBuffer, dirty, 0);
+            Journal failing = new Journal(new HookFileChannel(journalChannel, new Runnable() {
+                public void run() {
+                    throw new IllegalStateException();
+                }
+            }));
+            Journal.Transaction failed = failing.newTransaction();
+            failed.append(byteBuffer, dirty, 0);
+            try {
+                failing.commit(failed);
+                throw new AssertionError();
+            } catch (IllegalStateException e) {
+                // The records of the transaction are kept for a retry.
+            }
+            assertEquals(0, failing.getLength());
+            try {
+                journal.commit(failed);
+                throw new AssertionError();
+            } catch (IllegalArgumentException e) {
+                // A transaction belongs to its journal.
+            }
+
+            journal.commit(transaction);
+            assertEquals(1, Journal.recover(journalChannel, data));
+            ByteBuffer read = ByteBuffer.allocate(8);
+            data.read(read, 0);
+            assertEquals(7, read.getLong(0));
+        } finally {
+            journalChannel.close();
+            data.close();
+        }
+    }
+
+    @Test
+    public void checkpoint() throws IOException {
+        FileChannel journalChannel = open();
+        FileChannel data = open();
+        try {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(8);
+            DirtyIntervalSet dirty = new DirtyIntervalSet(8);
+            dirty.dirty(0, 8);
+
+            Journal journal = new Journal(journalChannel);
+            Journal.Transaction transaction = journal.newTransaction();
+            byteBuffer.putLong(0, 1);
+            transaction.append(byteBuffer, dirty, 0);
+            journal.commit(transaction);
+            BasicWritable.write(data, byteBuffer.duplicate(), 0);
+
+            // The checkpoint empties the journal once the data is written.
+            journal.checkpoint(data);
+            assertEquals(0, journal.getLength());
+            assertEquals(0, journalChannel.size());
+
+            byteBuffer.putLong(0, 2);
+            transaction.append(byteBuffer, dirty, 8);
+            journal.commit(transaction);
+            assertEquals(journalChannel.size(), journal.getLength());
+
+            assertEquals(1, Journal.recover(journalChannel, data));
+            ByteBuffer read = ByteBuffer.allocate(16);
+            data.read(read, 0);
+            assertEquals(1, read.getLong(0));
+            assertEquals(2, read.getLong(8));
+        } finally {
+            journalChannel.close();
+            data.close();
+        }
+    }
+
+    @Test
+    public void corrupt() throws IOException {
+        FileChannel journalChannel = open();
+        FileChannel data = open();
+        try {
+            ByteBuffer byteBuffer = ByteBuffer.allocate(8);
+            DirtyIntervalSet dirty = new DirtyIntervalSet(8);
+            dirty.dirty(0, 8);
+
+            Journal journal = new Journal(journalChannel);
+            Journal.Transaction transaction = journal.newTransaction();
+            for (int i = 0; i < 3; i++) {
+                byteBuffer.putLong(0, i + 1);
+                transaction.append(byteBuffer, dirty, i * 8);
+                journal.commit(transaction);
+            }
+
+            // A corrupt record ends the journal, so the transactions after it
+            // are ignored even though they are intact.
+            long length = journal.getLength() / 3;
+            journalChannel.write(ByteBuffer.wrap(new byte[] { 9 }), length + 20);
+
+            assertEquals(1, Journal.recover(journalChannel, data));
+            ByteBuffer read = ByteBuffer.allocate(24);
+            data.read(read, 0);
+            assertEquals(1, read.getLong(0));
+            assertEquals(0, read.getLong(8));
+            assertEquals(0, read.getLong(16));
+        } finally {
+            journalChannel.close();
+            data.close();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.testng.annotations.Test;
+
+public class MappedRegionTest {
+    private FileChannel newFileChannel() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        return new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    @Test
+    public void pageSize() {
+        assertTrue(MappedRegion.PAGE_SIZE > 0);
+        assertEquals(0, MappedRegion.PAGE_SIZE & (MappedRegion.PAGE_SIZE - 1));
+    }
+
+    @Test
+    public void write() throws IOException {
+        FileChannel fileChannel = newFileChannel();
+        int length = MappedRegion.PAGE_SIZE * 3;
+        MappedRegion region = new MappedRegion(fileChannel, 100, length);
+        DirtyIntervalSet cleanable = (DirtyIntervalSet) region.getDirtyable();
+
+        // A clean region is not forced.
+        region.write(fileChannel, 0);
+
+        // Spans on separate pages and a span crossing the end are forced.
+        region.getByteBuffer().putLong(0, 1);
+        region.dirty(0, 8);
+        region.getByteBuffer().putLong(MappedRegion.PAGE_SIZE * 2 + 8, 2);
+        region.dirty(MappedRegion.PAGE_SIZE * 2 + 8, 8);
+        region.getByteBuffer().putLong(length - 8, 3);
+        region.dirty(length - 8, 8);
+        region.write(fileChannel, 0);
+        assertEquals(-1, cleanable.nextDirty(0));
+
+        ByteBuffer read = ByteBuffer.allocate(8);
+        fileChannel.read(read, 100);
+        assertEquals(1, read.getLong(0));
+        read.clear();
+        fileChannel.read(read, 100 + MappedRegion.PAGE_SIZE * 2 + 8);
+        assertEquals(2, read.getLong(0));
+        read.clear();
+        fileChannel.read(read, 100 + length - 8);
+        assertEquals(3, read.getLong(0));
+        region.unmap();
+    }
+
+    @Test
+    public void concurrent() throws IOException {
+        FileChannel fileChannel = newFileChannel();
+        ConcurrentDirtyBlockMap cleanable = new ConcurrentDirtyBlockMap(64, 8);
+        MappedRegion region = new MappedRegion(0, fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, 64), new ReentrantLock(), cleanable);
+        region.getByteBuffer().putLong(8, 4);
+        region.dirty(8, 8);
+        region.write(fileChannel, 0);
+        assertEquals(-1, cleanable.drain().nextDirty(0));
+        ByteBuffer read = ByteBuffer.allocate(8);
+        fileChannel.read(read, 8);
+        assertEquals(4, read.getLong(0));
+        region.unmap();
+    }
+
+    @Test
+    public void unmap() throws IOException {
+        FileChannel fileChannel = newFileChannel();
+        MappedRegion region = new MappedRegion(fileChannel, 0, 64);
+        region.getByteBuffer().putLong(0, 5);
+        region.dirty(0, 8);
+        region.write(fileChannel, 0);
+        assertTrue(region.unmap());
+        assertTrue(region.unmap());
+
+        // The content written before the unmap is in the file.
+        ByteBuffer read = ByteBuffer.allocate(8);
+        fileChannel.read(read, 0);
+        assertEquals(5, read.getLong(0));
+
+        // A new mapping of the same range sees the same content.
+        MappedRegion again = new MappedRegion(fileChannel, 0, 64);
+        assertEquals(5, again.getByteBuffer().getLong(0));
+        assertFalse(again.getByteBuffer() == region.getByteBuffer());
+        again.unmap();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void writeAfterUnmap() throws IOException {
+        FileChannel fileChannel = newFileChannel();
+        MappedRegion region = new MappedRegion(fileChannel, 0, 64);
+        assertTrue(region.unmap());
+        region.write(fileChannel, 0);
+    }
+
+    @Test
+    public void atomics() throws IOException {
+        FileChannel fileChannel = newFileChannel();
+        MappedRegion region = new MappedRegion(fileChannel, 0, 64);
+        DirtyIntervalSet cleanable = (DirtyIntervalSet) region.getDirtyable();
+
+        region.putLongVolatile(8, 40);
+        assertEquals(40, region.getAndAddLong(8, 2));
+        assertFalse(region.compareAndSetLong(8, 40, 0));
+        assertTrue(region.compareAndSetLong(8, 42, 7));
+        assertEquals(7, region.getLongVolatile(8));
+        assertEquals(7, region.getByteBuffer().getLong(8));
+
+        region.putIntVolatile(20, 1);
+        assertEquals(1, region.getAndAddInt(20, 1));
+        assertTrue(region.compareAndSetInt(20, 2, 3));
+        assertEquals(3, region.getIntVolatile(20));
+        assertEquals(8, cleanable.nextDirty(0));
+        assertEquals(16, cleanable.nextClean(8));
+        assertEquals(20, cleanable.nextDirty(16));
+        assertEquals(24, cleanable.nextClean(20));
+
+        region.write(fileChannel, 0);
+        ByteBuffer read = ByteBuffer.allocate(8);
+        fileChannel.read(read, 8);
+        assertEquals(7, read.getLong(0));
+        region.unmap();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void misaligned() throws IOException {
+        MappedRegion region = new MappedRegion(newFileChannel(), 0, 64);
+        try {
+            region.getAndAddLong(4, 1);
+        } finally {
+            region.unmap();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void atomicsAfterUnmap() throws IOException {
+        MappedRegion region = new MappedRegion(newFileChannel(), 0, 64);
+        region.unmap();
+        region.getLongVolatile(0);
+    }
+}
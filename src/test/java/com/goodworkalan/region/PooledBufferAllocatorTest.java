@@ -0,0 +1,83 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.Test;
+
+public class PooledBufferAllocatorTest {
+    @Test
+    public void allocate() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(1024, 4096);
+        ByteBuffer byteBuffer = allocator.allocate(100);
+        assertTrue(byteBuffer.isDirect());
+        assertEquals(100, byteBuffer.capacity());
+        assertEquals(0, byteBuffer.position());
+        assertEquals(100, byteBuffer.limit());
+    }
+
+    @Test
+    public void reuse() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(1024, 4096);
+        ByteBuffer byteBuffer = allocator.allocate(100);
+        for (int i = 0; i < 100; i++) {
+            byteBuffer.put(i, (byte) 0xFF);
+        }
+        allocator.free(byteBuffer);
+        assertEquals(128, allocator.retained);
+
+        // A buffer of the same size class is reused and zeroed.
+        byteBuffer = allocator.allocate(120);
+        assertEquals(0, allocator.retained);
+        assertEquals(120, byteBuffer.capacity());
+        for (int i = 0; i < 120; i++) {
+            assertEquals(0, byteBuffer.get(i));
+        }
+
+        // Freeing twice or freeing a foreign buffer is ignored.
+        allocator.free(byteBuffer);
+        allocator.free(byteBuffer);
+        allocator.free(ByteBuffer.allocateDirect(64));
+        assertEquals(128, allocator.retained);
+    }
+
+    @Test
+    public void exhaustion() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(1024, 128);
+        ByteBuffer first = allocator.allocate(64);
+        ByteBuffer second = allocator.allocate(64);
+        ByteBuffer third = allocator.allocate(64);
+        allocator.free(first);
+        allocator.free(second);
+        allocator.free(third);
+        assertEquals(128, allocator.retained);
+
+        // Buffers larger than the largest size class are not pooled.
+        ByteBuffer large = allocator.allocate(2048);
+        assertEquals(2048, large.capacity());
+        allocator.free(large);
+        assertEquals(128, allocator.retained);
+    }
+
+    @Test
+    public void release() {
+        PooledBufferAllocator allocator = new PooledBufferAllocator(1024, 4096);
+        HeaderBuilder<String> builder = new HeaderBuilder<String>(allocator);
+        builder.addField("count", 8);
+        Header<String> header = builder.newHeader(0);
+        assertEquals(0, allocator.retained);
+        header.release();
+        assertEquals(64, allocator.retained);
+        header.release();
+        assertEquals(64, allocator.retained);
+        builder.newHeader(0);
+        assertEquals(0, allocator.retained);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void largest() {
+        new PooledBufferAllocator(100, 4096);
+    }
+}
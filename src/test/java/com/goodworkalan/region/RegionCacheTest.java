@@ -0,0 +1,109 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.annotations.Test;
+
+public class RegionCacheTest {
+    private FileChannel newFileChannel() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        return new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    private void touch(RegionCache cache, long position) throws IOException {
+        cache.get(position, 16).getLock().unlock();
+    }
+
+    @Test
+    public void clock() throws IOException {
+        RegionCache cache = new RegionCache(newFileChannel(), new HeapBufferAllocator(), 48);
+        touch(cache, 0);
+        touch(cache, 16);
+        touch(cache, 32);
+        assertEquals(3, cache.getMissCount());
+
+        // Every region is referenced, so the hand clears them all and
+        // evicts the first.
+        touch(cache, 48);
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(48, cache.getSize());
+
+        // The region at 16 is used again, so the region at 32 is evicted.
+        touch(cache, 16);
+        assertEquals(1, cache.getHitCount());
+        touch(cache, 64);
+        assertEquals(2, cache.getEvictionCount());
+        touch(cache, 16);
+        assertEquals(2, cache.getHitCount());
+        touch(cache, 32);
+        assertEquals(6, cache.getMissCount());
+    }
+
+    @Test
+    public void pinned() throws IOException {
+        RegionCache cache = new RegionCache(newFileChannel(), new HeapBufferAllocator(), 32);
+        Writable first = cache.get(0, 16);
+        touch(cache, 16);
+
+        // The locked region is skipped.
+        touch(cache, 32);
+        assertEquals(1, cache.getEvictionCount());
+        touch(cache, 48);
+        assertEquals(2, cache.getEvictionCount());
+
+        // With every region locked the cache exceeds its budget.
+        Writable second = cache.get(64, 16);
+        Writable third = cache.get(80, 16);
+        assertEquals(48, cache.getSize());
+        first.getLock().unlock();
+        second.getLock().unlock();
+        third.getLock().unlock();
+
+        touch(cache, 0);
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void writeBack() throws IOException {
+        final AtomicBoolean monitor = new AtomicBoolean();
+        FileChannel fileChannel = newFileChannel();
+        final RegionCache[] cache = new RegionCache[1];
+        cache[0] = new RegionCache(new HookFileChannel(fileChannel, new Runnable() {
+            public void run() {
+                monitor.set(monitor.get() || Thread.holdsLock(cache[0]));
+            }
+        }), new HeapBufferAllocator(), 16);
+
+        Writable region = cache[0].get(0, 16);
+        region.getByteBuffer().putInt(4, 0xCAFEBABE);
+        region.dirty(4, 4);
+        region.getLock().unlock();
+
+        touch(cache[0], 16);
+        assertEquals(1, cache[0].getWriteBackCount());
+        assertFalse(monitor.get());
+
+        ByteBuffer bytes = ByteBuffer.allocate(4);
+        fileChannel.read(bytes, 4);
+        assertEquals(0xCAFEBABE, bytes.getInt(0));
+
+        // A clean region is evicted without a write.
+        touch(cache[0], 32);
+        assertEquals(1, cache[0].getWriteBackCount());
+        assertEquals(2, cache[0].getEvictionCount());
+
+        // The written region is loaded again from the file.
+        region = cache[0].get(0, 16);
+        assertEquals(0xCAFEBABE, region.getByteBuffer().getInt(4));
+        region.getLock().unlock();
+    }
+}
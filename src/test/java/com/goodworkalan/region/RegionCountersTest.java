@@ -0,0 +1,161 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.testng.annotations.Test;
+
+public class RegionCountersTest {
+    @Test
+    public void flushed() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        RegionCounters counters = new RegionCounters();
+        Instrumentation.setListener(counters);
+        try {
+            BasicWritable writable = new BasicWritable(0, ByteBuffer.allocate(64), new ReentrantLock(), new DirtyByteMap(64));
+            writable.dirty(0, 4);
+            writable.dirty(2, 4);
+            writable.dirty(16, 4);
+            Instrumentation.lock(writable);
+            try {
+                writable.write(fileChannel, 0);
+            } finally {
+                writable.getLock().unlock();
+            }
+            RegionCounters.Counters written = counters.getCounters(BasicWritable.class);
+            assertEquals(12, written.getDirtyByteCount());
+            assertEquals(1, written.getFlushCount());
+            assertEquals(2, written.getSpanCount());
+            assertEquals(10, written.getWrittenByteCount());
+            assertEquals(2, written.getWriteCount());
+            assertEquals(1, written.getMergeCount());
+            assertEquals(10.0 / 12, counters.getWriteAmplification(), 0.0001);
+        } finally {
+            Instrumentation.setListener(null);
+            fileChannel.close();
+        }
+    }
+
+    @Test
+    public void intervalMerges() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        RegionCounters counters = new RegionCounters();
+        Instrumentation.setListener(counters);
+        try {
+            SpanCleanable cleanable = new SynchronizedSpanCleanable(new DirtyIntervalSet(64));
+            BasicWritable writable = new BasicWritable(0, ByteBuffer.allocate(64), new ReentrantLock(), cleanable);
+            writable.dirty(0, 4);
+            writable.dirty(2, 4);
+            writable.dirty(16, 4);
+            Instrumentation.lock(writable);
+            try {
+                writable.write(fileChannel, 0);
+            } finally {
+                writable.getLock().unlock();
+            }
+            RegionCounters.Counters written = counters.getCounters(BasicWritable.class);
+            assertEquals(2, written.getSpanCount());
+            assertEquals(1, written.getMergeCount());
+        } finally {
+            Instrumentation.setListener(null);
+            fileChannel.close();
+        }
+    }
+
+    @Test
+    public void asynchronous() throws IOException, InterruptedException, ExecutionException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        RegionCounters counters = new RegionCounters();
+        Instrumentation.setListener(counters);
+        try {
+            BasicWritable writable = new BasicWritable(0, ByteBuffer.allocate(64), new ReentrantLock(), new DirtyByteMap(64));
+            writable.dirty(0, 4);
+            writable.dirty(16, 4);
+            Instrumentation.lock(writable);
+            try {
+                assertEquals(8, writable.write(fileChannel, 0).get().intValue());
+            } finally {
+                writable.getLock().unlock();
+            }
+            RegionCounters.Counters written = counters.getCounters(BasicWritable.class);
+            assertEquals(1, written.getFlushCount());
+            assertEquals(2, written.getSpanCount());
+            assertEquals(8, written.getWrittenByteCount());
+            assertEquals(2, written.getWriteCount());
+        } finally {
+            Instrumentation.setListener(null);
+            fileChannel.close();
+        }
+    }
+
+    @Test
+    public void slotted() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        RegionCounters counters = new RegionCounters();
+        Instrumentation.setListener(counters);
+        try {
+            BasicWritable writable = new BasicWritable(0, ByteBuffer.allocate(16), new ReentrantLock(), new DirtyByteMap(16));
+            SlottedWritable slotted = new SlottedWritable(writable);
+            writable.dirty(0, 4);
+            slotted.write(fileChannel, 0);
+            RegionCounters.Counters written = counters.getCounters(SlottedWritable.class);
+            assertEquals(1, written.getFlushCount());
+            assertEquals(1, written.getSpanCount());
+            assertEquals(32, written.getWrittenByteCount());
+            assertEquals(2, written.getWriteCount());
+        } finally {
+            Instrumentation.setListener(null);
+            fileChannel.close();
+        }
+    }
+
+    @Test
+    public void fieldLockWaited() throws InterruptedException {
+        HeaderBuilder<String> builder = new HeaderBuilder<String>();
+        builder.addField("count", 8);
+        final Header<String> header = builder.newHeader(0);
+        final CountDownLatch locked = new CountDownLatch(1);
+        RegionCounters counters = new RegionCounters();
+        Instrumentation.setListener(counters);
+        try {
+            Thread holder = new Thread(new Runnable() {
+                public void run() {
+                    header.getLock().lock();
+                    try {
+                        locked.countDown();
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        return;
+                    } finally {
+                        header.getLock().unlock();
+                    }
+                }
+            });
+            holder.start();
+            locked.await();
+            assertEquals(0, header.getAndAddLong("count", 1));
+            holder.join();
+            assertEquals(1, counters.getCounters(Header.class).getLockWaitCount());
+        } finally {
+            Instrumentation.setListener(null);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+public class RegionSpaceTest {
+    private FileChannel newFileChannel() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        return new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    @Test
+    public void segments() throws IOException {
+        FileChannel[] fileChannels = new FileChannel[] { newFileChannel(), newFileChannel() };
+        try {
+            RegionSpace space = new RegionSpace(fileChannels, 32, 16, new HeapBufferAllocator());
+            ByteBuffer bytes = ByteBuffer.allocate(24);
+            for (int i = 0; i < 24; i++) {
+                bytes.put((byte) (i + 1));
+            }
+            bytes.flip();
+            space.write(20, bytes);
+            assertEquals(2, space.getSegmentCount());
+            space.flush();
+
+            // The write crosses from the first file channel into the second.
+            assertEquals(32, fileChannels[0].size());
+            assertEquals(12, fileChannels[1].size());
+            ByteBuffer read = ByteBuffer.allocate(1);
+            fileChannels[1].read(read, 0);
+            assertEquals(13, read.get(0));
+
+            RegionSpace loaded = new RegionSpace(fileChannels, 32, 16, new HeapBufferAllocator());
+            ByteBuffer copy = ByteBuffer.allocate(24);
+            loaded.read(20, copy);
+            bytes.flip();
+            copy.flip();
+            assertEquals(bytes, copy);
+        } finally {
+            fileChannels[0].close();
+            fileChannels[1].close();
+        }
+    }
+
+    @Test
+    public void capacity() throws IOException {
+        FileChannel fileChannel = newFileChannel();
+        try {
+            RegionSpace space = new RegionSpace(fileChannel, 16, new HeapBufferAllocator(), 32);
+            for (int i = 0; i < 4; i++) {
+                ByteBuffer bytes = ByteBuffer.allocate(4);
+                bytes.putInt(0, i + 1);
+                space.write(i * 16, bytes);
+                assertTrue(space.getSegmentCount() <= 2);
+            }
+
+            // The evicted segments were written back and are loaded again.
+            for (int i = 0; i < 4; i++) {
+                ByteBuffer bytes = ByteBuffer.allocate(4);
+                space.read(i * 16, bytes);
+                assertEquals(i + 1, bytes.getInt(0));
+            }
+            space.flush();
+            assertEquals(52, fileChannel.size());
+        } finally {
+            fileChannel.close();
+        }
+    }
+
+    @Test
+    public void concurrentLoad() throws IOException, InterruptedException {
+        FileChannel fileChannel = newFileChannel();
+        fileChannel.write(ByteBuffer.allocate(64), 0);
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger reads = new AtomicInteger();
+        try {
+            final RegionSpace space = new RegionSpace(new HookFileChannel(fileChannel, new Runnable() {
+                public void run() {
+                }
+            }, new Runnable() {
+                public void run() {
+                    if (reads.incrementAndGet() == 2) {
+                        reading.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            }), 16, new HeapBufferAllocator());
+            ByteBuffer bytes = ByteBuffer.allocate(4);
+            space.read(0, bytes);
+            assertEquals(1, reads.get());
+
+            // Threads that want the segment being loaded wait for one read.
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    public void run() {
+                        try {
+                            space.read(16, ByteBuffer.allocate(4));
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            assertTrue(reading.await(10, TimeUnit.SECONDS));
+
+            // The loaded segment can be used during the load.
+            bytes.clear();
+            space.write(0, bytes);
+            assertEquals(2, space.getSegmentCount());
+
+            release.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(2, reads.get());
+        } finally {
+            release.countDown();
+            fileChannel.close();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void outOfRange() throws IOException {
+        FileChannel fileChannel = newFileChannel();
+        try {
+            new RegionSpace(new FileChannel[] { fileChannel }, 32, 16, new HeapBufferAllocator()).dirty(24, 16);
+        } finally {
+            fileChannel.close();
+        }
+    }
+}
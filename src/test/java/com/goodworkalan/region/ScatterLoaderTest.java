@@ -0,0 +1,57 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.testng.annotations.Test;
+
+public class ScatterLoaderTest {
+    private BasicWritable newRegion(long position) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(8);
+        byte[] garbage = new byte[8];
+        Arrays.fill(garbage, (byte) 0xFF);
+        byteBuffer.put(garbage).clear();
+        BasicWritable region = new BasicWritable(position, byteBuffer, new ReentrantLock(), new DirtyIntervalSet(8));
+        region.dirty();
+        return region;
+    }
+
+    @Test
+    public void load() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        byte[] content = new byte[20];
+        Arrays.fill(content, (byte) 0x11);
+        fileChannel.write(ByteBuffer.wrap(content), 0);
+
+        BasicWritable[] regions = new BasicWritable[] { newRegion(16), newRegion(0), newRegion(8), newRegion(100) };
+        ScatterLoader loader = new ScatterLoader();
+        for (BasicWritable region : regions) {
+            loader.add(region);
+        }
+        loader.load(fileChannel, 0);
+
+        // The contiguous regions are read together, then the last read finds
+        // the end of the file, and the region past the end reads nothing.
+        assertEquals(3, loader.getReadCount());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(0x11, regions[1].getByteBuffer().get(i));
+            assertEquals(0x11, regions[2].getByteBuffer().get(i));
+            assertEquals(i < 4 ? 0x11 : 0, regions[0].getByteBuffer().get(i));
+            assertEquals(0, regions[3].getByteBuffer().get(i));
+        }
+        for (BasicWritable region : regions) {
+            assertEquals(0, region.getByteBuffer().position());
+            assertEquals(8, region.getByteBuffer().limit());
+            assertEquals(-1, ((SpanCleanable) region.getDirtyable()).nextDirty(0));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+import org.testng.annotations.Test;
+
+public class SlottedWritableTest {
+    private SlottedWritable newSlotted() {
+        HeaderBuilder<String> builder = new HeaderBuilder<String>();
+        builder.addField("count", 8);
+        return new SlottedWritable(builder.newHeader(0));
+    }
+
+    @Test
+    public void commit() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            SlottedWritable slotted = newSlotted();
+            slotted.load(fileChannel, 0);
+            assertEquals(0, slotted.getSequence());
+
+            slotted.getByteBuffer().putLong(0, 1);
+            slotted.commit(fileChannel, 0);
+            slotted.getByteBuffer().putLong(0, 2);
+            slotted.commit(fileChannel, 0);
+            assertEquals(2, slotted.getSequence());
+
+            // Each slot is checksummed with CRC32C.
+            for (int i = 0; i < 2; i++) {
+                ByteBuffer slot = ByteBuffer.allocate(SlottedWritable.SLOT_HEADER_LENGTH + 8);
+                fileChannel.read(slot, i * slotted.getSlotLength());
+                CRC32C crc = new CRC32C();
+                crc.update(slot.array(), 0, 12);
+                crc.update(slot.array(), SlottedWritable.SLOT_HEADER_LENGTH, 8);
+                assertEquals((int) crc.getValue(), slot.getInt(12));
+            }
+
+            SlottedWritable loaded = newSlotted();
+            loaded.load(fileChannel, 0);
+            assertEquals(2, loaded.getSequence());
+            assertEquals(2, loaded.getByteBuffer().getLong(0));
+
+            // Tear the newest slot and the older slot is loaded.
+            fileChannel.write(ByteBuffer.wrap(new byte[] { 9 }), slotted.getSlotLength() + SlottedWritable.SLOT_HEADER_LENGTH + 3);
+            loaded = newSlotted();
+            loaded.load(fileChannel, 0);
+            assertEquals(1, loaded.getSequence());
+            assertEquals(1, loaded.getByteBuffer().getLong(0));
+
+            // The next commit overwrites the torn slot.
+            loaded.getByteBuffer().putLong(0, 3);
+            loaded.commit(fileChannel, 0);
+            loaded = newSlotted();
+            loaded.load(fileChannel, 0);
+            assertEquals(2, loaded.getSequence());
+            assertEquals(3, loaded.getByteBuffer().getLong(0));
+        } finally {
+            fileChannel.close();
+        }
+    }
+}
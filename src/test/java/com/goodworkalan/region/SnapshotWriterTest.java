@@ -0,0 +1,74 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.testng.annotations.Test;
+
+public class SnapshotWriterTest {
+    @Test
+    public void flush() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        DirtyIntervalSet cleanable = new DirtyIntervalSet(64);
+        BasicWritable region = new BasicWritable(16, ByteBuffer.allocate(64), new ReentrantLock(), cleanable);
+        SnapshotWriter writer = new SnapshotWriter(region);
+        try {
+            region.getByteBuffer().putLong(0, 1);
+            region.dirty(0, 8);
+            region.getByteBuffer().putLong(32, 2);
+            region.dirty(32, 8);
+            writer.flush(fileChannel, 0);
+            assertEquals(-1, cleanable.nextDirty(0));
+            ByteBuffer read = ByteBuffer.allocate(8);
+            fileChannel.read(read, 16);
+            assertEquals(1, read.getLong(0));
+            read.clear();
+            fileChannel.read(read, 48);
+            assertEquals(2, read.getLong(0));
+
+            // A failed write marks the spans of the snapshot dirty again.
+            region.getByteBuffer().putLong(8, 3);
+            region.dirty(8, 8);
+            fileChannel.close();
+            try {
+                writer.flush(fileChannel, 0);
+                fail();
+            } catch (IOException e) {
+            }
+            assertEquals(8, cleanable.nextDirty(0));
+            assertEquals(16, cleanable.nextClean(8));
+        } finally {
+            fileChannel.close();
+        }
+    }
+
+    @Test
+    public void concurrent() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        final ConcurrentDirtyBlockMap cleanable = new ConcurrentDirtyBlockMap(64, 8);
+        final BasicWritable region = new BasicWritable(0, ByteBuffer.allocate(64), new ReentrantLock(), cleanable);
+        FileChannel fileChannel = new HookFileChannel(new RandomAccessFile(file, "rw").getChannel(), new Runnable() {
+            public void run() {
+                // A writer that does not take the lock dirties the block again.
+                cleanable.dirty(0, 8);
+            }
+        });
+        try {
+            region.dirty(0, 8);
+            new SnapshotWriter(region).flush(fileChannel, 0);
+            assertEquals(0, cleanable.drain().nextDirty(0));
+        } finally {
+            fileChannel.close();
+        }
+    }
+}
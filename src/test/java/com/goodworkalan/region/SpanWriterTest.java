@@ -0,0 +1,64 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.testng.annotations.Test;
+
+public class SpanWriterTest {
+    private ByteBuffer fill(int length, byte value) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(length);
+        while (byteBuffer.hasRemaining()) {
+            byteBuffer.put(value);
+        }
+        return byteBuffer;
+    }
+
+    @Test
+    public void write() throws IOException {
+        File file = File.createTempFile("region", ".dat");
+        file.deleteOnExit();
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            fileChannel.write(ByteBuffer.allocate(256), 0);
+
+            ByteBuffer first = fill(64, (byte) 1);
+            DirtyIntervalSet firstDirty = new DirtyIntervalSet(64);
+            firstDirty.dirty(0, 4);
+            firstDirty.dirty(8, 4);
+            firstDirty.dirty(60, 4);
+
+            ByteBuffer second = fill(64, (byte) 2);
+            DirtyByteMap secondDirty = new DirtyByteMap(64);
+            secondDirty.dirty(0, 4);
+            secondDirty.dirty(32, 4);
+
+            SpanWriter spanWriter = new SpanWriter(4);
+            spanWriter.add(second, secondDirty, 64);
+            spanWriter.add(first, firstDirty, 0);
+            spanWriter.write(fileChannel);
+
+            // One coalesced span, one gathered pair across buffers, one span.
+            assertEquals(3, spanWriter.getWriteCount());
+            assertEquals(12 + 4 + 4 + 4, spanWriter.getByteCount());
+            assertEquals(-1, firstDirty.nextDirty(0));
+            assertEquals(-1, secondDirty.nextDirty(0));
+
+            ByteBuffer read = ByteBuffer.allocate(128);
+            fileChannel.read(read, 0);
+            assertEquals(1, read.get(4));
+            assertEquals(0, read.get(12));
+            assertEquals(1, read.get(63));
+            assertEquals(2, read.get(64));
+            assertEquals(0, read.get(68));
+            assertEquals(2, read.get(96));
+        } finally {
+            fileChannel.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.testng.annotations.Test;
+
+public class StripedLockTest {
+    private ReentrantLock[] newLocks() {
+        return new ReentrantLock[] { new ReentrantLock(), new ReentrantLock(), new ReentrantLock() };
+    }
+
+    @Test
+    public void lock() {
+        ReentrantLock[] locks = newLocks();
+        Lock lock = new StripedLock(locks);
+        lock.lock();
+        for (ReentrantLock stripe : locks) {
+            assertTrue(stripe.isHeldByCurrentThread());
+        }
+        lock.unlock();
+        for (ReentrantLock stripe : locks) {
+            assertFalse(stripe.isLocked());
+        }
+    }
+
+    @Test
+    public void tryLock() throws InterruptedException {
+        final ReentrantLock[] locks = newLocks();
+        final Lock lock = new StripedLock(locks);
+        Thread holder = new Thread() {
+            public void run() {
+                locks[2].lock();
+            }
+        };
+        holder.start();
+        holder.join();
+
+        // The stripes acquired before the held stripe are released.
+        assertFalse(lock.tryLock());
+        assertFalse(lock.tryLock(10, TimeUnit.MILLISECONDS));
+        assertFalse(locks[0].isLocked());
+        assertFalse(locks[1].isLocked());
+    }
+
+    @Test
+    public void lockInterruptibly() throws InterruptedException {
+        final ReentrantLock[] locks = newLocks();
+        final Lock lock = new StripedLock(locks);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        locks[1].lock();
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    lock.lockInterruptibly();
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+            }
+        };
+        waiter.start();
+        while (!locks[1].hasQueuedThread(waiter)) {
+            Thread.yield();
+        }
+        assertTrue(locks[0].isLocked());
+        waiter.interrupt();
+        waiter.join();
+        assertTrue(interrupted.get());
+        assertFalse(locks[0].isLocked());
+        locks[1].unlock();
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void newCondition() {
+        new StripedLock(newLocks()).newCondition();
+    }
+}
@@ -0,0 +1,53 @@
+package com.goodworkalan.region;
+
+import static junit.framework.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+public class SynchronizedSpanCleanableTest {
+    @Test
+    public void delegate() {
+        SynchronizedSpanCleanable cleanable = new SynchronizedSpanCleanable(new DirtyIntervalSet(64));
+        assertEquals(64, cleanable.getLength());
+        cleanable.dirty(8, 8);
+        assertEquals(8, cleanable.nextDirty(0));
+        assertEquals(16, cleanable.nextClean(8));
+        cleanable.clean(8, 4);
+        assertEquals(12, cleanable.nextDirty(0));
+        cleanable.dirty();
+        assertEquals(64, cleanable.nextClean(0));
+        cleanable.clean();
+        assertEquals(-1, cleanable.nextDirty(0));
+    }
+
+    @Test
+    public void concurrent() throws InterruptedException {
+        final SynchronizedSpanCleanable cleanable = new SynchronizedSpanCleanable(new DirtyIntervalSet(4096));
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    // Every other byte, so that the intervals never merge.
+                    for (int offset = thread * 2; offset < 4096; offset += threads.length * 2) {
+                        cleanable.dirty(offset, 1);
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        int count = 0;
+        for (int start = cleanable.nextDirty(0), end; start != -1; start = cleanable.nextDirty(end)) {
+            end = cleanable.nextClean(start);
+            assertEquals(1, end - start);
+            assertEquals(0, start % 2);
+            count++;
+        }
+        assertEquals(2048, count);
+    }
+}